@@ -0,0 +1,231 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.api2;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.feedhenry.sdk.FHActCallback;
+import com.feedhenry.sdk.FHResponse;
+import com.feedhenry.sdk2.FHHttpTransport;
+import com.feedhenry.sdk2.FHJsonHttpResponseHandler;
+import com.feedhenry.sdk2.FHLoopjHttpTransport;
+import com.feedhenry.sdk2.FHUrlConnectionHttpTransport;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.message.BasicHeader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+@RunWith(AndroidJUnit4.class)
+public class FHHttpTransportTest {
+
+    private MockWebServer mockWebServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mockWebServer = new MockWebServer();
+        mockWebServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mockWebServer.shutdown();
+    }
+
+    @Test
+    public void testLoopjTransportPostsJson() throws Exception {
+        postsJson(new FHLoopjHttpTransport());
+    }
+
+    @Test
+    public void testUrlConnectionTransportPostsJson() throws Exception {
+        postsJson(new FHUrlConnectionHttpTransport());
+    }
+
+    @Test
+    public void testLoopjTransportReportsErrorResponses() throws Exception {
+        reportsErrorResponses(new FHLoopjHttpTransport());
+    }
+
+    @Test
+    public void testUrlConnectionTransportReportsErrorResponses() throws Exception {
+        reportsErrorResponses(new FHUrlConnectionHttpTransport());
+    }
+
+    @Test
+    public void testLoopjTransportReusesConnections() throws Exception {
+        reusesConnections(new FHLoopjHttpTransport());
+    }
+
+    @Test
+    public void testUrlConnectionTransportReusesConnections() throws Exception {
+        reusesConnections(new FHUrlConnectionHttpTransport());
+    }
+
+    @Test
+    public void testUrlConnectionTransportLimitsConcurrentRequests() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+                Thread.sleep(200);
+                running.decrementAndGet();
+                return new MockResponse().setBody("{}");
+            }
+        });
+        String maxConnectionsProperty = System.getProperty("http.maxConnections");
+        final FHUrlConnectionHttpTransport transport = new FHUrlConnectionHttpTransport();
+        transport.setMaxConnections(2);
+
+        List<Thread> threads = new ArrayList<>();
+        final AtomicInteger succeeded = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    RecordingCallback callback = new RecordingCallback();
+                    transport.execute(
+                        FHHttpTransport.METHOD_GET,
+                        mockWebServer.getUrl("/box/srv/1.1/act").toString(),
+                        null,
+                        null,
+                        null,
+                        new FHJsonHttpResponseHandler(callback),
+                        true);
+                    if (callback.success != null) {
+                        succeeded.incrementAndGet();
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(5, succeeded.get());
+        assertEquals(2, maxRunning.get());
+        // the limit is the transport's own, the platform's pool of the process is left alone
+        assertEquals(maxConnectionsProperty, System.getProperty("http.maxConnections"));
+    }
+
+    private void postsJson(FHHttpTransport transport) throws Exception {
+        mockWebServer.enqueue(new MockResponse().setBody("{\"status\":\"ok\"}"));
+        RecordingCallback callback = new RecordingCallback();
+        transport.setUserAgent("FHHttpTransportTest");
+
+        transport.execute(
+            FHHttpTransport.METHOD_POST,
+            mockWebServer.getUrl("/box/srv/1.1/act").toString(),
+            new Header[] {new BasicHeader("X-FH-Test", "yes")},
+            "{\"a\":1}".getBytes("UTF-8"),
+            "application/json",
+            new FHJsonHttpResponseHandler(callback),
+            true);
+
+        RecordedRequest request = mockWebServer.takeRequest();
+        assertEquals("POST", request.getMethod());
+        assertEquals("/box/srv/1.1/act", request.getPath());
+        assertEquals("{\"a\":1}", request.getUtf8Body());
+        assertEquals("yes", request.getHeader("X-FH-Test"));
+        assertEquals("FHHttpTransportTest", request.getHeader("User-Agent"));
+        assertEquals("application/json", request.getHeader("Content-Type"));
+        assertNull(callback.failure);
+        assertEquals("ok", callback.success.getJson().getString("status"));
+    }
+
+    private void reportsErrorResponses(FHHttpTransport transport) throws Exception {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500).setBody("{\"msg\":\"broken\"}"));
+        RecordingCallback callback = new RecordingCallback();
+
+        transport.execute(
+            FHHttpTransport.METHOD_GET,
+            mockWebServer.getUrl("/box/srv/1.1/act?a=1").toString(),
+            null,
+            null,
+            null,
+            new FHJsonHttpResponseHandler(callback),
+            true);
+
+        RecordedRequest request = mockWebServer.takeRequest();
+        assertEquals("GET", request.getMethod());
+        assertEquals("/box/srv/1.1/act?a=1", request.getPath());
+        assertNull(callback.success);
+        assertNotNull(callback.failure.getError());
+        assertEquals("broken", callback.failure.getJson().getString("msg"));
+    }
+
+    private void reusesConnections(FHHttpTransport transport) throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mockWebServer.enqueue(new MockResponse().setBody("{\"count\":" + i + "}"));
+        }
+
+        for (int i = 0; i < 3; i++) {
+            RecordingCallback callback = new RecordingCallback();
+            transport.execute(
+                FHHttpTransport.METHOD_POST,
+                mockWebServer.getUrl("/box/srv/1.1/act").toString(),
+                null,
+                "{}".getBytes("UTF-8"),
+                "application/json",
+                new FHJsonHttpResponseHandler(callback),
+                true);
+            assertEquals(i, callback.success.getJson().getInt("count"));
+        }
+
+        for (int i = 0; i < 3; i++) {
+            // the sequence number counts the requests sent over the same connection
+            assertEquals(i, mockWebServer.takeRequest().getSequenceNumber());
+        }
+    }
+
+    private static class RecordingCallback implements FHActCallback {
+
+        FHResponse success;
+        FHResponse failure;
+
+        @Override
+        public void success(FHResponse pResponse) {
+            success = pResponse;
+        }
+
+        @Override
+        public void fail(FHResponse pResponse) {
+            failure = pResponse;
+        }
+    }
+}
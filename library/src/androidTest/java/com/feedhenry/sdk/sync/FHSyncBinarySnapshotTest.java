@@ -0,0 +1,95 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.fh.JSONArray;
+import org.json.fh.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class FHSyncBinarySnapshotTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        JSONObject header = new JSONObject();
+        header.put("dataSetId", "binaryDataSet");
+        header.put("hashValue", "not-a-sha1");
+        header.put("syncLoopStart", 1234567890123L);
+        header.put("acknowledgements", new JSONArray());
+        header.put("metaData", new JSONObject().put("uid1", new JSONObject().put("fromPending", true)));
+
+        Map<String, FHSyncDataRecord> records = new HashMap<>();
+        FHSyncDataRecord record = new FHSyncDataRecord(new JSONObject().put("name", "caf\u00e9").put("n", 1.5));
+        records.put(record.getHashValue(), record);
+        FHSyncDataRecord placeholder = new FHSyncDataRecord();
+        records.put("placeholder", placeholder);
+
+        FHSyncPendingRecord pending = new FHSyncPendingRecord();
+        pending.setAction("update");
+        pending.setUid(record.getHashValue());
+        pending.setInFlight(true);
+        pending.setInFlightDate(new Date(42));
+        pending.setWaitingFor(FHSyncUtils.generateHash("other"));
+        pending.setPreData(record);
+        pending.setPostData(new FHSyncDataRecord(new JSONObject().put("name", "post")));
+        Map<String, FHSyncPendingRecord> pendingRecords = new HashMap<>();
+        pendingRecords.put(pending.getHashValue(), pending);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FHSyncBinarySnapshot.write(out, header, pendingRecords, records);
+
+        Map<String, FHSyncDataRecord> readRecords = new HashMap<>();
+        Map<String, FHSyncPendingRecord> readPending = new HashMap<>();
+        JSONObject readHeader = FHSyncBinarySnapshot.read(new ByteArrayInputStream(out.toByteArray()), readPending, readRecords);
+
+        assertEquals(header.toString(), readHeader.toString());
+        assertEquals(2, readRecords.size());
+        assertEquals(record.getJSON().toString(), readRecords.get(record.getHashValue()).getJSON().toString());
+        assertNull(readRecords.get("placeholder").getData());
+        assertEquals(1, readPending.size());
+        assertEquals(pending.getJSON().toString(), readPending.get(pending.getHashValue()).getJSON().toString());
+    }
+
+    @Test
+    public void testRejectsUnknownVersion() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FHSyncBinarySnapshot.write(out, new JSONObject(), new HashMap<String, FHSyncPendingRecord>(),
+            new HashMap<String, FHSyncDataRecord>());
+        byte[] bytes = out.toByteArray();
+        bytes[4] = (byte) (FHSyncBinarySnapshot.VERSION + 1);
+        try {
+            FHSyncBinarySnapshot.read(new ByteArrayInputStream(bytes), new HashMap<String, FHSyncPendingRecord>(),
+                new HashMap<String, FHSyncDataRecord>());
+            fail("Expected an unknown version to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.feedhenry.sdk.FH;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.json.fh.JSONArray;
+import org.json.fh.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static android.support.test.InstrumentationRegistry.getContext;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class FHSyncBucketHashesTest {
+
+    private static final String DATASET_ID = "bucketDataSet";
+    private static final int BUCKETS = 16;
+    private static final String EMPTY_BUCKET = "0000000000000000000000000000000000000000";
+
+    private MockWebServer mockWebServer;
+    private SyncServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new SyncServer();
+        mockWebServer = new MockWebServer();
+        mockWebServer.setDispatcher(server);
+        mockWebServer.start(9000);
+        FH.init(getContext(), null);
+        getContext().deleteFile(DATASET_ID + ".sync.json");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mockWebServer.shutdown();
+        // Give a little bit of time to allow mockWebServer to shut down properly
+        Thread.sleep(100);
+    }
+
+    @Test
+    public void testBucketHashesDoNotDependOnOrder() throws Exception {
+        FHSyncBucketHashes forward = new FHSyncBucketHashes(BUCKETS);
+        FHSyncBucketHashes backward = new FHSyncBucketHashes(BUCKETS);
+        for (int i = 0; i < 50; i++) {
+            forward.put("uid-" + i, "hash-" + i);
+            backward.put("uid-" + (49 - i), "hash-" + (49 - i));
+        }
+        assertEquals(forward.getHashes().toString(), backward.getHashes().toString());
+
+        forward.put("uid-3", "changed");
+        forward.put("uid-3", "hash-3");
+        forward.put("uid-50", "added");
+        forward.remove("uid-50");
+        assertEquals(forward.getHashes().toString(), backward.getHashes().toString());
+
+        FHSyncBucketHashes empty = new FHSyncBucketHashes(BUCKETS);
+        for (int i = 0; i < 50; i++) {
+            empty.put("uid-" + i, "hash-" + i);
+            empty.put("uid-" + i, null);
+        }
+        JSONArray hashes = empty.getHashes();
+        for (int i = 0; i < BUCKETS; i++) {
+            assertEquals(EMPTY_BUCKET, hashes.getString(i));
+        }
+    }
+
+    @Test
+    public void testChangeOnlyAltersItsBucket() throws Exception {
+        FHSyncBucketHashes hashes = new FHSyncBucketHashes(BUCKETS);
+        for (int i = 0; i < 50; i++) {
+            hashes.put("uid-" + i, "hash-" + i);
+        }
+        JSONArray before = hashes.getHashes();
+        hashes.put("uid-7", "changed");
+        JSONArray after = hashes.getHashes();
+
+        int bucket = FHSyncBucketHashes.bucketOf("uid-7", BUCKETS);
+        for (int i = 0; i < BUCKETS; i++) {
+            assertEquals(i != bucket, before.getString(i).equals(after.getString(i)));
+        }
+        JSONObject records = hashes.getRecordHashes(new JSONArray().put(bucket));
+        assertEquals("changed", records.getString("uid-7"));
+        for (Iterator<String> it = records.keys(); it.hasNext(); ) {
+            assertEquals(bucket, FHSyncBucketHashes.bucketOf(it.next(), BUCKETS));
+        }
+    }
+
+    @Test
+    public void testSyncOnlySendsDifferingBuckets() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            server.put("uid-" + i, new JSONObject().put("n", i));
+        }
+        FHSyncConfig config = new FHSyncConfig();
+        config.setHashBuckets(BUCKETS);
+        FHSyncDataset dataset = new FHSyncDataset(getContext(), null, DATASET_ID, config, new JSONObject(), null);
+
+        sync(dataset);
+        assertEquals(100, dataset.listData().length());
+
+        server.put("uid-5", new JSONObject().put("n", 500));
+        server.remove("uid-7");
+        server.put("uid-200", new JSONObject().put("n", 200));
+        server.mClientRecs.clear();
+        sync(dataset);
+
+        Set<Integer> changedBuckets = new HashSet<>();
+        for (String uid : new String[] {"uid-5", "uid-7", "uid-200"}) {
+            changedBuckets.add(FHSyncBucketHashes.bucketOf(uid, BUCKETS));
+        }
+        assertEquals(1, server.mClientRecs.size());
+        JSONObject clientRecs = server.mClientRecs.get(0);
+        assertTrue(clientRecs.length() < 100);
+        for (Iterator<String> it = clientRecs.keys(); it.hasNext(); ) {
+            assertTrue(changedBuckets.contains(FHSyncBucketHashes.bucketOf(it.next(), BUCKETS)));
+        }
+        assertConverged(dataset);
+    }
+
+    @Test
+    public void testSyncFallsBackToAllRecords() throws Exception {
+        server.mSupportsBuckets = false;
+        for (int i = 0; i < 20; i++) {
+            server.put("uid-" + i, new JSONObject().put("n", i));
+        }
+        FHSyncConfig config = new FHSyncConfig();
+        config.setHashBuckets(BUCKETS);
+        FHSyncDataset dataset = new FHSyncDataset(getContext(), null, DATASET_ID, config, new JSONObject(), null);
+
+        sync(dataset);
+        server.put("uid-5", new JSONObject().put("n", 500));
+        server.mClientRecs.clear();
+        sync(dataset);
+
+        assertEquals(1, server.mClientRecs.size());
+        assertEquals(20, server.mClientRecs.get(0).length());
+        assertFalse(server.mSawClientBuckets);
+        assertConverged(dataset);
+    }
+
+    private void sync(FHSyncDataset pDataset) throws Exception {
+        int served = server.mSyncRecordsServed;
+        pDataset.startSyncLoop();
+        long deadline = System.currentTimeMillis() + 5000;
+        // the syncRecords exchange runs after the sync loop reports it is complete
+        while (server.mSyncRecordsServed == served && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(200);
+    }
+
+    private void assertConverged(FHSyncDataset pDataset) {
+        JSONObject local = pDataset.listData();
+        assertEquals(server.mRecords.size(), local.length());
+        for (Map.Entry<String, JSONObject> entry : server.mRecords.entrySet()) {
+            assertEquals(
+                entry.getValue().toString(),
+                local.getJSONObject(entry.getKey()).getJSONObject("data").toString());
+        }
+    }
+
+    /**
+     * Stands in for a sync server that compares bucket hashes before record hashes.
+     */
+    private static class SyncServer extends Dispatcher {
+
+        final Map<String, JSONObject> mRecords = Collections.synchronizedMap(new LinkedHashMap<String, JSONObject>());
+        final List<JSONObject> mClientRecs = Collections.synchronizedList(new ArrayList<JSONObject>());
+        volatile boolean mSupportsBuckets = true;
+        volatile boolean mSawClientBuckets;
+        volatile int mSyncRecordsServed;
+
+        void put(String pUid, JSONObject pData) {
+            mRecords.put(pUid, pData);
+        }
+
+        void remove(String pUid) {
+            mRecords.remove(pUid);
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest pRequest) throws InterruptedException {
+            JSONObject params = new JSONObject(pRequest.getUtf8Body());
+            JSONObject response = new JSONObject();
+            response.put("hash", datasetHash());
+            if ("sync".equals(params.getString("fn"))) {
+                if (mSupportsBuckets && params.has("bucket_count")) {
+                    response.put("bucket_count", params.getInt("bucket_count"));
+                }
+            } else if (params.has("client_buckets")) {
+                mSawClientBuckets = true;
+                JSONArray clientBuckets = params.getJSONArray("client_buckets");
+                JSONArray serverBuckets = bucketHashes(clientBuckets.length()).getHashes();
+                JSONArray differing = new JSONArray();
+                for (int i = 0; i < clientBuckets.length(); i++) {
+                    if (!clientBuckets.getString(i).equals(serverBuckets.getString(i))) {
+                        differing.put(i);
+                    }
+                }
+                response.put("buckets", differing);
+            } else {
+                JSONObject clientRecs = params.getJSONObject("clientRecs");
+                mClientRecs.add(clientRecs);
+                diff(clientRecs, params.optJSONArray("buckets"), params.optInt("bucket_count"), response);
+                mSyncRecordsServed++;
+            }
+            return new MockResponse().setBody(response.toString());
+        }
+
+        private void diff(JSONObject pClientRecs, JSONArray pBuckets, int pBucketCount, JSONObject pResponse) {
+            Set<Integer> buckets = null;
+            if (pBuckets != null) {
+                buckets = new HashSet<>();
+                for (int i = 0; i < pBuckets.length(); i++) {
+                    buckets.add(pBuckets.getInt(i));
+                }
+            }
+            JSONObject create = new JSONObject();
+            JSONObject update = new JSONObject();
+            JSONObject delete = new JSONObject();
+            synchronized (mRecords) {
+                for (Map.Entry<String, JSONObject> entry : mRecords.entrySet()) {
+                    String uid = entry.getKey();
+                    if (buckets != null && !buckets.contains(FHSyncBucketHashes.bucketOf(uid, pBucketCount))) {
+                        continue;
+                    }
+                    String hash = FHSyncUtils.generateObjectHash(entry.getValue());
+                    JSONObject record = new JSONObject().put("data", entry.getValue()).put("hash", hash);
+                    if (!pClientRecs.has(uid)) {
+                        create.put(uid, record);
+                    } else if (!hash.equals(pClientRecs.getString(uid))) {
+                        update.put(uid, record);
+                    }
+                }
+            }
+            for (Iterator<String> it = pClientRecs.keys(); it.hasNext(); ) {
+                String uid = it.next();
+                if (!mRecords.containsKey(uid)) {
+                    delete.put(uid, new JSONObject());
+                }
+            }
+            pResponse.put("create", create);
+            pResponse.put("update", update);
+            pResponse.put("delete", delete);
+        }
+
+        private FHSyncBucketHashes bucketHashes(int pBucketCount) {
+            FHSyncBucketHashes hashes = new FHSyncBucketHashes(pBucketCount);
+            synchronized (mRecords) {
+                for (Map.Entry<String, JSONObject> entry : mRecords.entrySet()) {
+                    hashes.put(entry.getKey(), FHSyncUtils.generateObjectHash(entry.getValue()));
+                }
+            }
+            return hashes;
+        }
+
+        private String datasetHash() {
+            synchronized (mRecords) {
+                return FHSyncUtils.generateObjectHash(new JSONObject(mRecords));
+            }
+        }
+    }
+}
@@ -15,20 +15,42 @@
  */
 package com.feedhenry.sdk.sync;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
 
 import com.feedhenry.sdk.FH;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
 
+import org.json.fh.JSONArray;
+import org.json.fh.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static android.support.test.InstrumentationRegistry.getContext;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 public class FHSyncClientTest {
@@ -67,6 +89,224 @@ public class FHSyncClientTest {
 
     }
 
+    @Test
+    public void testDueDatasetsSyncConcurrentlyUpToTheLimit() throws Exception {
+        FHSyncConfig config = new FHSyncConfig();
+        config.setMaxConcurrentSyncs(2);
+        FHSyncClient client = new FHSyncClient();
+        client.init(getContext(), config, new LockingSyncListener(new CountDownLatch(1)));
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final Set<String> started = Collections.synchronizedSet(new HashSet<String>());
+        String[] ids = {"concurrentDataSet1", "concurrentDataSet2", "concurrentDataSet3"};
+        for (final String id : ids) {
+            getContext().deleteFile(id + ".sync.json");
+            FHSyncDataset spy = Mockito.spy(new FHSyncDataset(getContext(), null, id, config, new JSONObject(), null));
+            Mockito.doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock pInvocation) throws Throwable {
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    started.add(id);
+                    Thread.sleep(200);
+                    running.decrementAndGet();
+                    return null;
+                }
+            }).when(spy).startSyncLoop();
+            Mockito.doReturn(false).when(spy).isSyncRunning();
+            Mockito.doReturn(true).when(spy).isSyncPending();
+            spy.setScheduler(getScheduler(client));
+            client.getDataSets().put(id, spy);
+        }
+        client.forceSync(ids[0]);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (started.size() < ids.length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        client.destroy();
+
+        assertEquals(ids.length, started.size());
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testRunningSyncLoopsCompleteAfterTheClientIsDestroyed() throws Exception {
+        String id = "stoppedDataSet";
+        getContext().deleteFile(id + ".sync.json");
+        FHSyncConfig config = new FHSyncConfig();
+        FHSyncClient client = new FHSyncClient();
+        client.init(getContext(), config, new LockingSyncListener(new CountDownLatch(1)));
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch responded = new CountDownLatch(1);
+        final FHSyncDataset spy = Mockito.spy(new FHSyncDataset(getContext(), null, id, config, new JSONObject(), null));
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock pInvocation) throws Throwable {
+                spy.setSyncRunning(true);
+                // the response of the request arrives on the looper of the sync loop later on
+                final Handler handler = new Handler(Looper.myLooper());
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(500);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                spy.setSyncRunning(false);
+                                responded.countDown();
+                            }
+                        });
+                    }
+                }.start();
+                started.countDown();
+                return null;
+            }
+        }).when(spy).startSyncLoop();
+        Mockito.doReturn(true).when(spy).isSyncPending();
+        spy.setScheduler(getScheduler(client));
+        client.getDataSets().put(id, spy);
+        FHSyncScheduler scheduler = getScheduler(client);
+        scheduler.wakeUp();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        client.destroy();
+
+        assertTrue(responded.await(5, TimeUnit.SECONDS));
+        assertFalse(spy.isSyncRunning());
+    }
+
+    @Test
+    public void testLocalChangesAreDebouncedUpToTheMaxDelay() throws Exception {
+        String id = "debouncedDataSet";
+        getContext().deleteFile(id + ".sync.json");
+        FHSyncConfig config = new FHSyncConfig();
+        config.setAutoSyncLocalUpdates(true);
+        config.setSyncFrequency(100);
+        config.setLocalUpdateDebounceMillis(300);
+        config.setLocalUpdateMaxDelayMillis(1000);
+        FHSyncDataset dataset = Mockito.spy(new FHSyncDataset(getContext(), null, id, config, new JSONObject(), null));
+        Mockito.doReturn(false).when(dataset).isSyncPending();
+        Mockito.doReturn(new Date(0)).when(dataset).getSyncStart();
+        Mockito.doReturn(new Date(0)).when(dataset).getSyncEnd();
+        FHSyncScheduler scheduler = new FHSyncScheduler(new FHSyncClient(), 1);
+
+        // without local changes the dataset is due at the sync frequency
+        assertEquals(100000, scheduler.getDueTime(dataset));
+
+        // a burst of changes is synced once, after it settles
+        dataset.localChangeMade(10000);
+        dataset.localChangeMade(10100);
+        dataset.localChangeMade(10200);
+        assertEquals(10500, scheduler.getDueTime(dataset));
+
+        // changes that keep coming are synced once the first has waited for the max delay
+        for (long now = 10300; now <= 11500; now += 100) {
+            dataset.localChangeMade(now);
+        }
+        assertEquals(11000, scheduler.getDueTime(dataset));
+
+        // the sync loop uploads them
+        dataset.clearLocalChanges();
+        assertEquals(Long.MAX_VALUE, dataset.getLocalChangesDueTime());
+        assertEquals(100000, scheduler.getDueTime(dataset));
+    }
+
+    @Test
+    public void testBatchedChangesAreAppliedAsOneLocalChange() throws Exception {
+        String single = "singleChangesDataSet";
+        String batched = "batchedChangesDataSet";
+        String duplicated = "duplicatedChangesDataSet";
+        getContext().deleteFile(single + ".sync.json");
+        getContext().deleteFile(batched + ".sync.json");
+        getContext().deleteFile(duplicated + ".sync.json");
+        FHSyncConfig config = new FHSyncConfig();
+        config.setNotifyLocalUpdateApplied(true);
+        config.setSyncFrequency(100);
+        FHSyncListener listener = Mockito.mock(FHSyncListener.class);
+        FHSyncClient client = new FHSyncClient();
+        client.init(getContext(), config, listener);
+        client.manage(single, config, new JSONObject());
+        client.manage(batched, config, new JSONObject());
+        client.manage(duplicated, config, new JSONObject());
+
+        int count = 500;
+        List<JSONObject> data = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            data.add(new JSONObject().put("n", i).put("name", "record " + i));
+        }
+        long start = System.currentTimeMillis();
+        for (JSONObject record : data) {
+            client.create(single, record);
+        }
+        long singleElapsed = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        JSONArray created = client.createAll(batched, data);
+        long batchedElapsed = System.currentTimeMillis() - start;
+        Log.i("FHSyncClientTest", count + " creates: " + singleElapsed + "ms one by one, " + batchedElapsed + "ms batched");
+
+        assertEquals(count, created.length());
+        assertEquals(count, client.list(single).length());
+        assertEquals(count, client.list(batched).length());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, created.getJSONObject(i).getJSONObject("data").getInt("n"));
+        }
+
+        Map<String, JSONObject> updates = new HashMap<>();
+        List<String> deletes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String uid = created.getJSONObject(i).getString("uid");
+            if (i % 2 == 0) {
+                updates.put(uid, new JSONObject().put("n", -i));
+            } else {
+                deletes.add(uid);
+            }
+        }
+        updates.put("unknownUid", new JSONObject());
+        assertEquals(count / 2, client.updateAll(batched, updates).length());
+        assertEquals(count / 2, client.deleteAll(batched, deletes).length());
+        JSONObject remaining = client.list(batched);
+        assertEquals(count / 2, remaining.length());
+        assertEquals(-2, remaining.getJSONObject(created.getJSONObject(2).getString("uid")).getJSONObject("data").getInt("n"));
+
+        // identical rows still make records of their own
+        List<JSONObject> rows = Collections.nCopies(count, new JSONObject().put("name", "same"));
+        JSONArray createdRows = client.createAll(duplicated, rows);
+        Set<String> uids = new HashSet<>();
+        for (int i = 0; i < createdRows.length(); i++) {
+            uids.add(createdRows.getJSONObject(i).getString("uid"));
+        }
+        assertEquals(count, uids.size());
+        assertEquals(count, client.list(duplicated).length());
+
+        ArgumentCaptor<NotificationMessage> messages = ArgumentCaptor.forClass(NotificationMessage.class);
+        Mockito.verify(listener, Mockito.timeout(5000).atLeast(count + 3)).onLocalUpdateApplied(messages.capture());
+        client.destroy();
+        List<NotificationMessage> batchMessages = new ArrayList<>();
+        for (NotificationMessage message : messages.getAllValues()) {
+            if (batched.equals(message.getDataId())) {
+                batchMessages.add(message);
+            }
+        }
+        assertEquals(3, batchMessages.size());
+        assertEquals(count, batchMessages.get(0).getUIDs().size());
+        assertEquals("create", batchMessages.get(0).getMessage());
+        assertEquals(count / 2, batchMessages.get(1).getUIDs().size());
+        assertEquals(count / 2, batchMessages.get(2).getUIDs().size());
+    }
+
+    private static FHSyncScheduler getScheduler(FHSyncClient pClient) throws Exception {
+        return (FHSyncScheduler) FHTestUtils.getPrivateField(pClient, "mScheduler");
+    }
+
     private static class LockingSyncListener implements FHSyncListener {
 
         final CountDownLatch latch;
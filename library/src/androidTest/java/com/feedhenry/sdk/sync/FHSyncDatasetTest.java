@@ -16,11 +16,15 @@
 package com.feedhenry.sdk.sync;
 
 import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
 
 import com.feedhenry.sdk.FH;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
 
+import org.json.fh.JSONArray;
 import org.json.fh.JSONObject;
 import org.junit.After;
 import org.junit.Before;
@@ -33,11 +37,23 @@ import org.mockito.internal.verification.api.VerificationData;
 import org.mockito.invocation.Invocation;
 import org.mockito.verification.VerificationMode;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static android.support.test.InstrumentationRegistry.getContext;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 @RunWith(AndroidJUnit4.class)
 public class FHSyncDatasetTest {
@@ -98,6 +114,394 @@ public class FHSyncDatasetTest {
         Mockito.verify(spy, countAtleast(invocations, runningInvocations + 1)).startSyncLoop();
     }
 
+    @Test
+    public void testListDataPagesFilteredAndSortedRecords() throws Exception {
+        getContext().deleteFile("pagedDataSet.sync.json");
+        FHSyncDataset dataset = new FHSyncDataset(getContext(), null, "pagedDataSet", new FHSyncConfig(), new JSONObject(), null);
+        for (int i = 0; i < 10; i++) {
+            dataset.createData(new JSONObject().put("n", i));
+        }
+
+        FHSyncFilter even = new FHSyncFilter() {
+            @Override
+            public boolean accept(String pUid, JSONObject pData) {
+                return pData.getInt("n") % 2 == 0;
+            }
+        };
+        Comparator<JSONObject> descending = new Comparator<JSONObject>() {
+            @Override
+            public int compare(JSONObject pFirst, JSONObject pSecond) {
+                return pSecond.getInt("n") - pFirst.getInt("n");
+            }
+        };
+
+        JSONArray page = dataset.listData(even, descending, 1, 2);
+        assertEquals(2, page.length());
+        assertEquals(6, page.getJSONObject(0).getJSONObject("data").getInt("n"));
+        assertEquals(4, page.getJSONObject(1).getJSONObject("data").getInt("n"));
+
+        JSONArray lastPage = dataset.listData(even, descending, 4, 2);
+        assertEquals(1, lastPage.length());
+        assertEquals(0, lastPage.getJSONObject(0).getJSONObject("data").getInt("n"));
+
+        assertEquals(10, dataset.listData(null, null, 0, 100).length());
+        try {
+            page.getJSONObject(0).getJSONObject("data").put("n", 100);
+            fail("Listed data should be read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        getContext().deleteFile("pagedDataSet.sync.json");
+    }
+
+    @Test
+    public void testFindByIndexedFields() throws Exception {
+        getContext().deleteFile("indexedDataSet.sync.json");
+        FHSyncConfig config = new FHSyncConfig();
+        config.setIndexedFields(Arrays.asList("type", "size.width"));
+        FHSyncDataset dataset = new FHSyncDataset(getContext(), null, "indexedDataSet", config, new JSONObject(), null);
+        String[] uids = new String[5];
+        for (int i = 0; i < uids.length; i++) {
+            JSONObject data = new JSONObject().put("type", i % 2 == 0 ? "even" : "odd");
+            data.put("size", new JSONObject().put("width", i * 10));
+            uids[i] = dataset.createData(data).getString("uid");
+        }
+
+        assertEquals(3, dataset.findBy("type", "even").length());
+        assertEquals(2, dataset.findBy("type", "odd").length());
+        assertEquals(uids[2], dataset.findBy("size.width", 20.0).getJSONObject(0).getString("uid"));
+
+        JSONArray range = dataset.findRange("size.width", 10, 30);
+        assertEquals(3, range.length());
+        assertEquals(uids[1], range.getJSONObject(0).getString("uid"));
+        assertEquals(uids[3], range.getJSONObject(2).getString("uid"));
+        assertEquals(2, dataset.findRange("size.width", 30, null).length());
+
+        dataset.updateData(uids[1], new JSONObject().put("type", "even").put("size", new JSONObject().put("width", 99)));
+        dataset.deleteData(uids[0]);
+        assertEquals(1, dataset.findBy("type", "odd").length());
+        assertEquals(3, dataset.findBy("type", "even").length());
+        assertEquals(0, dataset.findBy("size.width", 0).length());
+        assertEquals(uids[1], dataset.findRange("size.width", 50, null).getJSONObject(0).getString("uid"));
+
+        try {
+            dataset.findBy("name", "x");
+            fail("Lookups on fields that are not indexed should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        getContext().deleteFile("indexedDataSet.sync.json");
+    }
+
+    @Test
+    public void testLookupsMatchTheSnapshotWhileASyncIsApplied() throws Exception {
+        getContext().deleteFile("snapshotIndexDataSet.sync.json");
+        FHSyncConfig config = new FHSyncConfig();
+        config.setIndexedFields(Collections.singletonList("type"));
+        FHSyncDataset dataset = new FHSyncDataset(getContext(), null, "snapshotIndexDataSet", config, new JSONObject(), null);
+        String first = dataset.createData(new JSONObject().put("type", "even")).getString("uid");
+        String second = dataset.createData(new JSONObject().put("type", "odd")).getString("uid");
+
+        FHTestUtils.callPrivateMethod(dataset, "beginSnapshot", new Class<?>[0]);
+        FHTestUtils.callPrivateMethod(
+            dataset, "putRecord", new Class<?>[] {String.class, FHSyncDataRecord.class},
+            first, new FHSyncDataRecord(new JSONObject().put("type", "odd")));
+
+        // readers see the records and the index as they were before the sync
+        JSONArray even = dataset.findBy("type", "even");
+        assertEquals(1, even.length());
+        assertEquals(first, even.getJSONObject(0).getString("uid"));
+        assertEquals("even", even.getJSONObject(0).getJSONObject("data").getString("type"));
+        JSONArray odd = dataset.findBy("type", "odd");
+        assertEquals(1, odd.length());
+        assertEquals(second, odd.getJSONObject(0).getString("uid"));
+        JSONArray all = dataset.findRange("type", null, null);
+        assertEquals(2, all.length());
+        assertEquals(first, all.getJSONObject(0).getString("uid"));
+
+        FHTestUtils.callPrivateMethod(dataset, "publishSnapshot", new Class<?>[0]);
+        assertEquals(0, dataset.findBy("type", "even").length());
+        odd = dataset.findBy("type", "odd");
+        assertEquals(2, odd.length());
+        for (int i = 0; i < odd.length(); i++) {
+            assertEquals("odd", odd.getJSONObject(i).getJSONObject("data").getString("type"));
+        }
+        getContext().deleteFile("snapshotIndexDataSet.sync.json");
+    }
+
+    @Test
+    public void testSQLiteStorageKeepsLocalChanges() throws Exception {
+        getContext().deleteFile("sqliteDataSet.sync.json");
+        getContext().deleteDatabase("sqliteDataSet.sync.db");
+        FHSyncConfig fileConfig = new FHSyncConfig();
+        FHSyncDataset fileDataset = new FHSyncDataset(getContext(), null, "sqliteDataSet", fileConfig, new JSONObject(), null);
+        String first = fileDataset.createData(new JSONObject().put("n", 1)).getString("uid");
+
+        FHSyncConfig config = new FHSyncConfig();
+        config.setStorage(FHSyncConfig.STORAGE_SQLITE);
+        FHSyncDataset dataset = new FHSyncDataset(getContext(), null, "sqliteDataSet", config, new JSONObject(), null);
+        assertEquals(1, dataset.readData(first).getJSONObject("data").getInt("n"));
+        assertFalse(getContext().getFileStreamPath("sqliteDataSet.sync.json").exists());
+
+        String second = dataset.createData(new JSONObject().put("n", 2)).getString("uid");
+        String third = dataset.createData(new JSONObject().put("n", 3)).getString("uid");
+        dataset.updateData(second, new JSONObject().put("n", 20));
+        dataset.deleteData(third);
+
+        FHSyncDataset reloaded = new FHSyncDataset(getContext(), null, "sqliteDataSet", config, new JSONObject(), null);
+        assertEquals(2, reloaded.listData().length());
+        assertEquals(20, reloaded.readData(second).getJSONObject("data").getInt("n"));
+        assertEquals(dataset.getJSON().getJSONObject("pendingDataRecords").length(),
+            reloaded.getJSON().getJSONObject("pendingDataRecords").length());
+        getContext().deleteDatabase("sqliteDataSet.sync.db");
+    }
+
+    @Test
+    public void testSQLiteStorageWritesSyncedRecordsInBatches() throws Exception {
+        getContext().deleteFile("sqliteFlushDataSet.sync.json");
+        getContext().deleteDatabase("sqliteFlushDataSet.sync.db");
+        FHSyncConfig config = new FHSyncConfig();
+        config.setStorage(FHSyncConfig.STORAGE_SQLITE);
+        FHSyncDataset dataset = new FHSyncDataset(getContext(), null, "sqliteFlushDataSet", config, new JSONObject(), null);
+        Map<String, FHSyncDataRecord> stored = new FHSyncSQLiteStorage(getContext(), "sqliteFlushDataSet").getDataRecords();
+
+        FHTestUtils.callPrivateMethod(dataset, "beginSnapshot", new Class<?>[0]);
+        for (int i = 0; i < FHSyncSQLiteStorage.FLUSH_THRESHOLD; i++) {
+            FHTestUtils.callPrivateMethod(
+                dataset, "putRecord", new Class<?>[] {String.class, FHSyncDataRecord.class},
+                "synced" + i, new FHSyncDataRecord(new JSONObject().put("n", i)));
+        }
+        // a full batch is written straight away
+        assertEquals(FHSyncSQLiteStorage.FLUSH_THRESHOLD, stored.size());
+
+        FHTestUtils.callPrivateMethod(
+            dataset, "putRecord", new Class<?>[] {String.class, FHSyncDataRecord.class},
+            "last", new FHSyncDataRecord(new JSONObject().put("n", -1)));
+        assertFalse(stored.containsKey("last"));
+        // the rest once the sync response has been applied
+        FHTestUtils.callPrivateMethod(dataset, "publishSnapshot", new Class<?>[0]);
+        assertEquals(-1, stored.get("last").getData().getInt("n"));
+        assertEquals(FHSyncSQLiteStorage.FLUSH_THRESHOLD + 1, stored.size());
+        getContext().deleteDatabase("sqliteFlushDataSet.sync.db");
+    }
+
+    @Test
+    public void testPendingChangesAreUploadedInBatches() throws Exception {
+        getContext().deleteFile("batchDataSet.sync.json");
+        MockWebServer cloud = new MockWebServer();
+        cloud.start(9000);
+        try {
+            FHSyncConfig config = new FHSyncConfig();
+            config.setMaxPendingBatchRecords(2);
+            FHSyncDataset dataset = new FHSyncDataset(getContext(), null, "batchDataSet", config, new JSONObject(), null);
+            for (int i = 0; i < 6; i++) {
+                dataset.createData(new JSONObject().put("n", i));
+            }
+
+            cloud.enqueue(new MockResponse().setBody("{}"));
+            runSyncLoop(dataset);
+            assertEquals(2, new JSONObject(cloud.takeRequest().getUtf8Body()).getJSONArray("pending").length());
+            assertTrue(dataset.isSyncPending());
+            assertEquals(2, countPending(dataset, "inFlight"));
+
+            cloud.enqueue(new MockResponse().setResponseCode(500).setBody("{}"));
+            runSyncLoop(dataset);
+            assertEquals(2, new JSONObject(cloud.takeRequest().getUtf8Body()).getJSONArray("pending").length());
+            // only the failed batch is crashed, the batch sent before is still waiting for its answer
+            assertEquals(4, countPending(dataset, "inFlight"));
+            assertEquals(2, countPending(dataset, "crashed"));
+
+            config.setMaxPendingBatchRecords(0);
+            config.setMaxPendingBatchBytes(1);
+            cloud.enqueue(new MockResponse().setBody("{}"));
+            runSyncLoop(dataset);
+            // a change larger than the limit is still sent on its own
+            assertEquals(1, new JSONObject(cloud.takeRequest().getUtf8Body()).getJSONArray("pending").length());
+            assertTrue(dataset.isSyncPending());
+        } finally {
+            cloud.shutdown();
+            getContext().deleteFile("batchDataSet.sync.json");
+        }
+    }
+
+    @Test
+    public void testRetriedChangesAreSquashedPerRecord() throws Exception {
+        getContext().deleteFile("squashDataSet.sync.json");
+        MockWebServer cloud = new MockWebServer();
+        cloud.start(9000);
+        try {
+            FHSyncConfig config = new FHSyncConfig();
+            config.setCrashCountWait(0);
+            config.setResendCrashedUpdates(true);
+            FHSyncDataset dataset = new FHSyncDataset(getContext(), null, "squashDataSet", config, new JSONObject(), null);
+            String uid = dataset.createData(new JSONObject().put("n", 0)).getString("uid");
+
+            // the create times out, so the updates made afterwards wait for it
+            cloud.enqueue(new MockResponse().setResponseCode(500).setBody("{}"));
+            runSyncLoop(dataset);
+            cloud.takeRequest();
+            Thread.sleep(5);
+            dataset.updateData(uid, new JSONObject().put("n", 10));
+            dataset.updateData(uid, new JSONObject().put("n", 20));
+            assertEquals(2, dataset.getJSON().getJSONObject("pendingDataRecords").length());
+
+            // the crashed create is retried, together with the updates
+            cloud.enqueue(new MockResponse().setBody("{}"));
+            runSyncLoop(dataset);
+            cloud.takeRequest();
+
+            cloud.enqueue(new MockResponse().setBody("{}"));
+            runSyncLoop(dataset);
+            JSONArray pending = new JSONObject(cloud.takeRequest().getUtf8Body()).getJSONArray("pending");
+            assertEquals(1, pending.length());
+            assertEquals("create", pending.getJSONObject(0).getString("action"));
+            assertEquals(uid, pending.getJSONObject(0).getString("uid"));
+            assertEquals(20, pending.getJSONObject(0).getJSONObject("post").getInt("n"));
+            assertEquals(1, dataset.getJSON().getJSONObject("pendingDataRecords").length());
+        } finally {
+            cloud.shutdown();
+            getContext().deleteFile("squashDataSet.sync.json");
+        }
+    }
+
+    @Test
+    public void testConcurrentLocalChangesDuringSyncLoopsStayConsistent() throws Exception {
+        getContext().deleteFile("stressDataSet.sync.json");
+        MockWebServer cloud = new MockWebServer();
+        cloud.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest pRequest) throws InterruptedException {
+                // keep every sync loop in flight while local changes are made
+                Thread.sleep(50);
+                return new MockResponse().setBody("{}");
+            }
+        });
+        cloud.start(9000);
+        try {
+            final FHSyncDataset dataset = new FHSyncDataset(
+                getContext(), null, "stressDataSet", new FHSyncConfig(), new JSONObject(), null);
+            final int writers = 4;
+            final int changes = 150;
+            final AtomicBoolean done = new AtomicBoolean();
+            final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            final List<Map<String, Integer>> expected = new ArrayList<>();
+            List<Thread> threads = new ArrayList<>();
+
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            runSyncLoop(dataset);
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            }));
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // readers never see a record half way through a change
+                        while (!done.get()) {
+                            JSONObject records = dataset.listData();
+                            for (Iterator<String> it = records.keys(); it.hasNext(); ) {
+                                assertTrue(records.getJSONObject(it.next()).getJSONObject("data").has("n"));
+                            }
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            }));
+            List<Thread> writerThreads = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                final int writer = i;
+                final Map<String, Integer> values = new HashMap<>();
+                expected.add(values);
+                writerThreads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            String uid = null;
+                            for (int n = 0; n < changes; n++) {
+                                if (n % 3 == 0) {
+                                    uid = dataset.createData(new JSONObject().put("w", writer).put("n", n)).getString("uid");
+                                } else {
+                                    dataset.updateData(uid, new JSONObject().put("w", writer).put("n", n));
+                                }
+                                values.put(uid, n);
+                            }
+                        } catch (Throwable t) {
+                            errors.add(t);
+                        }
+                    }
+                }));
+            }
+
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            long start = System.currentTimeMillis();
+            for (Thread thread : writerThreads) {
+                thread.start();
+            }
+            for (Thread thread : writerThreads) {
+                thread.join();
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Log.i("FHSyncDatasetTest", writers * changes * 1000L / Math.max(elapsed, 1) + " local changes per second");
+
+            assertTrue(errors.toString(), errors.isEmpty());
+            assertTrue(elapsed < 30000);
+            JSONObject pendings = dataset.getJSON().getJSONObject("pendingDataRecords");
+            for (Iterator<String> it = pendings.keys(); it.hasNext(); ) {
+                assertNotNull(dataset.readData(pendings.getJSONObject(it.next()).getString("uid")));
+            }
+            FHSyncDataset reloaded = new FHSyncDataset(
+                getContext(), null, "stressDataSet", new FHSyncConfig(), new JSONObject(), null);
+            int records = 0;
+            for (Map<String, Integer> values : expected) {
+                for (Map.Entry<String, Integer> entry : values.entrySet()) {
+                    int value = entry.getValue();
+                    assertEquals(value, dataset.readData(entry.getKey()).getJSONObject("data").getInt("n"));
+                    assertEquals(value, reloaded.readData(entry.getKey()).getJSONObject("data").getInt("n"));
+                    records++;
+                }
+            }
+            assertEquals(records, dataset.listData().length());
+            assertEquals(records, reloaded.listData().length());
+        } finally {
+            cloud.shutdown();
+            getContext().deleteFile("stressDataSet.sync.json");
+        }
+    }
+
+    private static void runSyncLoop(FHSyncDataset pDataset) throws Exception {
+        pDataset.startSyncLoop();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pDataset.isSyncRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(pDataset.isSyncRunning());
+    }
+
+    private static int countPending(FHSyncDataset pDataset, String pFlag) {
+        JSONObject pendings = pDataset.getJSON().getJSONObject("pendingDataRecords");
+        int count = 0;
+        for (Iterator<String> it = pendings.keys(); it.hasNext(); ) {
+            if (pendings.getJSONObject(it.next()).getBoolean(pFlag)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private VerificationMode countAtleast(final AtomicInteger invocationsOut, final int numberOfInvocations) {
         return new VerificationMode() {
 
@@ -0,0 +1,354 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import android.content.Context;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.fh.JSONArray;
+import org.json.fh.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static android.support.test.InstrumentationRegistry.getContext;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class FHSyncFileStorageTest {
+
+    private static final String DATASET_ID = "fileStorageDataSet";
+
+    @Before
+    public void setUp() throws Exception {
+        deleteFiles();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deleteFiles();
+    }
+
+    @Test
+    public void testJournalIsReplayedWithoutCompaction() throws Exception {
+        FHSyncFileStorage storage = newStorage(true, 100);
+        Map<String, FHSyncPendingRecord> pending = new HashMap<>();
+        storage.save(new JSONObject().put("hashValue", "h1"), pending);
+
+        assertTrue(change(storage, pending, "a", 1));
+        assertTrue(change(storage, pending, "b", 2));
+        assertTrue(change(storage, pending, "a", 3));
+        // the dataset file is left alone, every change is a line of the journal
+        assertEquals(0, readDatasetFile().getJSONObject(FHSyncDataset.KEY_DATA_RECORDS).length());
+        assertEquals(3, readJournal().size());
+
+        FHSyncFileStorage reloaded = newStorage(true, 100);
+        Map<String, FHSyncPendingRecord> reloadedPending = new HashMap<>();
+        JSONObject header = reloaded.load(reloadedPending);
+        assertEquals("h1", header.getString("hashValue"));
+        assertEquals(2, reloaded.getDataRecords().size());
+        assertEquals(3, reloaded.getDataRecords().get("a").getData().getInt("n"));
+        assertEquals(2, reloaded.getDataRecords().get("b").getData().getInt("n"));
+        assertEquals(3, header.getJSONObject(FHSyncDataset.KEY_METADATA).getJSONObject("a").getInt("n"));
+        assertEquals(pending.keySet(), reloadedPending.keySet());
+        // replaying does not compact the journal
+        assertEquals(3, readJournal().size());
+    }
+
+    @Test
+    public void testTruncatedLastJournalLineIsIgnored() throws Exception {
+        FHSyncFileStorage storage = newStorage(true, 100);
+        Map<String, FHSyncPendingRecord> pending = new HashMap<>();
+        storage.save(new JSONObject().put("hashValue", "h1"), pending);
+        assertTrue(change(storage, pending, "a", 1));
+        assertTrue(change(storage, pending, "b", 2));
+        // the app died while appending the next entry
+        FileOutputStream fos = getContext().openFileOutput(
+            DATASET_ID + FHSyncFileStorage.JOURNAL_FILE_EXT, Context.MODE_PRIVATE | Context.MODE_APPEND);
+        fos.write("{\"uid\":\"c\",\"record\":{\"da".getBytes("UTF-8"));
+        fos.close();
+
+        FHSyncFileStorage reloaded = newStorage(true, 100);
+        Map<String, FHSyncPendingRecord> reloadedPending = new HashMap<>();
+        reloaded.load(reloadedPending);
+        assertEquals(2, reloaded.getDataRecords().size());
+        assertNull(reloaded.getDataRecords().get("c"));
+        assertEquals(pending.keySet(), reloadedPending.keySet());
+
+        // the replayed entries are compacted into the dataset file, so later entries are not lost behind the torn one
+        assertFalse(journalExists());
+        assertEquals(2, readDatasetFile().getJSONObject(FHSyncDataset.KEY_DATA_RECORDS).length());
+        assertTrue(change(reloaded, reloadedPending, "c", 3));
+        FHSyncFileStorage again = newStorage(true, 100);
+        again.load(new HashMap<String, FHSyncPendingRecord>());
+        assertEquals(3, again.getDataRecords().get("c").getData().getInt("n"));
+    }
+
+    @Test
+    public void testJournalIsCompactedAtTheThreshold() throws Exception {
+        FHSyncFileStorage storage = newStorage(true, 2);
+        Map<String, FHSyncPendingRecord> pending = new HashMap<>();
+        storage.save(new JSONObject().put("hashValue", "h1"), pending);
+
+        assertTrue(change(storage, pending, "a", 1));
+        assertTrue(change(storage, pending, "b", 2));
+        // the journal is full, the dataset has to write the whole dataset instead
+        assertFalse(change(storage, pending, "c", 3));
+        assertEquals(2, readJournal().size());
+
+        storage.save(new JSONObject().put("hashValue", "h2"), pending);
+        assertFalse(journalExists());
+        assertFalse(getContext().getFileStreamPath(
+            DATASET_ID + FHSyncFileStorage.STORAGE_FILE_EXT + FHSyncFileStorage.TEMP_FILE_EXT).exists());
+        JSONObject dataset = readDatasetFile();
+        assertEquals("h2", dataset.getString("hashValue"));
+        assertEquals(3, dataset.getJSONObject(FHSyncDataset.KEY_DATA_RECORDS).length());
+        assertEquals(3, dataset.getJSONObject(FHSyncDataset.KEY_PENDING_RECORDS).length());
+
+        // the compacted journal takes entries again
+        assertTrue(change(storage, pending, "d", 4));
+        assertEquals(1, readJournal().size());
+    }
+
+    @Test
+    public void testDatasetReloadsWithTheJournalTurnedOnAndOff() throws Exception {
+        FHSyncConfig journalConfig = new FHSyncConfig();
+        journalConfig.setUseJournal(true);
+        FHSyncDataset dataset = newDataset(journalConfig);
+        String first = dataset.createData(new JSONObject().put("n", 1)).getString("uid");
+        String second = dataset.createData(new JSONObject().put("n", 2)).getString("uid");
+        dataset.updateData(first, new JSONObject().put("n", 10));
+        assertEquals(3, readJournal().size());
+        int pendingCount = dataset.getJSON().getJSONObject(FHSyncDataset.KEY_PENDING_RECORDS).length();
+
+        FHSyncDataset withoutJournal = newDataset(new FHSyncConfig());
+        assertEquals(10, withoutJournal.readData(first).getJSONObject("data").getInt("n"));
+        assertEquals(2, withoutJournal.readData(second).getJSONObject("data").getInt("n"));
+        assertEquals(pendingCount,
+            withoutJournal.getJSON().getJSONObject(FHSyncDataset.KEY_PENDING_RECORDS).length());
+
+        // without the journal a change writes the whole dataset, which takes in the journal
+        String third = withoutJournal.createData(new JSONObject().put("n", 3)).getString("uid");
+        assertFalse(journalExists());
+        assertEquals(3, readDatasetFile().getJSONObject(FHSyncDataset.KEY_DATA_RECORDS).length());
+
+        FHSyncDataset withJournal = newDataset(journalConfig);
+        assertEquals(3, withJournal.listData().length());
+        assertEquals(10, withJournal.readData(first).getJSONObject("data").getInt("n"));
+        assertEquals(3, withJournal.readData(third).getJSONObject("data").getInt("n"));
+        withJournal.deleteData(second);
+        assertEquals(1, readJournal().size());
+        assertEquals(2, newDataset(journalConfig).listData().length());
+    }
+
+    @Test
+    public void testStreamingLoadMatchesTheSavedDataset() throws Exception {
+        FHSyncDataset dataset = newDataset(new FHSyncConfig());
+        String first = dataset.createData(new JSONObject().put("n", 1).put("name", "caf\u00e9")).getString("uid");
+        dataset.createData(new JSONObject().put("n", 2).put("tags", new JSONArray().put("a").put("b")));
+        String third = dataset.createData(new JSONObject().put("n", 3)).getString("uid");
+        dataset.updateData(first, new JSONObject().put("n", 10));
+        dataset.deleteData(third);
+
+        JSONObject saved = readDatasetFile();
+        FHSyncFileStorage storage = newStorage(false, 100);
+        Map<String, FHSyncPendingRecord> pending = new HashMap<>();
+        JSONObject header = storage.load(pending);
+
+        JSONObject savedRecords = saved.getJSONObject(FHSyncDataset.KEY_DATA_RECORDS);
+        assertEquals(savedRecords.length(), storage.getDataRecords().size());
+        for (Iterator<String> it = savedRecords.keys(); it.hasNext(); ) {
+            String uid = it.next();
+            FHSyncDataRecord record = storage.getDataRecords().get(uid);
+            assertSameJSON(FHSyncDataRecord.fromJSON(savedRecords.getJSONObject(uid)).getJSON(), record.getJSON());
+            // the stored hash is trusted, it has to be the one the data hashes to
+            assertEquals(FHSyncUtils.generateObjectHash(record.getData()), record.getHashValue());
+        }
+        JSONObject savedPending = saved.getJSONObject(FHSyncDataset.KEY_PENDING_RECORDS);
+        assertFalse(pending.isEmpty());
+        assertEquals(savedPending.length(), pending.size());
+        for (Iterator<String> it = savedPending.keys(); it.hasNext(); ) {
+            String hash = it.next();
+            FHSyncPendingRecord record = pending.get(hash);
+            assertSameJSON(FHSyncPendingRecord.fromJSON(savedPending.getJSONObject(hash)).getJSON(), record.getJSON());
+            if (record.getPreData() != null) {
+                assertEquals(FHSyncUtils.generateObjectHash(record.getPreData().getData()), record.getPreData().getHashValue());
+            }
+            if (record.getPostData() != null) {
+                assertEquals(FHSyncUtils.generateObjectHash(record.getPostData().getData()), record.getPostData().getHashValue());
+            }
+        }
+        saved.remove(FHSyncDataset.KEY_DATA_RECORDS);
+        saved.remove(FHSyncDataset.KEY_PENDING_RECORDS);
+        assertSameJSON(saved, header);
+
+        assertSameJSON(dataset.getJSON(), newDataset(new FHSyncConfig()).getJSON());
+    }
+
+    @Test
+    public void testRecordsWithoutStoredHashesAreHashedOnLoad() throws Exception {
+        JSONObject data = new JSONObject().put("n", 1);
+        FHSyncPendingRecord pendingRecord = new FHSyncPendingRecord();
+        pendingRecord.setAction("create");
+        pendingRecord.setUid("u1");
+        pendingRecord.setPostData(new FHSyncDataRecord(data));
+        // an indented file with the pending records first and records that only hold their data
+        JSONObject file = new JSONObject()
+            .put("hashValue", "h1")
+            .put(FHSyncDataset.KEY_PENDING_RECORDS, new JSONObject().put(pendingRecord.getHashValue(), pendingRecord.getJSON()))
+            .put(FHSyncDataset.KEY_DATA_RECORDS, new JSONObject().put("u1", new JSONObject().put("data", data)));
+        writeDatasetFile(file.toString(2));
+
+        FHSyncFileStorage storage = newStorage(false, 100);
+        Map<String, FHSyncPendingRecord> pending = new HashMap<>();
+        assertEquals("h1", storage.load(pending).getString("hashValue"));
+        assertEquals(FHSyncUtils.generateObjectHash(data), storage.getDataRecords().get("u1").getHashValue());
+        assertEquals(pendingRecord.getPostData().getHashValue(),
+            pending.get(pendingRecord.getHashValue()).getPostData().getHashValue());
+    }
+
+    @Test
+    public void testUnreadableFileIsKeptInsteadOfOverwritten() throws Exception {
+        String torn = "{\"pendingDataRecords\":{},\"dataRecords\":{\"u1\":{\"data\":{\"n\":1},\"hashValue\":\"h\"},\"u2\":{\"da";
+        writeDatasetFile(torn);
+
+        FHSyncFileStorage storage = newStorage(false, 100);
+        Map<String, FHSyncPendingRecord> pending = new HashMap<>();
+        assertNull(storage.load(pending));
+        // the records read before the error are not passed off as the whole dataset
+        assertTrue(storage.getDataRecords().isEmpty());
+        assertTrue(pending.isEmpty());
+
+        FHSyncDataset dataset = newDataset(new FHSyncConfig());
+        dataset.createData(new JSONObject().put("n", 2));
+        assertEquals(1, readDatasetFile().getJSONObject(FHSyncDataset.KEY_DATA_RECORDS).length());
+        assertEquals(torn, readLines(DATASET_ID + FHSyncFileStorage.STORAGE_FILE_EXT
+            + FHSyncFileStorage.UNREADABLE_FILE_EXT).get(0));
+    }
+
+    @Test
+    public void testUnreadableFileFallsBackToTheOtherFormat() throws Exception {
+        FHSyncConfig binaryConfig = new FHSyncConfig();
+        binaryConfig.setUseBinarySnapshot(true);
+        FHSyncFileStorage binaryStorage = new FHSyncFileStorage(getContext(), DATASET_ID);
+        binaryStorage.configure(binaryConfig);
+        Map<String, FHSyncPendingRecord> pending = new HashMap<>();
+        change(binaryStorage, pending, "a", 1);
+        binaryStorage.save(new JSONObject().put("hashValue", "h1"), pending);
+        writeDatasetFile("{\"hashValue\":\"h2\",\"dataRecords\":{\"b\":");
+
+        FHSyncFileStorage storage = newStorage(false, 100);
+        Map<String, FHSyncPendingRecord> loadedPending = new HashMap<>();
+        assertEquals("h1", storage.load(loadedPending).getString("hashValue"));
+        assertEquals(1, storage.getDataRecords().size());
+        assertEquals(1, storage.getDataRecords().get("a").getData().getInt("n"));
+        assertEquals(pending.keySet(), loadedPending.keySet());
+    }
+
+    private static FHSyncFileStorage newStorage(boolean pUseJournal, int pCompactionThreshold) {
+        FHSyncConfig config = new FHSyncConfig();
+        config.setUseJournal(pUseJournal);
+        config.setJournalCompactionThreshold(pCompactionThreshold);
+        FHSyncFileStorage storage = new FHSyncFileStorage(getContext(), DATASET_ID);
+        storage.configure(config);
+        return storage;
+    }
+
+    /**
+     * Creates the dataset the way the sync client does, the given config replaces the one it was
+     * saved with.
+     */
+    private static FHSyncDataset newDataset(FHSyncConfig pConfig) {
+        FHSyncDataset dataset = new FHSyncDataset(getContext(), null, DATASET_ID, pConfig, new JSONObject(), null);
+        dataset.setSyncConfig(pConfig);
+        return dataset;
+    }
+
+    /**
+     * Makes a local change to a uid the way the dataset does and persists it.
+     */
+    private static boolean change(FHSyncFileStorage pStorage, Map<String, FHSyncPendingRecord> pPending,
+                                  String pUid, int pValue) throws Exception {
+        FHSyncDataRecord record = new FHSyncDataRecord(new JSONObject().put("n", pValue));
+        pStorage.getDataRecords().put(pUid, record);
+        FHSyncPendingRecord pendingRecord = new FHSyncPendingRecord();
+        pendingRecord.setAction("update");
+        pendingRecord.setUid(pUid);
+        pendingRecord.setTimestamp(pValue);
+        pendingRecord.setPostData(record);
+        pPending.put(pendingRecord.getHashValue(), pendingRecord);
+        return pStorage.saveChange(pUid, new JSONObject().put("n", pValue), pPending);
+    }
+
+    private static void assertSameJSON(JSONObject pExpected, JSONObject pActual) {
+        assertEquals(FHSyncUtils.generateObjectHash(pExpected), FHSyncUtils.generateObjectHash(pActual));
+    }
+
+    private static void writeDatasetFile(String pContent) throws Exception {
+        FileOutputStream fos = getContext().openFileOutput(DATASET_ID + FHSyncFileStorage.STORAGE_FILE_EXT, Context.MODE_PRIVATE);
+        try {
+            fos.write(pContent.getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static JSONObject readDatasetFile() throws Exception {
+        return new JSONObject(readLines(DATASET_ID + FHSyncFileStorage.STORAGE_FILE_EXT).get(0));
+    }
+
+    private static List<String> readJournal() throws Exception {
+        return readLines(DATASET_ID + FHSyncFileStorage.JOURNAL_FILE_EXT);
+    }
+
+    private static boolean journalExists() {
+        return getContext().getFileStreamPath(DATASET_ID + FHSyncFileStorage.JOURNAL_FILE_EXT).exists();
+    }
+
+    private static List<String> readLines(String pFileName) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(getContext().openFileInput(pFileName), "UTF-8"));
+        try {
+            List<String> lines = new ArrayList<>();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void deleteFiles() {
+        getContext().deleteFile(DATASET_ID + FHSyncFileStorage.STORAGE_FILE_EXT);
+        getContext().deleteFile(DATASET_ID + FHSyncFileStorage.STORAGE_FILE_EXT + FHSyncFileStorage.TEMP_FILE_EXT);
+        getContext().deleteFile(DATASET_ID + FHSyncFileStorage.STORAGE_FILE_EXT + FHSyncFileStorage.UNREADABLE_FILE_EXT);
+        getContext().deleteFile(DATASET_ID + FHSyncFileStorage.BINARY_FILE_EXT);
+        getContext().deleteFile(DATASET_ID + FHSyncFileStorage.JOURNAL_FILE_EXT);
+    }
+}
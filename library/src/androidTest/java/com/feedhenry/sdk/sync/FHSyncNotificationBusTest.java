@@ -0,0 +1,112 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class FHSyncNotificationBusTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable pCommand) {
+            pCommand.run();
+        }
+    };
+
+    @Test
+    public void testSubscriptionsOnlyGetTheirDatasetsAndCodes() throws Exception {
+        FHSyncNotificationBus bus = new FHSyncNotificationBus();
+        assertFalse(bus.hasSubscriptions("a", NotificationMessage.SYNC_COMPLETE_CODE));
+
+        Recorder forA = new Recorder();
+        Recorder forAll = new Recorder();
+        bus.subscribe("a", DIRECT, forA, NotificationMessage.SYNC_COMPLETE_CODE, NotificationMessage.DELTA_RECEIVED_CODE);
+        bus.subscribe(null, DIRECT, forAll);
+
+        assertTrue(bus.hasSubscriptions("a", NotificationMessage.DELTA_RECEIVED_CODE));
+        assertTrue(bus.hasSubscriptions("b", NotificationMessage.SYNC_FAILED_CODE));
+
+        publish(bus, "a", NotificationMessage.SYNC_COMPLETE_CODE, "1");
+        publish(bus, "a", NotificationMessage.SYNC_FAILED_CODE, "2");
+        publish(bus, "b", NotificationMessage.SYNC_COMPLETE_CODE, "3");
+
+        assertEquals(1, forA.mEvents.size());
+        assertEquals("1", forA.mEvents.get(0).getUID());
+        assertEquals(3, forAll.mEvents.size());
+    }
+
+    @Test
+    public void testCancelledSubscriptionsGetNothing() throws Exception {
+        FHSyncNotificationBus bus = new FHSyncNotificationBus();
+        Recorder recorder = new Recorder();
+        final List<Runnable> queued = new ArrayList<>();
+        FHSyncSubscription subscription = bus.subscribe("a", new Executor() {
+            @Override
+            public void execute(Runnable pCommand) {
+                queued.add(pCommand);
+            }
+        }, recorder);
+
+        publish(bus, "a", NotificationMessage.SYNC_STARTED_CODE, "1");
+        subscription.cancel();
+        publish(bus, "a", NotificationMessage.SYNC_STARTED_CODE, "2");
+        for (Runnable runnable : queued) {
+            runnable.run();
+        }
+
+        assertTrue(subscription.isCancelled());
+        assertEquals(1, queued.size());
+        assertTrue(recorder.mEvents.isEmpty());
+        assertFalse(bus.hasSubscriptions("a", NotificationMessage.SYNC_STARTED_CODE));
+    }
+
+    @Test
+    public void testUnknownCodesAreRejected() throws Exception {
+        FHSyncNotificationBus bus = new FHSyncNotificationBus();
+        try {
+            bus.subscribe("a", DIRECT, new Recorder(), NotificationMessage.LOCAL_UPDATE_APPLIED_CODE + 1);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertFalse(bus.hasSubscriptions("a", NotificationMessage.SYNC_STARTED_CODE));
+        }
+    }
+
+    private static void publish(FHSyncNotificationBus pBus, String pDataId, int pCode, String pUID) {
+        pBus.publish(pCode, NotificationMessage.getMessage(pDataId, pUID, pCode, null));
+    }
+
+    private static class Recorder implements FHSyncEventListener {
+        private final List<NotificationMessage> mEvents = new ArrayList<>();
+
+        @Override
+        public void onEvent(NotificationMessage pMessage) {
+            mEvents.add(pMessage);
+        }
+    }
+}
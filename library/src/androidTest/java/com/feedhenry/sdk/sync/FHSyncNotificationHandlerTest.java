@@ -0,0 +1,126 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import android.os.HandlerThread;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+@RunWith(AndroidJUnit4.class)
+public class FHSyncNotificationHandlerTest {
+
+    @Test
+    public void testUndeliveredBatchesTakeInLaterRecords() throws Exception {
+        HandlerThread thread = new HandlerThread("FHSyncNotificationHandlerTest");
+        thread.start();
+        try {
+            FHSyncListener listener = Mockito.mock(FHSyncListener.class);
+            FHSyncNotificationHandler handler = new FHSyncNotificationHandler(thread.getLooper(), listener);
+            final CountDownLatch busy = new CountDownLatch(1);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        busy.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            handler.notifyRecords("dataset", NotificationMessage.DELTA_RECEIVED_CODE, "create", Arrays.asList("a", "b"));
+            handler.notifyRecords("dataset", NotificationMessage.DELTA_RECEIVED_CODE, "create", Collections.singletonList("c"));
+            handler.notifyRecords("dataset", NotificationMessage.DELTA_RECEIVED_CODE, "delete", Collections.singletonList("d"));
+            handler.notifyRecords("dataset", NotificationMessage.REMOTE_UPDATE_APPLIED_CODE, null, Collections.singletonList("e"));
+            busy.countDown();
+
+            ArgumentCaptor<NotificationMessage> deltas = ArgumentCaptor.forClass(NotificationMessage.class);
+            Mockito.verify(listener, Mockito.timeout(2000).times(2)).onDeltaReceived(deltas.capture());
+            List<NotificationMessage> messages = deltas.getAllValues();
+            assertEquals(Arrays.asList("a", "b", "c"), messages.get(0).getUIDs());
+            assertEquals("create", messages.get(0).getMessage());
+            assertNull(messages.get(0).getUID());
+            assertEquals(Collections.singletonList("d"), messages.get(1).getUIDs());
+
+            ArgumentCaptor<NotificationMessage> applied = ArgumentCaptor.forClass(NotificationMessage.class);
+            Mockito.verify(listener, Mockito.timeout(2000)).onRemoteUpdateApplied(applied.capture());
+            assertEquals(Collections.singletonList("e"), applied.getValue().getUIDs());
+
+            // once delivered, the next records make a new notification
+            handler.notifyRecords("dataset", NotificationMessage.DELTA_RECEIVED_CODE, "create", Collections.singletonList("f"));
+            Mockito.verify(listener, Mockito.timeout(2000).times(3)).onDeltaReceived(deltas.capture());
+            assertEquals(Collections.singletonList("f"), deltas.getValue().getUIDs());
+        } finally {
+            thread.quit();
+        }
+    }
+
+    @Test
+    public void testBatchesQueuedBeforeOtherMessagesTakeInNoRecords() throws Exception {
+        HandlerThread thread = new HandlerThread("FHSyncNotificationHandlerTest");
+        thread.start();
+        try {
+            FHSyncListener listener = Mockito.mock(FHSyncListener.class);
+            FHSyncNotificationHandler handler = new FHSyncNotificationHandler(thread.getLooper(), listener);
+            final CountDownLatch busy = new CountDownLatch(1);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        busy.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            handler.notifyRecords("dataset", NotificationMessage.DELTA_RECEIVED_CODE, "create", Collections.singletonList("a"));
+            handler.sendMessage(handler.obtainMessage(
+                NotificationMessage.SYNC_COMPLETE_CODE,
+                NotificationMessage.getMessage("dataset", null, NotificationMessage.SYNC_COMPLETE_CODE, null)));
+            handler.sendMessage(handler.obtainMessage(
+                NotificationMessage.SYNC_STARTED_CODE,
+                NotificationMessage.getMessage("dataset", null, NotificationMessage.SYNC_STARTED_CODE, null)));
+            handler.notifyRecords("dataset", NotificationMessage.DELTA_RECEIVED_CODE, "create", Collections.singletonList("b"));
+            busy.countDown();
+
+            Mockito.verify(listener, Mockito.timeout(2000).times(2)).onDeltaReceived(Mockito.any(NotificationMessage.class));
+            ArgumentCaptor<NotificationMessage> deltas = ArgumentCaptor.forClass(NotificationMessage.class);
+            InOrder inOrder = Mockito.inOrder(listener);
+            inOrder.verify(listener).onDeltaReceived(deltas.capture());
+            inOrder.verify(listener).onSyncCompleted(Mockito.any(NotificationMessage.class));
+            inOrder.verify(listener).onSyncStarted(Mockito.any(NotificationMessage.class));
+            inOrder.verify(listener).onDeltaReceived(deltas.capture());
+            assertEquals(Collections.singletonList("a"), deltas.getAllValues().get(0).getUIDs());
+            assertEquals(Collections.singletonList("b"), deltas.getAllValues().get(1).getUIDs());
+        } finally {
+            thread.quit();
+        }
+    }
+}
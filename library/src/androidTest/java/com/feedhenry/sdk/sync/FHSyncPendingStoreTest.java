@@ -0,0 +1,86 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class FHSyncPendingStoreTest {
+
+    @Test
+    public void testIndexesFollowRecordChanges() throws Exception {
+        FHSyncPendingStore store = new FHSyncPendingStore();
+        FHSyncPendingRecord first = pending("a");
+        FHSyncPendingRecord second = pending("a");
+        store.put(first.getHashValue(), first);
+        store.put(second.getHashValue(), second);
+        assertEquals(2, store.getByUid("a").size());
+        assertEquals(2, store.getInFlight().size());
+
+        second.setInFlight(false);
+        second.setDelayed(true);
+        second.setWaitingFor(first.getHashValue());
+        assertEquals(1, store.getInFlight().size());
+        assertSame(second, store.getDelayed().get(0));
+        assertSame(second, store.getWaitingFor(first.getHashValue()).get(0));
+
+        first.setCrashed(true);
+        first.setUid("b");
+        assertSame(first, store.getCrashed().get(0));
+        assertSame(first, store.getByUid("b").get(0));
+        assertSame(second, store.getByUid("a").get(0));
+        assertEquals(1, store.getByUid("a").size());
+    }
+
+    @Test
+    public void testRemovedRecordsLeaveTheIndexes() throws Exception {
+        FHSyncPendingStore store = new FHSyncPendingStore();
+        FHSyncPendingRecord first = pending("a");
+        FHSyncPendingRecord second = pending("b");
+        store.put(first.getHashValue(), first);
+        store.put(second.getHashValue(), second);
+
+        store.remove(first.getHashValue());
+        first.setCrashed(true);
+        assertFalse(store.hasUid("a"));
+        assertTrue(store.getCrashed().isEmpty());
+
+        for (Iterator<Map.Entry<String, FHSyncPendingRecord>> it = store.entrySet().iterator(); it.hasNext(); ) {
+            it.next();
+            it.remove();
+        }
+        assertEquals(0, store.size());
+        assertFalse(store.hasUid("b"));
+        assertTrue(store.getInFlight().isEmpty());
+    }
+
+    private static FHSyncPendingRecord pending(String pUid) throws Exception {
+        FHSyncPendingRecord pending = FHTestUtils.generateRandomPendingRecord();
+        pending.setUid(pUid);
+        return pending;
+    }
+}
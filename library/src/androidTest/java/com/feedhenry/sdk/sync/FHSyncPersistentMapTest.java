@@ -0,0 +1,92 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+@RunWith(AndroidJUnit4.class)
+public class FHSyncPersistentMapTest {
+
+    @Test
+    public void testChangesMatchAHashMap() throws Exception {
+        Random random = new Random(42);
+        String[] keys = new String[2000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = Long.toHexString(random.nextLong());
+        }
+        Map<String, Integer> expected = new HashMap<>();
+        FHSyncPersistentMap<Integer> map = FHSyncPersistentMap.empty();
+        for (int i = 0; i < 20000; i++) {
+            String key = keys[random.nextInt(keys.length)];
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.minus(key);
+            } else {
+                expected.put(key, i);
+                map = map.plus(key, i);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        assertEquals(expected, new HashMap<>(map));
+    }
+
+    @Test
+    public void testOldVersionsDoNotChange() throws Exception {
+        FHSyncPersistentMap<String> first = FHSyncPersistentMap.<String>empty().plus("a", "1").plus("b", "2");
+        FHSyncPersistentMap<String> second = first.plus("a", "3").minus("b").plus("c", "4").nextVersion();
+
+        assertEquals("1", first.get("a"));
+        assertEquals("2", first.get("b"));
+        assertFalse(first.containsKey("c"));
+        assertEquals(2, first.size());
+        assertEquals("3", second.get("a"));
+        assertNull(second.get("b"));
+        assertEquals("4", second.get("c"));
+        assertEquals(first.getVersion() + 1, second.getVersion());
+        assertSame(second, second.plus("a", "3"));
+        assertSame(second, second.minus("b"));
+    }
+
+    @Test
+    public void testKeysWithTheSameHash() throws Exception {
+        // "Aa" and "BB" have the same hash code
+        FHSyncPersistentMap<String> map = FHSyncPersistentMap.<String>empty().plus("Aa", "1").plus("BB", "2").plus("C", "3");
+        assertEquals("1", map.get("Aa"));
+        assertEquals("2", map.get("BB"));
+        assertEquals(3, map.size());
+
+        FHSyncPersistentMap<String> removed = map.minus("Aa");
+        assertNull(removed.get("Aa"));
+        assertEquals("2", removed.get("BB"));
+        assertEquals(2, removed.size());
+        assertEquals("1", map.get("Aa"));
+    }
+}
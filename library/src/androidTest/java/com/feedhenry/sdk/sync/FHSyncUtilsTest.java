@@ -56,4 +56,29 @@ public class FHSyncUtilsTest {
         assertEquals(expected, hash);
     }
 
+    @Test
+    public void testObjectHashMatchesSortedString() throws Exception {
+        JSONObject nested = new JSONObject();
+        nested.put("escapes", "quote \" slash \\ tag </b> \n\t\r\b\f \u0001");
+        nested.put("unicode", "caf\u00e9 \u4e2d \ud83d\ude00 \ud83d");
+        nested.put("empty", "");
+        nested.put("null", JSONObject.NULL);
+        JSONArray arr = new JSONArray();
+        arr.put(1.50);
+        arr.put(-12345678901L);
+        arr.put(Integer.MIN_VALUE);
+        arr.put(false);
+        arr.put(new JSONArray());
+        arr.put(new JSONObject());
+        arr.put(nested);
+        JSONObject obj = new JSONObject();
+        obj.put("b", arr);
+        obj.put("a", nested);
+        obj.put("c", 2.5e-10);
+
+        assertEquals(FHSyncUtils.generateHash(FHSyncUtils.sortObj(obj).toString()), FHSyncUtils.generateObjectHash(obj));
+        assertEquals(FHSyncUtils.generateHash(FHSyncUtils.sortObj(arr).toString()), FHSyncUtils.generateObjectHash(arr));
+        assertEquals(FHSyncUtils.generateHash("[]"), FHSyncUtils.generateObjectHash(new JSONObject()));
+    }
+
 }
@@ -27,6 +27,7 @@ import com.feedhenry.sdk.sync.FHSyncPendingRecord;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 
 public class FHTestUtils {
@@ -171,6 +172,17 @@ public class FHTestUtils {
         }
     }
 
+    static Object callPrivateMethod(Object target, String methodName, Class<?>[] parameterTypes, Object... args) {
+        try {
+            Method method = target.getClass().getDeclaredMethod(methodName, parameterTypes);
+            method.setAccessible(true);
+            return method.invoke(target, args);
+        } catch (IllegalAccessException | IllegalArgumentException | NoSuchMethodException | InvocationTargetException ex) {
+            Log.e(FHTestUtils.class.getName(), ex.getMessage(), ex);
+            throw new RuntimeException(ex);
+        }
+    }
+
     static Object getPrivateField(Object client, String fieldName) {
         try {
             Class<? extends Object> klass = client.getClass();
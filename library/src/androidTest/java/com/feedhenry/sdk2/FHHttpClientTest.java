@@ -0,0 +1,185 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk2;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.feedhenry.sdk.FHActCallback;
+import com.feedhenry.sdk.FHResponse;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.json.fh.JSONArray;
+import org.json.fh.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okio.Buffer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class FHHttpClientTest {
+
+    private MockWebServer mockWebServer;
+    private FHHttpClient client;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        mockWebServer = new MockWebServer();
+        mockWebServer.start();
+        client = new FHHttpClient(new FHUrlConnectionHttpTransport());
+        listener = new RecordingListener();
+        client.setTransferListener(listener);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mockWebServer.shutdown();
+    }
+
+    @Test
+    public void testCompressesLargeRequestBodies() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setBody("{}"));
+        client.setGzipThreshold(100);
+        byte[] body = largeJson().getBytes("UTF-8");
+
+        post(body);
+
+        RecordedRequest request = mockWebServer.takeRequest();
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+        assertEquals(new String(body, "UTF-8"), new String(gunzip(request.getBody().readByteArray()), "UTF-8"));
+        assertEquals(body.length, listener.requestBytes);
+        assertEquals(request.getBodySize(), listener.requestWireBytes);
+        assertTrue(listener.requestWireBytes < listener.requestBytes);
+    }
+
+    @Test
+    public void testDoesNotCompressSmallOrDisabledBodies() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setBody("{}"));
+        mockWebServer.enqueue(new MockResponse().setBody("{}"));
+
+        post(largeJson().getBytes("UTF-8"));
+        client.setGzipThreshold(100);
+        post("{\"a\":1}".getBytes("UTF-8"));
+
+        assertNull(mockWebServer.takeRequest().getHeader("Content-Encoding"));
+        assertNull(mockWebServer.takeRequest().getHeader("Content-Encoding"));
+        assertEquals(listener.requestBytes, listener.requestWireBytes);
+    }
+
+    @Test
+    public void testReportsCompressedResponseSize() throws Exception {
+        byte[] response = largeJson().getBytes("UTF-8");
+        byte[] compressed = gzip(response);
+        mockWebServer.enqueue(new MockResponse()
+            .addHeader("Content-Encoding", "gzip")
+            .setBody(new Buffer().write(compressed)));
+
+        RecordingCallback callback = post("{}".getBytes("UTF-8"));
+
+        assertEquals("gzip", mockWebServer.takeRequest().getHeader("Accept-Encoding"));
+        assertEquals(50, callback.success.getJson().getJSONArray("records").length());
+        assertEquals(response.length, listener.responseBytes);
+        assertEquals(compressed.length, listener.responseWireBytes);
+    }
+
+    private RecordingCallback post(byte[] pBody) {
+        RecordingCallback callback = new RecordingCallback();
+        client.send(
+            FHHttpTransport.METHOD_POST,
+            mockWebServer.getUrl("/mbaas/sync/dataset").toString(),
+            null,
+            pBody,
+            new FHJsonHttpResponseHandler(callback),
+            true);
+        return callback;
+    }
+
+    private static String largeJson() {
+        JSONArray records = new JSONArray();
+        for (int i = 0; i < 50; i++) {
+            records.put(new JSONObject().put("uid", "record-" + i).put("name", "a repetitive record name"));
+        }
+        return new JSONObject().put("records", records).toString();
+    }
+
+    private static byte[] gzip(byte[] pBytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(pBytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] pBytes) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(pBytes));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class RecordingListener implements FHHttpTransferListener {
+
+        int requestBytes;
+        int requestWireBytes;
+        int responseBytes;
+        int responseWireBytes;
+
+        @Override
+        public void onTransfer(
+            String pUrl,
+            int pRequestBytes,
+            int pRequestWireBytes,
+            int pResponseBytes,
+            int pResponseWireBytes) {
+            requestBytes = pRequestBytes;
+            requestWireBytes = pRequestWireBytes;
+            responseBytes = pResponseBytes;
+            responseWireBytes = pResponseWireBytes;
+        }
+    }
+
+    private static class RecordingCallback implements FHActCallback {
+
+        FHResponse success;
+
+        @Override
+        public void success(FHResponse pResponse) {
+            success = pResponse;
+        }
+
+        @Override
+        public void fail(FHResponse pResponse) {
+        }
+    }
+}
@@ -15,25 +15,17 @@
  */
 package com.feedhenry.sdk;
 
-import com.feedhenry.sdk.utils.FHLog;
-import com.loopj.android.http.AsyncHttpClient;
-import com.loopj.android.http.JsonHttpResponseHandler;
 import com.loopj.android.http.RequestParams;
-import com.loopj.android.http.SyncHttpClient;
 import cz.msebera.android.httpclient.Header;
 import cz.msebera.android.httpclient.HttpHost;
 import cz.msebera.android.httpclient.conn.params.ConnRoutePNames;
 import cz.msebera.android.httpclient.entity.StringEntity;
 import java.util.Iterator;
-import org.json.fh.JSONArray;
 import org.json.fh.JSONObject;
 
 public class FHHttpClient {
 
-    private static final AsyncHttpClient mClient = new AsyncHttpClient();
-    private static final SyncHttpClient mSyncClient = new SyncHttpClient();
-    private static final com.feedhenry.sdk2.FHHttpClient instance = new com.feedhenry.sdk2.FHHttpClient();
-    private static final String LOG_TAG = "com.feedhenry.sdk.FHHttpClient";
+    private static final com.feedhenry.sdk2.FHHttpClient instance = com.feedhenry.sdk2.FHHttpClient.getInstance();
 
     /**
      * 
@@ -123,74 +115,6 @@ public class FHHttpClient {
         instance.delete(pUrl, pHeaders, pParams, pCallback, pUseSync);
     }
 
-    static class FHJsonHttpResponseHandler extends JsonHttpResponseHandler {
-
-        private FHActCallback callback = null;
-
-        public FHJsonHttpResponseHandler(FHActCallback pCallback) {
-            super();
-            callback = pCallback;
-        }
-
-        @Override
-        public void onSuccess(int pStatusCode, Header[] pHeaders, org.json.JSONObject pRes) {
-            FHLog.v(LOG_TAG, "Got response : " + pRes.toString());
-            if (callback != null) {
-                FHResponse fhres = new FHResponse(new JSONObject(pRes.toString()), null, null, null);
-                callback.success(fhres);
-            }
-        }
-
-        @Override
-        public void onSuccess(int pStatusCode, Header[] pHeaders, org.json.JSONArray pRes) {
-            FHLog.v(LOG_TAG, "Got response : " + pRes.toString());
-            if (callback != null) {
-                FHResponse fhres = new FHResponse(null, new JSONArray(pRes.toString()), null, null);
-                callback.success(fhres);
-            }
-        }
-
-        @Override
-        public void onFailure(int pStatusCode, Header[] pHeaders, String pContent, Throwable pError) {
-            FHLog.e(LOG_TAG, pError.getMessage(), pError);
-            if (callback != null) {
-                FHResponse fhres = new FHResponse(null, null, pError, pContent);
-                callback.fail(fhres);
-            }
-        }
-
-        @Override
-        public void onFailure(
-            int pStatusCode,
-            Header[] pHeaders,
-            Throwable pError,
-            org.json.JSONObject pErrorResponse) {
-            FHLog.e(LOG_TAG, pError.getMessage(), pError);
-            String errorResponse = (pErrorResponse != null) ? pErrorResponse.toString() : "{}";
-            if (callback != null) {
-                FHResponse fhres = new FHResponse(
-                    new JSONObject(errorResponse),
-                    null,
-                    pError,
-                    errorResponse);
-                callback.fail(fhres);
-            }
-        }
-
-        @Override
-        public void onFailure(int pStatusCode, Header[] pHeaders, Throwable pError, org.json.JSONArray pErrorResponse) {
-            FHLog.e(LOG_TAG, pError.getMessage(), pError);
-            if (callback != null) {
-                FHResponse fhres = new FHResponse(
-                    null,
-                    new JSONArray(pErrorResponse.toString()),
-                    pError,
-                    pErrorResponse.toString());
-                callback.fail(fhres);
-            }
-        }
-    }
-    
     /**
      * Set both the connection and socket timeouts. By default, both are set to
      * 10 seconds.
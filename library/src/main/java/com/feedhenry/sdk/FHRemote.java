@@ -30,7 +30,7 @@ public abstract class FHRemote implements FHAct {
 
     protected static String LOG_TAG = "com.feedhenry.sdk.FHRemote";
 
-    private final com.feedhenry.sdk2.FHHttpClient mHttpClient = new com.feedhenry.sdk2.FHHttpClient();
+    private final com.feedhenry.sdk2.FHHttpClient mHttpClient = com.feedhenry.sdk2.FHHttpClient.getInstance();
     
     protected FHActCallback mCallback;
     protected Context mContext;
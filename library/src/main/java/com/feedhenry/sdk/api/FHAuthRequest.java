@@ -89,7 +89,7 @@ public class FHAuthRequest extends FHRemote {
     public FHAuthRequest(Context context) {
         super(context);
         mPresentingActivity = context;
-        mAuthSession = new com.feedhenry.sdk.api2.FHAuthSession(DataManager.init(context), new FHHttpClient());
+        mAuthSession = new com.feedhenry.sdk.api2.FHAuthSession(DataManager.init(context), FHHttpClient.getInstance());
     }
     
     
@@ -99,7 +99,7 @@ public class FHAuthSession {
 
     private static synchronized com.feedhenry.sdk.api2.FHAuthSession getInstance(DataManager dataManager) {
         if (instance == null) {
-            instance = new com.feedhenry.sdk.api2.FHAuthSession(dataManager, new com.feedhenry.sdk2.FHHttpClient());
+            instance = new com.feedhenry.sdk.api2.FHAuthSession(dataManager, com.feedhenry.sdk2.FHHttpClient.getInstance());
         }
         return instance;
     }
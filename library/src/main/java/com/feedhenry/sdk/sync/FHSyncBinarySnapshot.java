@@ -0,0 +1,312 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import org.json.fh.JSONObject;
+
+/**
+ * Reads and writes the binary dataset snapshot used by {@link FHSyncFileStorage} when
+ * {@link FHSyncConfig#isUseBinarySnapshot()} is on.
+ *
+ * The snapshot starts with the magic bytes "FHSD" and a version byte, followed by the header as
+ * JSON (without the sync loop times), the sync loop times, the pending records and the data
+ * records. Numbers are written as unsigned varints and strings as a varint length followed by
+ * their UTF-8 bytes. SHA-1 hashes in lower case hex are stored as their 20 raw bytes, any other
+ * hash is stored as a string. Record data is still stored as JSON text.
+ */
+final class FHSyncBinarySnapshot {
+
+    static final int VERSION = 1;
+
+    private static final byte[] MAGIC = {'F', 'H', 'S', 'D'};
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    private static final int SHA1_LENGTH = 20;
+
+    private static final int HASH_NULL = 0;
+    private static final int HASH_SHA1 = 1;
+    private static final int HASH_STRING = 2;
+
+    private static final int FLAG_IN_FLIGHT = 1;
+    private static final int FLAG_CRASHED = 1 << 1;
+    private static final int FLAG_DELAYED = 1 << 2;
+    private static final int FLAG_IN_FLIGHT_DATE = 1 << 3;
+    private static final int FLAG_PRE = 1 << 4;
+    private static final int FLAG_POST = 1 << 5;
+
+    private FHSyncBinarySnapshot() {
+    }
+
+    /**
+     * Writes a snapshot. The stream is flushed but not closed.
+     */
+    static void write(OutputStream pOut, JSONObject pHeader, Map<String, FHSyncPendingRecord> pPendingRecords,
+                      Map<String, FHSyncDataRecord> pDataRecords) throws IOException {
+        DataOutputStream out = new DataOutputStream(pOut);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+
+        JSONObject header = new JSONObject();
+        for (Iterator<String> it = pHeader.keys(); it.hasNext(); ) {
+            String key = it.next();
+            if (!FHSyncDataset.KEY_SYNC_LOOP_START.equals(key) && !FHSyncDataset.KEY_SYNC_LOOP_END.equals(key)) {
+                header.put(key, pHeader.get(key));
+            }
+        }
+        writeString(out, header.toString());
+        writeOptionalTime(out, pHeader, FHSyncDataset.KEY_SYNC_LOOP_START);
+        writeOptionalTime(out, pHeader, FHSyncDataset.KEY_SYNC_LOOP_END);
+
+        writeVarLong(out, pPendingRecords.size());
+        for (Map.Entry<String, FHSyncPendingRecord> entry : pPendingRecords.entrySet()) {
+            writeHash(out, entry.getKey());
+            writePendingRecord(out, entry.getValue());
+        }
+        // the map may be backed by storage that can't count cheaply, so the records are terminated instead
+        for (Map.Entry<String, FHSyncDataRecord> entry : pDataRecords.entrySet()) {
+            out.writeByte(1);
+            writeString(out, entry.getKey());
+            writeDataRecord(out, entry.getValue());
+        }
+        out.writeByte(0);
+        out.flush();
+    }
+
+    /**
+     * Reads a snapshot.
+     *
+     * @return the header of the dataset
+     * @throws IOException if the stream does not hold a snapshot of a known version
+     */
+    static JSONObject read(InputStream pIn, Map<String, FHSyncPendingRecord> pPendingRecords,
+                           Map<String, FHSyncDataRecord> pDataRecords) throws IOException {
+        DataInputStream in = new DataInputStream(pIn);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a dataset snapshot");
+            }
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported dataset snapshot version " + version);
+        }
+
+        JSONObject header = new JSONObject(readString(in));
+        readOptionalTime(in, header, FHSyncDataset.KEY_SYNC_LOOP_START);
+        readOptionalTime(in, header, FHSyncDataset.KEY_SYNC_LOOP_END);
+
+        long pendingCount = readVarLong(in);
+        for (long i = 0; i < pendingCount; i++) {
+            String key = readHash(in);
+            pPendingRecords.put(key, readPendingRecord(in));
+        }
+        while (in.readUnsignedByte() != 0) {
+            String uid = readString(in);
+            pDataRecords.put(uid, readDataRecord(in));
+        }
+        return header;
+    }
+
+    private static void writePendingRecord(DataOutputStream pOut, FHSyncPendingRecord pRecord) throws IOException {
+        FHSyncDataRecord pre = pRecord.getPreData();
+        FHSyncDataRecord post = pRecord.getPostData();
+        boolean hasPre = pre != null && pre.getData() != null;
+        boolean hasPost = post != null && post.getData() != null;
+        int flags = (pRecord.isInFlight() ? FLAG_IN_FLIGHT : 0)
+            | (pRecord.isCrashed() ? FLAG_CRASHED : 0)
+            | (pRecord.isDelayed() ? FLAG_DELAYED : 0)
+            | (pRecord.getInFlightDate() != null ? FLAG_IN_FLIGHT_DATE : 0)
+            | (hasPre ? FLAG_PRE : 0)
+            | (hasPost ? FLAG_POST : 0);
+        pOut.writeByte(flags);
+        writeVarLong(pOut, pRecord.getTimestamp());
+        if (pRecord.getInFlightDate() != null) {
+            writeVarLong(pOut, pRecord.getInFlightDate().getTime());
+        }
+        writeString(pOut, pRecord.getAction());
+        writeString(pOut, pRecord.getUid());
+        writeHash(pOut, pRecord.getWaitingFor());
+        if (hasPre) {
+            writeString(pOut, pre.getData().toString());
+            writeHash(pOut, pre.getHashValue());
+        }
+        if (hasPost) {
+            writeString(pOut, post.getData().toString());
+            writeHash(pOut, post.getHashValue());
+        }
+    }
+
+    private static FHSyncPendingRecord readPendingRecord(DataInputStream pIn) throws IOException {
+        FHSyncPendingRecord record = new FHSyncPendingRecord();
+        int flags = pIn.readUnsignedByte();
+        record.setInFlight((flags & FLAG_IN_FLIGHT) != 0);
+        record.setCrashed((flags & FLAG_CRASHED) != 0);
+        record.setDelayed((flags & FLAG_DELAYED) != 0);
+        record.setTimestamp(readVarLong(pIn));
+        if ((flags & FLAG_IN_FLIGHT_DATE) != 0) {
+            record.setInFlightDate(new Date(readVarLong(pIn)));
+        }
+        record.setAction(readString(pIn));
+        record.setUid(readString(pIn));
+        record.setWaitingFor(readHash(pIn));
+        if ((flags & FLAG_PRE) != 0) {
+            JSONObject data = new JSONObject(readString(pIn));
+            record.setPreData(FHSyncDataRecord.fromPersistedData(data, readHash(pIn)));
+        }
+        if ((flags & FLAG_POST) != 0) {
+            JSONObject data = new JSONObject(readString(pIn));
+            record.setPostData(FHSyncDataRecord.fromPersistedData(data, readHash(pIn)));
+        }
+        return record;
+    }
+
+    private static void writeDataRecord(DataOutputStream pOut, FHSyncDataRecord pRecord) throws IOException {
+        writeString(pOut, pRecord.getUid());
+        writeHash(pOut, pRecord.getHashValue());
+        writeString(pOut, pRecord.getData() == null ? null : pRecord.getData().toString());
+    }
+
+    private static FHSyncDataRecord readDataRecord(DataInputStream pIn) throws IOException {
+        String uid = readString(pIn);
+        String hash = readHash(pIn);
+        String data = readString(pIn);
+        FHSyncDataRecord record = FHSyncDataRecord.fromPersistedData(data == null ? null : new JSONObject(data), hash);
+        if (uid != null) {
+            record.setUid(uid);
+        }
+        return record;
+    }
+
+    private static void writeOptionalTime(DataOutputStream pOut, JSONObject pHeader, String pKey) throws IOException {
+        if (pHeader.has(pKey)) {
+            pOut.writeByte(1);
+            writeVarLong(pOut, pHeader.getLong(pKey));
+        } else {
+            pOut.writeByte(0);
+        }
+    }
+
+    private static void readOptionalTime(DataInputStream pIn, JSONObject pHeader, String pKey) throws IOException {
+        if (pIn.readUnsignedByte() != 0) {
+            pHeader.put(pKey, readVarLong(pIn));
+        }
+    }
+
+    private static void writeHash(DataOutputStream pOut, String pHash) throws IOException {
+        if (pHash == null) {
+            pOut.writeByte(HASH_NULL);
+        } else if (isSha1(pHash)) {
+            pOut.writeByte(HASH_SHA1);
+            for (int i = 0; i < pHash.length(); i += 2) {
+                pOut.writeByte((Character.digit(pHash.charAt(i), 16) << 4) | Character.digit(pHash.charAt(i + 1), 16));
+            }
+        } else {
+            pOut.writeByte(HASH_STRING);
+            writeString(pOut, pHash);
+        }
+    }
+
+    private static String readHash(DataInputStream pIn) throws IOException {
+        int type = pIn.readUnsignedByte();
+        switch (type) {
+            case HASH_NULL:
+                return null;
+            case HASH_SHA1:
+                char[] hex = new char[SHA1_LENGTH * 2];
+                for (int i = 0; i < SHA1_LENGTH; i++) {
+                    int b = pIn.readUnsignedByte();
+                    hex[i * 2] = DIGITS[b >>> 4];
+                    hex[i * 2 + 1] = DIGITS[b & 0x0F];
+                }
+                return new String(hex);
+            case HASH_STRING:
+                return readString(pIn);
+            default:
+                throw new IOException("Unknown hash type " + type);
+        }
+    }
+
+    private static boolean isSha1(String pHash) {
+        if (pHash.length() != SHA1_LENGTH * 2) {
+            return false;
+        }
+        for (int i = 0; i < pHash.length(); i++) {
+            char c = pHash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a string that may be null: the length plus one (zero for null), then the UTF-8 bytes.
+     */
+    private static void writeString(DataOutputStream pOut, String pValue) throws IOException {
+        if (pValue == null) {
+            writeVarLong(pOut, 0);
+            return;
+        }
+        byte[] bytes = pValue.getBytes(UTF_8);
+        writeVarLong(pOut, bytes.length + 1L);
+        pOut.write(bytes);
+    }
+
+    private static String readString(DataInputStream pIn) throws IOException {
+        long length = readVarLong(pIn);
+        if (length == 0) {
+            return null;
+        }
+        if (length - 1 > Integer.MAX_VALUE) {
+            throw new IOException("String of " + (length - 1) + " bytes is too long");
+        }
+        byte[] bytes = new byte[(int) (length - 1)];
+        pIn.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeVarLong(DataOutputStream pOut, long pValue) throws IOException {
+        long value = pValue;
+        while ((value & ~0x7FL) != 0) {
+            pOut.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        pOut.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream pIn) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = pIn.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.fh.JSONArray;
+import org.json.fh.JSONObject;
+
+/**
+ * Hashes of the records of a dataset, grouped into a fixed number of buckets, so that a client
+ * and a server can find out which groups of records differ without exchanging every record hash.
+ *
+ * A record belongs to the bucket given by the first four bytes of the SHA-1 of its uid. The hash
+ * of a bucket is the XOR of SHA-1(uid + ":" + record hash) over its records, which does not
+ * depend on the order of the records and is updated in constant time when one of them changes.
+ * An empty bucket hashes to forty zeros.
+ */
+final class FHSyncBucketHashes {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SHA1_LENGTH = 20;
+
+    private final int mBucketCount;
+    private final byte[][] mHashes;
+    private final List<Map<String, String>> mRecordHashes;
+    private final MessageDigest mDigest = FHSyncUtils.newSha1();
+
+    /**
+     * @param pBucketCount the number of buckets, at least 1
+     */
+    FHSyncBucketHashes(int pBucketCount) {
+        if (pBucketCount < 1) {
+            throw new IllegalArgumentException("At least one bucket is needed");
+        }
+        mBucketCount = pBucketCount;
+        mHashes = new byte[pBucketCount][SHA1_LENGTH];
+        mRecordHashes = new ArrayList<>(pBucketCount);
+        for (int i = 0; i < pBucketCount; i++) {
+            mRecordHashes.add(new HashMap<String, String>());
+        }
+    }
+
+    int getBucketCount() {
+        return mBucketCount;
+    }
+
+    /**
+     * Gets the bucket a uid belongs to.
+     *
+     * @param pUid the record uid
+     * @param pBucketCount the number of buckets
+     * @return the bucket index, between 0 and pBucketCount - 1
+     */
+    static int bucketOf(String pUid, int pBucketCount) {
+        return bucketOf(FHSyncUtils.newSha1(), pUid, pBucketCount);
+    }
+
+    private static int bucketOf(MessageDigest pDigest, String pUid, int pBucketCount) {
+        byte[] digest = pDigest.digest(pUid.getBytes(UTF_8));
+        int prefix = ((digest[0] & 0xff) << 24)
+            | ((digest[1] & 0xff) << 16)
+            | ((digest[2] & 0xff) << 8)
+            | (digest[3] & 0xff);
+        return (prefix & Integer.MAX_VALUE) % pBucketCount;
+    }
+
+    /**
+     * Sets the hash of a record, replacing its previous hash.
+     *
+     * @param pUid the record uid
+     * @param pHash the record hash, or null to leave the record out like {@link #remove(String)}
+     */
+    synchronized void put(String pUid, String pHash) {
+        if (pHash == null) {
+            remove(pUid);
+            return;
+        }
+        int bucket = bucketOf(mDigest, pUid, mBucketCount);
+        String previous = mRecordHashes.get(bucket).put(pUid, pHash);
+        if (pHash.equals(previous)) {
+            return;
+        }
+        if (previous != null) {
+            xorInto(bucket, pUid, previous);
+        }
+        xorInto(bucket, pUid, pHash);
+    }
+
+    synchronized void remove(String pUid) {
+        int bucket = bucketOf(mDigest, pUid, mBucketCount);
+        String previous = mRecordHashes.get(bucket).remove(pUid);
+        if (previous != null) {
+            xorInto(bucket, pUid, previous);
+        }
+    }
+
+    /**
+     * @return the hex encoded hash of every bucket, in bucket order
+     */
+    synchronized JSONArray getHashes() {
+        JSONArray hashes = new JSONArray();
+        for (byte[] hash : mHashes) {
+            hashes.put(FHSyncUtils.encodeHex(hash));
+        }
+        return hashes;
+    }
+
+    /**
+     * Gets the record hashes of some buckets, in the same form as the clientRecs of a full
+     * syncRecords request.
+     *
+     * @param pBuckets the bucket indexes
+     * @return the uid to hash map of the records in those buckets
+     */
+    synchronized JSONObject getRecordHashes(JSONArray pBuckets) {
+        JSONObject records = new JSONObject();
+        for (int i = 0; i < pBuckets.length(); i++) {
+            int bucket = pBuckets.getInt(i);
+            if (bucket < 0 || bucket >= mBucketCount) {
+                throw new IllegalArgumentException("No bucket " + bucket + " in " + mBucketCount + " buckets");
+            }
+            for (Map.Entry<String, String> entry : mRecordHashes.get(bucket).entrySet()) {
+                records.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return records;
+    }
+
+    private void xorInto(int pBucket, String pUid, String pHash) {
+        byte[] digest = mDigest.digest((pUid + ":" + pHash).getBytes(UTF_8));
+        byte[] hash = mHashes[pBucket];
+        for (int i = 0; i < SHA1_LENGTH; i++) {
+            hash[i] ^= digest[i];
+        }
+    }
+}
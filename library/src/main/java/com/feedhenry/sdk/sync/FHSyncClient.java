@@ -19,7 +19,6 @@ import android.app.Activity;
 import android.app.Application;
 import android.content.Context;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.util.Log;
@@ -28,10 +27,13 @@ import com.feedhenry.sdk.FHActCallback;
 import com.feedhenry.sdk.api.FHActRequest;
 import com.feedhenry.sdk.exceptions.DataSetNotFound;
 import com.feedhenry.sdk.exceptions.FHNotReadyException;
-import com.feedhenry.sdk.utils.FHLog;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import org.json.fh.JSONArray;
 import org.json.fh.JSONObject;
 
 /**
@@ -47,17 +49,16 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
 
     protected static final String LOG_TAG = "FHSyncClient";
 
-    private final Handler mHandler;
-
     private Context mContext;
-    private Map<String, FHSyncDataset> mDataSets = new HashMap<String, FHSyncDataset>();
+    private Map<String, FHSyncDataset> mDataSets = new ConcurrentHashMap<String, FHSyncDataset>();
     private FHSyncConfig mConfig = new FHSyncConfig();
     private FHSyncListener mSyncListener = null;
 
     private FHSyncNotificationHandler mNotificationHandler;
+    private final FHSyncNotificationBus mNotificationBus = new FHSyncNotificationBus();
 
     private boolean mInitialised = false;
-    private MonitorTask mMonitorTask = null;
+    private FHSyncScheduler mScheduler = null;
 
     /**
      * FHSyncClient will perform some sniffing of its environment and, if it thinks it is being
@@ -84,12 +85,6 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
         return mInstance;
     }
 
-    public FHSyncClient() {
-        HandlerThread thread = new HandlerThread("FHSyncClient");
-        thread.start();
-        mHandler = new Handler(thread.getLooper());
-    }
-
     /**
      * Initializes the sync client. Should be called every time an app/activity
      * starts.
@@ -113,12 +108,11 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
         }
 
         mInitialised = true;
-        if (null == mMonitorTask) {
-            HandlerThread thread = new HandlerThread("monitor task");
-            thread.start();
-            Handler handler = new Handler(thread.getLooper());
-            mMonitorTask = new MonitorTask();
-            handler.post(mMonitorTask);
+        if (null == mScheduler) {
+            mScheduler = new FHSyncScheduler(this, pConfig.getMaxConcurrentSyncs());
+            mScheduler.start();
+        } else {
+            mScheduler.setMaxConcurrentSyncs(pConfig.getMaxConcurrentSyncs());
         }
     }
 
@@ -173,6 +167,23 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
         }
     }
 
+    /**
+     * Subscribes to the notifications of a dataset. Unlike the sync listener, any number of
+     * subscriptions can be made, and their notifications are sent whatever the notify settings of
+     * the sync config are. Notifications no one has subscribed to are never created.
+     *
+     * @param pDataId the id of the dataset, or null for all the datasets
+     * @param pExecutor runs the listener, e.g. on a thread of the subscriber's choosing
+     * @param pListener the listener to notify
+     * @param pCodes the codes from {@link NotificationMessage} to notify of, or none for all of them
+     * @return the subscription, which lasts until it is cancelled
+     * @throws IllegalArgumentException if the executor or the listener is null, or a code is unknown
+     */
+    public FHSyncSubscription subscribe(
+        String pDataId, Executor pExecutor, FHSyncEventListener pListener, int... pCodes) {
+        return mNotificationBus.subscribe(pDataId, pExecutor, pListener, pCodes);
+    }
+
     /**
      * Uses the sync client to manage a dataset.
      *
@@ -215,6 +226,8 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
             dataset.setSyncRunning(false);
             dataset.setInitialised(true);
         }
+        dataset.setScheduler(mScheduler);
+        dataset.setNotificationBus(mNotificationBus);
 
         dataset.setSyncConfig(syncConfig);
         dataset.setSyncPending(true);
@@ -240,7 +253,8 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
      *
      * @param pDataId The id of the dataset
      * @return all data records. Each record contains a key "uid" with the id
-     * value and a key "data" with the JSON data.
+     * value and a key "data" with the JSON data. The data is a read-only view,
+     * use {@link #update(String, String, JSONObject)} to change it.
      */
     public JSONObject list(String pDataId) {
         FHSyncDataset dataset = mDataSets.get(pDataId);
@@ -251,13 +265,81 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
         return data;
     }
 
+    /**
+     * Lists a page of the data in the dataset with pDataId. Records are selected with pFilter
+     * and ordered with pSort, without copying the whole dataset, which makes it suitable for
+     * paging through large datasets.
+     *
+     * @param pDataId The id of the dataset
+     * @param pFilter selects the records to return, null for all records
+     * @param pSort orders the records by their data, null to order them by uid. Records the
+     * comparator considers equal are ordered by uid, so pages are stable.
+     * @param pOffset the number of matching records to skip
+     * @param pLimit the maximum number of records to return
+     * @return the records of the page in order, or null if the dataset is unknown. Each record
+     * contains a key "uid" with the id value and a key "data" with a read-only view of the data.
+     */
+    public JSONArray list(String pDataId, FHSyncFilter pFilter, Comparator<JSONObject> pSort, int pOffset, int pLimit) {
+        FHSyncDataset dataset = mDataSets.get(pDataId);
+        JSONArray data = null;
+        if (null != dataset) {
+            data = dataset.listData(pFilter, pSort, pOffset, pLimit);
+        }
+        return data;
+    }
+
+    /**
+     * Finds the records of a dataset whose field equals a value, using an index instead of reading
+     * every record. The field must be listed in {@link FHSyncConfig#setIndexedFields(java.util.List)}
+     * for the dataset.
+     *
+     * @param pDataId The id of the dataset
+     * @param pField the indexed field, with dots separating the names of nested objects
+     * @param pValue a string, number or boolean
+     * @return the matching records ordered by uid, or null if the dataset is unknown. Each record
+     * contains a key "uid" with the id value and a key "data" with a read-only view of the data.
+     * @throws IllegalArgumentException if the field is not indexed
+     */
+    public JSONArray findBy(String pDataId, String pField, Object pValue) {
+        FHSyncDataset dataset = mDataSets.get(pDataId);
+        JSONArray data = null;
+        if (null != dataset) {
+            data = dataset.findBy(pField, pValue);
+        }
+        return data;
+    }
+
+    /**
+     * Finds the records of a dataset whose field is between two values, both inclusive, using an
+     * index instead of reading every record. The field must be listed in
+     * {@link FHSyncConfig#setIndexedFields(java.util.List)} for the dataset.
+     *
+     * @param pDataId The id of the dataset
+     * @param pField the indexed field, with dots separating the names of nested objects
+     * @param pFrom the lower bound, or null for no lower bound
+     * @param pTo the upper bound, or null for no upper bound
+     * @return the matching records ordered by the field value, or null if the dataset is unknown.
+     * Each record contains a key "uid" with the id value and a key "data" with a read-only view
+     * of the data.
+     * @throws IllegalArgumentException if the field is not indexed
+     */
+    public JSONArray findRange(String pDataId, String pField, Object pFrom, Object pTo) {
+        FHSyncDataset dataset = mDataSets.get(pDataId);
+        JSONArray data = null;
+        if (null != dataset) {
+            data = dataset.findRange(pField, pFrom, pTo);
+        }
+        return data;
+    }
+
     /**
      * Reads a data record with pUID in dataset with pDataId.
      *
      * @param pDataId the id of the dataset
      * @param pUID the id of the data record
      * @return the data record. Each record contains a key "uid" with the id
-     * value and a key "data" with the JSON data.
+     * value and a key "data" with the JSON data. The data is a read-only view,
+     * use {@link #update(String, String, JSONObject)} to change it.
      */
     public JSONObject read(String pDataId, String pUID) {
         FHSyncDataset dataset = mDataSets.get(pDataId);
@@ -274,7 +356,7 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
      * @param pDataId the id of the dataset
      * @param pData the actual data
      * @return the created data record. Each record contains a key "uid" with
-     * the id value and a key "data" with the JSON data.
+     * the id value and a key "data" with the read-only JSON data.
      * @throws DataSetNotFound if the dataId is not known
      */
     public JSONObject create(String pDataId, JSONObject pData) throws DataSetNotFound {
@@ -293,7 +375,7 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
      * @param pUID the id of the data record
      * @param pData the new content of the data record
      * @return the updated data record. Each record contains a key "uid" with
-     * the id value and a key "data" with the JSON data.
+     * the id value and a key "data" with the read-only JSON data.
      * @throws DataSetNotFound if the dataId is not known
      */
     public JSONObject update(String pDataId, String pUID, JSONObject pData) throws DataSetNotFound {
@@ -311,7 +393,7 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
      * @param pDataId the id of the dataset
      * @param pUID the id of the data record
      * @return the deleted data record. Each record contains a key "uid" with
-     * the id value and a key "data" with the JSON data.
+     * the id value and a key "data" with the read-only JSON data.
      * @throws DataSetNotFound if the dataId is not known
      */
     public JSONObject delete(String pDataId, String pUID) throws DataSetNotFound {
@@ -323,6 +405,64 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
         }
     }
 
+    /**
+     * Creates data records in dataset with pDataId as a single local change. The dataset is
+     * written once and a single notification lists the ids of the records, see
+     * {@link NotificationMessage#getUIDs()}.
+     *
+     * @param pDataId the id of the dataset
+     * @param pData the data of the records
+     * @return the created data records, in the order of pData. Each record contains a key "uid"
+     * with the id value and a key "data" with the read-only JSON data.
+     * @throws DataSetNotFound if the dataId is not known
+     */
+    public JSONArray createAll(String pDataId, List<JSONObject> pData) throws DataSetNotFound {
+        FHSyncDataset dataset = mDataSets.get(pDataId);
+        if (null != dataset) {
+            return dataset.createAll(pData);
+        } else {
+            throw new DataSetNotFound("Unknown dataId : " + pDataId);
+        }
+    }
+
+    /**
+     * Updates existing data records in dataset with pDataId as a single local change, see
+     * {@link #createAll(String, List)}. Ids that are not in the dataset are ignored.
+     *
+     * @param pDataId the id of the dataset
+     * @param pUpdates the new content of the data records, keyed by id
+     * @return the updated data records. Each record contains a key "uid" with the id value and a
+     * key "data" with the read-only JSON data.
+     * @throws DataSetNotFound if the dataId is not known
+     */
+    public JSONArray updateAll(String pDataId, Map<String, JSONObject> pUpdates) throws DataSetNotFound {
+        FHSyncDataset dataset = mDataSets.get(pDataId);
+        if (null != dataset) {
+            return dataset.updateAll(pUpdates);
+        } else {
+            throw new DataSetNotFound("Unknown dataId : " + pDataId);
+        }
+    }
+
+    /**
+     * Deletes data records in dataset with pDataId as a single local change, see
+     * {@link #createAll(String, List)}. Ids that are not in the dataset are ignored.
+     *
+     * @param pDataId the id of the dataset
+     * @param pUIDs the ids of the data records
+     * @return the deleted data records. Each record contains a key "uid" with the id value and a
+     * key "data" with the read-only JSON data.
+     * @throws DataSetNotFound if the dataId is not known
+     */
+    public JSONArray deleteAll(String pDataId, Collection<String> pUIDs) throws DataSetNotFound {
+        FHSyncDataset dataset = mDataSets.get(pDataId);
+        if (null != dataset) {
+            return dataset.deleteAll(pUIDs);
+        } else {
+            throw new DataSetNotFound("Unknown dataId : " + pDataId);
+        }
+    }
+
     /**
      * Lists sync collisions in dataset with id pDataId.
      *
@@ -404,19 +544,28 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
      */
     public void destroy() {
         if (mInitialised) {
-            if (null != mMonitorTask) {
-                mMonitorTask.stopRunning();
+            if (null != mScheduler) {
+                mScheduler.stop();
+                mScheduler = null;
             }
-            for (String key : mDataSets.keySet()) {
-                stop(key);
+            for (FHSyncDataset dataset : mDataSets.values()) {
+                dataset.stopSync(true);
+                dataset.setScheduler(null);
             }
             mSyncListener = null;
             mNotificationHandler = null;
-            mDataSets = new HashMap<String, FHSyncDataset>();
+            mDataSets = new ConcurrentHashMap<String, FHSyncDataset>();
             mInitialised = false;
         }
     }
 
+    /**
+     * @return the datasets managed by the sync client, for the scheduler to go through
+     */
+    Map<String, FHSyncDataset> getDataSets() {
+        return mDataSets;
+    }
+
     @Override
     public void onActivityCreated(Activity activity, Bundle bundle) {
 
@@ -462,60 +611,4 @@ public class FHSyncClient implements Application.ActivityLifecycleCallbacks {
         return pContext instanceof Activity;
 
     }
-
-    private class MonitorTask implements Runnable {
-
-        private boolean mKeepRunning = true;
-
-        public void stopRunning() {
-            mKeepRunning = false;
-            Thread.currentThread().interrupt();
-        }
-
-        private void checkDatasets() {
-            if (null != mDataSets) {
-                for (Map.Entry<String, FHSyncDataset> entry : mDataSets.entrySet()) {
-                    final FHSyncDataset dataset = entry.getValue();
-                    boolean syncRunning = dataset.isSyncRunning();
-                    if (!syncRunning && !dataset.isStopSync()) {
-                        // sync isn't running for dataId at the moment, check if needs to start it
-                        Date lastSyncStart = dataset.getSyncStart();
-                        Date lastSyncEnd = dataset.getSyncEnd();
-                        if (null == lastSyncStart) {
-                            dataset.setSyncPending(true);
-                        } else if (null != lastSyncEnd) {
-                            long interval = new Date().getTime() - lastSyncEnd.getTime();
-                            if (interval > dataset.getSyncConfig().getSyncFrequency() * 1000) {
-                                Log.d(LOG_TAG, "Should start sync!!");
-                                dataset.setSyncPending(true);
-                            }
-                        }
-
-                        if (dataset.isSyncPending()) {
-                            mHandler.post(
-                                    new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            dataset.startSyncLoop();
-                                        }
-                                    });
-                        }
-                    }
-                }
-            }
-        }
-
-        @Override
-        public void run() {
-            while (mKeepRunning && !Thread.currentThread().isInterrupted()) {
-                checkDatasets();
-                try {
-                    Thread.sleep(1000);
-                } catch (Exception e) {
-                    FHLog.e(LOG_TAG, "MonitorTask thread is interrupted", e);
-                    Thread.currentThread().interrupt();
-                }
-            }
-        }
-    }
 }
@@ -15,6 +15,10 @@
  */
 package com.feedhenry.sdk.sync;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.json.fh.JSONArray;
 import org.json.fh.JSONObject;
 
 /**
@@ -22,6 +26,16 @@ import org.json.fh.JSONObject;
  */
 public class FHSyncConfig {
 
+    /**
+     * Keeps each dataset in memory and persists it to a JSON file. This is the default.
+     */
+    public static final String STORAGE_FILE = "file";
+
+    /**
+     * Keeps the records of each dataset in an SQLite database and only loads them when needed.
+     */
+    public static final String STORAGE_SQLITE = "sqlite";
+
     private int mSyncFrequencySeconds = 10;
     private boolean mAutoSyncLocalUpdates = false;
     private boolean mNotifySyncStarted = false;
@@ -34,10 +48,22 @@ public class FHSyncConfig {
     private boolean mNotifyDeltaReceived = false;
     private boolean mNotifySyncFailed = false;
     private boolean mNotifyClientStorageFailed = false;
+    private boolean mBatchNotifications = false;
     private int mCrashCountWait = 10;
     private boolean mResendCrashedUpdates = true;
     private boolean mUseCustomSync = false;
     private boolean suppressActivityWarnings = false;
+    private boolean mUseJournal = false;
+    private boolean mUseBinarySnapshot = false;
+    private int mJournalCompactionThreshold = 100;
+    private List<String> mIndexedFields = Collections.emptyList();
+    private String mStorage = STORAGE_FILE;
+    private int mHashBuckets = 0;
+    private int mMaxPendingBatchRecords = 0;
+    private int mMaxPendingBatchBytes = 0;
+    private int mMaxConcurrentSyncs = 4;
+    private int mLocalUpdateDebounceMillis = 0;
+    private int mLocalUpdateMaxDelayMillis = 0;
 
     private static final String KEY_SYNC_FREQUENCY = "syncFrequency";
     private static final String KEY_AUTO_SYNC_UPDATES = "autoSyncLocalUpdates";
@@ -51,8 +77,20 @@ public class FHSyncConfig {
     private static final String KEY_NOTIFY_LOCAL_UPDATE_APPLIED = "notifyLocalUpdateApplied";
     private static final String KEY_NOTIFY_REMOTE_UPDATED_FAILED = "notifyRemoteUpdateFailed";
     private static final String KEY_NOTIFY_SYNC_FAILED = "notifySyncFailed";
+    private static final String KEY_BATCH_NOTIFICATIONS = "batchNotifications";
     private static final String KEY_CRASHCOUNT = "crashCountWait";
     private static final String KEY_RESEND_CRASH = "resendCrashdUpdates";
+    private static final String KEY_USE_JOURNAL = "useJournal";
+    private static final String KEY_JOURNAL_COMPACTION_THRESHOLD = "journalCompactionThreshold";
+    private static final String KEY_USE_BINARY_SNAPSHOT = "useBinarySnapshot";
+    private static final String KEY_INDEXED_FIELDS = "indexedFields";
+    private static final String KEY_STORAGE = "storage";
+    private static final String KEY_HASH_BUCKETS = "hashBuckets";
+    private static final String KEY_MAX_PENDING_BATCH_RECORDS = "maxPendingBatchRecords";
+    private static final String KEY_MAX_PENDING_BATCH_BYTES = "maxPendingBatchBytes";
+    private static final String KEY_MAX_CONCURRENT_SYNCS = "maxConcurrentSyncs";
+    private static final String KEY_LOCAL_UPDATE_DEBOUNCE = "localUpdateDebounceMillis";
+    private static final String KEY_LOCAL_UPDATE_MAX_DELAY = "localUpdateMaxDelayMillis";
 
 
     /**
@@ -253,6 +291,30 @@ public class FHSyncConfig {
         return this.mNotifyClientStorageFailed;
     }
 
+    /**
+     * Gets whether the record events of a sync are notified in batches.
+     *
+     * @return whether record events are batched
+     */
+    public boolean isBatchNotifications() {
+        return mBatchNotifications;
+    }
+
+    /**
+     * Sets if the record events of a sync (delta received, remote update applied, remote update
+     * failed and collision detected) should be notified in batches rather than one by one. The
+     * listener then gets one notification per kind of event and sync phase, listing the records
+     * in {@link NotificationMessage#getUIDs()}. Notifications that have not been delivered yet
+     * take in the records of later ones, so a busy looper is not flooded. Batched notifications
+     * do not carry the per-record details found in {@link NotificationMessage#getMessage()} of
+     * remote update notifications.
+     *
+     * @param pBatchNotifications whether to batch record events
+     */
+    public void setBatchNotifications(boolean pBatchNotifications) {
+        this.mBatchNotifications = pBatchNotifications;
+    }
+
     /**
      * Gets whether the sync client automatically updates on local changes.
      *
@@ -271,6 +333,47 @@ public class FHSyncConfig {
         this.mAutoSyncLocalUpdates = mAutoSyncLocalUpdates;
     }
 
+    /**
+     * Gets how long local changes are left to settle before they are synced automatically.
+     *
+     * @return the debounce window in milliseconds, 0 if every local change starts a sync
+     */
+    public int getLocalUpdateDebounceMillis() {
+        return mLocalUpdateDebounceMillis;
+    }
+
+    /**
+     * Sets how long local changes are left to settle before they are synced automatically, when
+     * {@link #setAutoSyncLocalUpdates(boolean)} is on. A sync starts once no local change has been
+     * made for this long, so a burst of changes is uploaded by a single sync loop.
+     *
+     * @param pLocalUpdateDebounceMillis the debounce window in milliseconds, or 0 to start a sync
+     * on every local change
+     */
+    public void setLocalUpdateDebounceMillis(int pLocalUpdateDebounceMillis) {
+        this.mLocalUpdateDebounceMillis = pLocalUpdateDebounceMillis;
+    }
+
+    /**
+     * Gets the longest time a debounced local change waits before it is synced.
+     *
+     * @return the maximum delay in milliseconds, 0 if there is no bound
+     */
+    public int getLocalUpdateMaxDelayMillis() {
+        return mLocalUpdateMaxDelayMillis;
+    }
+
+    /**
+     * Sets the longest time a debounced local change waits before it is synced, so that changes
+     * that keep coming do not hold back the sync forever. It only applies when
+     * {@link #setLocalUpdateDebounceMillis(int)} is set.
+     *
+     * @param pLocalUpdateMaxDelayMillis the maximum delay in milliseconds, or 0 for no bound
+     */
+    public void setLocalUpdateMaxDelayMillis(int pLocalUpdateMaxDelayMillis) {
+        this.mLocalUpdateMaxDelayMillis = pLocalUpdateMaxDelayMillis;
+    }
+
     /**
      * Gets the maximum crash count.
      *
@@ -322,6 +425,197 @@ public class FHSyncConfig {
      */
     public boolean useCustomSync() { return this.mUseCustomSync; };
 
+    /**
+     * Gets whether local changes are appended to a journal instead of rewriting the whole dataset file.
+     *
+     * @return true if journaled persistence is enabled
+     */
+    public boolean isUseJournal() {
+        return mUseJournal;
+    }
+
+    /**
+     * Sets whether local changes should be appended to a journal instead of rewriting the whole
+     * dataset file on every change. The journal is folded back into the dataset file when a sync
+     * loop completes or when it grows past the compaction threshold.
+     *
+     * @param pUseJournal true to enable journaled persistence
+     */
+    public void setUseJournal(boolean pUseJournal) {
+        this.mUseJournal = pUseJournal;
+    }
+
+    /**
+     * Gets the number of journal entries after which the journal is compacted into the dataset file.
+     *
+     * @return the compaction threshold
+     */
+    public int getJournalCompactionThreshold() {
+        return mJournalCompactionThreshold;
+    }
+
+    /**
+     * Sets the number of journal entries after which the journal is compacted into the dataset file.
+     *
+     * @param pJournalCompactionThreshold the compaction threshold
+     */
+    public void setJournalCompactionThreshold(int pJournalCompactionThreshold) {
+        this.mJournalCompactionThreshold = pJournalCompactionThreshold;
+    }
+
+    /**
+     * Gets whether datasets stored in files use the compact binary format instead of JSON.
+     *
+     * @return true if the binary format is used
+     */
+    public boolean isUseBinarySnapshot() {
+        return mUseBinarySnapshot;
+    }
+
+    /**
+     * Sets whether datasets stored in files use the compact binary format instead of JSON. The
+     * binary format stores hashes as raw bytes and numbers as varints, which makes the file
+     * smaller and faster to read and write. A dataset in the other format is converted the next
+     * time it is saved.
+     *
+     * @param pUseBinarySnapshot true to use the binary format
+     */
+    public void setUseBinarySnapshot(boolean pUseBinarySnapshot) {
+        this.mUseBinarySnapshot = pUseBinarySnapshot;
+    }
+
+    /**
+     * Gets the record fields that are indexed for lookups with
+     * {@link FHSyncClient#findBy(String, String, Object)} and
+     * {@link FHSyncClient#findRange(String, String, Object, Object)}.
+     *
+     * @return the indexed field names
+     */
+    public List<String> getIndexedFields() {
+        return mIndexedFields;
+    }
+
+    /**
+     * Sets the record fields that should be indexed. A field name may use dots to reach into
+     * nested objects, e.g. "address.city". Only string, number and boolean values are indexed.
+     *
+     * @param pIndexedFields the field names to index
+     */
+    public void setIndexedFields(List<String> pIndexedFields) {
+        if (pIndexedFields == null || pIndexedFields.isEmpty()) {
+            this.mIndexedFields = Collections.emptyList();
+        } else {
+            this.mIndexedFields = Collections.unmodifiableList(new ArrayList<>(pIndexedFields));
+        }
+    }
+
+    /**
+     * Gets how datasets are stored on the device.
+     *
+     * @return {@link #STORAGE_FILE} or {@link #STORAGE_SQLITE}
+     */
+    public String getStorage() {
+        return mStorage;
+    }
+
+    /**
+     * Sets how datasets are stored on the device. Use {@link #STORAGE_SQLITE} for datasets that
+     * are too large to be kept in memory. A dataset stored in a file is moved to the database the
+     * first time it is opened with {@link #STORAGE_SQLITE}.
+     *
+     * @param pStorage {@link #STORAGE_FILE} or {@link #STORAGE_SQLITE}
+     */
+    public void setStorage(String pStorage) {
+        this.mStorage = pStorage;
+    }
+
+    /**
+     * Gets the number of buckets the record hashes are grouped into when the local records are
+     * compared with the cloud.
+     *
+     * @return the number of buckets, 0 if bucketed comparison is off
+     */
+    public int getHashBuckets() {
+        return mHashBuckets;
+    }
+
+    /**
+     * Sets the number of buckets the record hashes are grouped into when the local records are
+     * compared with the cloud. When it is on, and the cloud app supports it, only the hashes of
+     * the buckets that differ are uploaded instead of the hash of every record. Cloud apps that do
+     * not support it get the full list of hashes as before. 256 buckets suit datasets of a few
+     * thousand records and up.
+     *
+     * @param pHashBuckets the number of buckets, or 0 to turn bucketed comparison off
+     */
+    public void setHashBuckets(int pHashBuckets) {
+        this.mHashBuckets = pHashBuckets;
+    }
+
+    /**
+     * Gets the maximum number of pending changes uploaded by a single sync loop.
+     *
+     * @return the maximum number of changes, 0 if there is no limit
+     */
+    public int getMaxPendingBatchRecords() {
+        return mMaxPendingBatchRecords;
+    }
+
+    /**
+     * Sets the maximum number of pending changes uploaded by a single sync loop. The changes that
+     * do not fit are left for the sync loops that follow, which start without waiting for the sync
+     * frequency, so that a long offline period is not uploaded in one request that is likely to
+     * time out.
+     *
+     * @param pMaxPendingBatchRecords the maximum number of changes, or 0 for no limit
+     */
+    public void setMaxPendingBatchRecords(int pMaxPendingBatchRecords) {
+        this.mMaxPendingBatchRecords = pMaxPendingBatchRecords;
+    }
+
+    /**
+     * Gets the maximum size in bytes of the pending changes uploaded by a single sync loop.
+     *
+     * @return the maximum size, 0 if there is no limit
+     */
+    public int getMaxPendingBatchBytes() {
+        return mMaxPendingBatchBytes;
+    }
+
+    /**
+     * Sets the maximum size in bytes of the pending changes uploaded by a single sync loop, as
+     * they are encoded in the request. A change that is larger than the limit on its own is
+     * still uploaded, in a sync loop of its own.
+     *
+     * @param pMaxPendingBatchBytes the maximum size, or 0 for no limit
+     */
+    public void setMaxPendingBatchBytes(int pMaxPendingBatchBytes) {
+        this.mMaxPendingBatchBytes = pMaxPendingBatchBytes;
+    }
+
+    /**
+     * Gets the maximum number of datasets whose sync loops run at the same time.
+     *
+     * @return the maximum number of sync loops
+     */
+    public int getMaxConcurrentSyncs() {
+        return mMaxConcurrentSyncs;
+    }
+
+    /**
+     * Sets the maximum number of datasets whose sync loops run at the same time. Datasets that are
+     * due while the limit is reached start as soon as another sync loop completes. Only the
+     * configuration passed to {@link FHSyncClient#init} sets the limit; the default is 4.
+     *
+     * @param pMaxConcurrentSyncs the maximum number of sync loops, at least 1
+     */
+    public void setMaxConcurrentSyncs(int pMaxConcurrentSyncs) {
+        if (pMaxConcurrentSyncs < 1) {
+            throw new IllegalArgumentException("maxConcurrentSyncs must be at least 1");
+        }
+        this.mMaxConcurrentSyncs = pMaxConcurrentSyncs;
+    }
+
     /**
      * Gets a JSON representation of the configuration object.
      *
@@ -341,8 +635,20 @@ public class FHSyncConfig {
         ret.put(KEY_NOTIFY_LOCAL_UPDATE_APPLIED, this.mNotifyLocalUpdateApplied);
         ret.put(KEY_NOTIFY_REMOTE_UPDATED_FAILED, this.mNotifyRemoteUpdateFailed);
         ret.put(KEY_NOTIFY_SYNC_FAILED, this.mNotifySyncFailed);
+        ret.put(KEY_BATCH_NOTIFICATIONS, this.mBatchNotifications);
         ret.put(KEY_CRASHCOUNT, this.mCrashCountWait);
         ret.put(KEY_RESEND_CRASH, this.mResendCrashedUpdates);
+        ret.put(KEY_USE_JOURNAL, this.mUseJournal);
+        ret.put(KEY_JOURNAL_COMPACTION_THRESHOLD, this.mJournalCompactionThreshold);
+        ret.put(KEY_USE_BINARY_SNAPSHOT, this.mUseBinarySnapshot);
+        ret.put(KEY_INDEXED_FIELDS, new JSONArray(this.mIndexedFields));
+        ret.put(KEY_STORAGE, this.mStorage);
+        ret.put(KEY_HASH_BUCKETS, this.mHashBuckets);
+        ret.put(KEY_MAX_PENDING_BATCH_RECORDS, this.mMaxPendingBatchRecords);
+        ret.put(KEY_MAX_PENDING_BATCH_BYTES, this.mMaxPendingBatchBytes);
+        ret.put(KEY_MAX_CONCURRENT_SYNCS, this.mMaxConcurrentSyncs);
+        ret.put(KEY_LOCAL_UPDATE_DEBOUNCE, this.mLocalUpdateDebounceMillis);
+        ret.put(KEY_LOCAL_UPDATE_MAX_DELAY, this.mLocalUpdateMaxDelayMillis);
         return ret;
     }
 
@@ -366,8 +672,27 @@ public class FHSyncConfig {
         config.setNotifyLocalUpdateApplied(pObj.optBoolean(KEY_NOTIFY_LOCAL_UPDATE_APPLIED));
         config.setNotifyUpdateFailed(pObj.optBoolean(KEY_NOTIFY_REMOTE_UPDATED_FAILED));
         config.setNotifySyncFailed(pObj.optBoolean(KEY_NOTIFY_SYNC_FAILED));
+        config.setBatchNotifications(pObj.optBoolean(KEY_BATCH_NOTIFICATIONS));
         config.setCrashCountWait(pObj.optInt(KEY_CRASHCOUNT, 10));
         config.setResendCrashedUpdates(pObj.optBoolean(KEY_RESEND_CRASH));
+        config.setUseJournal(pObj.optBoolean(KEY_USE_JOURNAL));
+        config.setJournalCompactionThreshold(pObj.optInt(KEY_JOURNAL_COMPACTION_THRESHOLD, 100));
+        config.setUseBinarySnapshot(pObj.optBoolean(KEY_USE_BINARY_SNAPSHOT));
+        JSONArray indexedFields = pObj.optJSONArray(KEY_INDEXED_FIELDS);
+        if (indexedFields != null) {
+            List<String> fields = new ArrayList<>();
+            for (int i = 0; i < indexedFields.length(); i++) {
+                fields.add(indexedFields.getString(i));
+            }
+            config.setIndexedFields(fields);
+        }
+        config.setStorage(pObj.optString(KEY_STORAGE, STORAGE_FILE));
+        config.setHashBuckets(pObj.optInt(KEY_HASH_BUCKETS));
+        config.setMaxPendingBatchRecords(pObj.optInt(KEY_MAX_PENDING_BATCH_RECORDS));
+        config.setMaxPendingBatchBytes(pObj.optInt(KEY_MAX_PENDING_BATCH_BYTES));
+        config.setMaxConcurrentSyncs(pObj.optInt(KEY_MAX_CONCURRENT_SYNCS, 4));
+        config.setLocalUpdateDebounceMillis(pObj.optInt(KEY_LOCAL_UPDATE_DEBOUNCE));
+        config.setLocalUpdateMaxDelayMillis(pObj.optInt(KEY_LOCAL_UPDATE_MAX_DELAY));
         return config;
     }
 
@@ -117,4 +117,29 @@ public class FHSyncDataRecord {
         }
         return record;
     }
+
+    /**
+     * Builds a record from JSON read back from local storage. The freshly parsed data is adopted
+     * as is and the stored hash is trusted instead of being recomputed.
+     *
+     * @param pObj the persisted JSON form of a record
+     * @return the record
+     */
+    static FHSyncDataRecord fromPersistedJSON(JSONObject pObj) {
+        FHSyncDataRecord record = fromPersistedData(pObj.optJSONObject(KEY_DATA), pObj.optString(KEY_HASH, null));
+        if (pObj.has(KEY_UID)) {
+            record.setUid(pObj.getString(KEY_UID));
+        }
+        return record;
+    }
+
+    static FHSyncDataRecord fromPersistedData(JSONObject pData, String pHashValue) {
+        FHSyncDataRecord record = new FHSyncDataRecord();
+        record.data = pData;
+        record.hashValue = pHashValue;
+        if (pHashValue == null && pData != null) {
+            record.hashValue = FHSyncUtils.generateObjectHash(pData);
+        }
+        return record;
+    }
 }
@@ -16,7 +16,6 @@
 package com.feedhenry.sdk.sync;
 
 import android.content.Context;
-import android.os.Message;
 import android.util.Log;
 import com.feedhenry.sdk.FH;
 import com.feedhenry.sdk.FHActCallback;
@@ -24,24 +23,24 @@ import com.feedhenry.sdk.FHRemote;
 import com.feedhenry.sdk.FHResponse;
 import com.feedhenry.sdk.exceptions.FHNotReadyException;
 import com.feedhenry.sdk.utils.FHLog;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import org.json.fh.JSONArray;
@@ -50,73 +49,160 @@ import org.json.fh.JSONObject;
 
 public class FHSyncDataset {
 
-    private boolean mSyncRunning;
+    private volatile boolean mSyncRunning;
     private boolean mInitialised;
     private final String mDatasetId;
     private Date mSyncStart;
-    private Date mSyncEnd;
-    private boolean mSyncPending;
-    private FHSyncConfig mSyncConfig = new FHSyncConfig();
-    private final ConcurrentMap<String, FHSyncPendingRecord> mPendingRecords =
-        new ConcurrentHashMap<>();
+    private volatile Date mSyncEnd;
+    private volatile boolean mSyncPending;
+    private volatile FHSyncConfig mSyncConfig = new FHSyncConfig();
+    private final FHSyncPendingStore mPendingRecords = new FHSyncPendingStore();
     
     private final ConcurrentMap<String, String> mUidMappings = new ConcurrentHashMap<>();
-    private ConcurrentMap<String, FHSyncDataRecord> mDataRecords = new ConcurrentHashMap<>();
+    private final FHSyncStorage mStorage;
+    private final Map<String, FHSyncDataRecord> mDataRecords;
+
+    /**
+     * The data records as readers see them, when the storage holds them all in memory. While a
+     * sync response is applied the changes go to mNextSnapshot, which is published once the whole
+     * response is applied, so a reader sees all of its changes or none of them. The notifications
+     * sent and the index changes made meanwhile are held back until then, so that a listener
+     * reading the dataset sees the changes it is told about, and lookups match the records.
+     */
+    private final boolean mSnapshotReads;
+    private volatile FHSyncPersistentMap<FHSyncDataRecord> mSnapshot = FHSyncPersistentMap.empty();
+    private FHSyncPersistentMap<FHSyncDataRecord> mNextSnapshot;
+    private List<Runnable> mHeldNotifications;
+    private Set<String> mHeldIndexChanges;
+
+    /**
+     * The record events of the sync response being applied, by code and message, when the config
+     * asks for them to be notified in batches. Each batch is one of the held notifications.
+     */
+    private Map<Integer, Map<String, List<String>>> mRecordNotifications;
     
-    private JSONObject mQueryParams = new JSONObject();
+    private volatile JSONObject mQueryParams = new JSONObject();
     private JSONObject mMetaData = new JSONObject();
     private JSONObject mCustomMetaData = new JSONObject();
     private String mHashvalue;
     private JSONArray mAcknowledgements = new JSONArray();
-    private boolean mStopSync;
+    private volatile boolean mStopSync;
 
     private Context mContext;
     private FHSyncNotificationHandler mNotificationHandler;
+    private volatile FHSyncScheduler mScheduler;
+    private volatile FHSyncNotificationBus mNotificationBus;
+    private long mFirstLocalChange;
+    private long mLastPendingTimestamp;
+    private long mLastLocalChange;
 
-    private static final String STORAGE_FILE_EXT = ".sync.json";
+    /**
+     * Serializes the changes to the state of the dataset: local changes, sync loops and their
+     * responses all run on it. Reads do not: they use mSnapshot, or the data records themselves,
+     * which are replaced rather than changed once they are stored.
+     */
+    private final FHSyncSerialExecutor mExecutor = new FHSyncSerialExecutor();
+
+    private volatile Map<String, FHSyncIndex> mIndexes = Collections.emptyMap();
+    private volatile FHSyncBucketHashes mBucketHashes;
+    private boolean mCloudSupportsBuckets;
 
     private static final String KEY_DATE_SET_ID = "dataSetId";
-    private static final String KEY_SYNC_LOOP_START = "syncLoopStart";
-    private static final String KEY_SYNC_LOOP_END = "syncLoopEnd";
+    static final String KEY_SYNC_LOOP_START = "syncLoopStart";
+    static final String KEY_SYNC_LOOP_END = "syncLoopEnd";
     private static final String KEY_SYNC_CONFIG = "syncConfig";
-    private static final String KEY_PENDING_RECORDS = "pendingDataRecords";
-    private static final String KEY_DATA_RECORDS = "dataRecords";
+    static final String KEY_PENDING_RECORDS = "pendingDataRecords";
+    static final String KEY_DATA_RECORDS = "dataRecords";
     private static final String KEY_HASHVALUE = "hashValue";
     private static final String KEY_ACKNOWLEDGEMENTS = "acknowledgements";
     private static final String KEY_QUERY_PARAMS = "queryParams";
-    private static final String KEY_METADATA = "metaData";
+    static final String KEY_METADATA = "metaData";
+    private static final String KEY_UID_MAPPINGS = "uidMappings";
+    private static final String KEY_BUCKET_COUNT = "bucket_count";
+    private static final String KEY_CLIENT_BUCKETS = "client_buckets";
+    private static final String KEY_BUCKETS = "buckets";
 
     private static final String LOG_TAG = "com.feedhenry.sdk.sync.FHSyncDataset";
+    // the fewest records worth hashing on a thread of their own
+    private static final int MIN_PARALLEL_CHUNK = 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Comparator<FHSyncPendingRecord> PENDING_TIMESTAMP_ORDER = new Comparator<FHSyncPendingRecord>() {
+        @Override
+        public int compare(FHSyncPendingRecord pFirst, FHSyncPendingRecord pSecond) {
+            if (pFirst.getTimestamp() == pSecond.getTimestamp()) {
+                return 0;
+            }
+            return pFirst.getTimestamp() < pSecond.getTimestamp() ? -1 : 1;
+        }
+    };
 
     public FHSyncDataset(
         Context pContext, FHSyncNotificationHandler pHandler, String pDatasetId,
         FHSyncConfig pConfig, JSONObject pQueryParams, JSONObject pMetaData) {
+        this(pContext, pHandler, pDatasetId, pConfig, pQueryParams, pMetaData, createStorage(pContext, pDatasetId, pConfig));
+    }
+
+    /**
+     * Creates a dataset that is persisted by the given storage.
+     */
+    public FHSyncDataset(
+        Context pContext, FHSyncNotificationHandler pHandler, String pDatasetId,
+        FHSyncConfig pConfig, JSONObject pQueryParams, JSONObject pMetaData, FHSyncStorage pStorage) {
         mContext = pContext;
         mNotificationHandler = pHandler;
         mDatasetId = pDatasetId;
         mSyncConfig = pConfig;
         mQueryParams = pQueryParams;
         mCustomMetaData = pMetaData;
-        readFromFile();
+        mStorage = pStorage;
+        mDataRecords = pStorage.getDataRecords();
+        mSnapshotReads = pStorage.isInMemory();
+        mStorage.configure(pConfig);
+        readFromStorage();
     }
 
-    public JSONObject getJSON() {
-        JSONObject ret = new JSONObject();
-        if (mHashvalue != null) {
-            ret.put(KEY_HASHVALUE, mHashvalue);
+    private static FHSyncStorage createStorage(Context pContext, String pDatasetId, FHSyncConfig pConfig) {
+        if (FHSyncConfig.STORAGE_SQLITE.equals(pConfig.getStorage())) {
+            return new FHSyncSQLiteStorage(pContext, pDatasetId);
         }
-        ret.put(KEY_DATE_SET_ID, mDatasetId);
-        ret.put(KEY_SYNC_CONFIG, mSyncConfig.getJSON());
+        return new FHSyncFileStorage(pContext, pDatasetId);
+    }
+
+    public JSONObject getJSON() {
+        return mExecutor.call(new Callable<JSONObject>() {
+            @Override
+            public JSONObject call() {
+                return buildJSON();
+            }
+        });
+    }
+
+    private JSONObject buildJSON() {
+        JSONObject ret = getHeaderJSON();
         JSONObject pendingJson = new JSONObject();
-        for (String key : mPendingRecords.keySet()) {
-            pendingJson.put(key, mPendingRecords.get(key).getJSON());
+        for (Map.Entry<String, FHSyncPendingRecord> entry : mPendingRecords.entrySet()) {
+            pendingJson.put(entry.getKey(), entry.getValue().getJSON());
         }
         ret.put(KEY_PENDING_RECORDS, pendingJson);
         JSONObject dataJson = new JSONObject();
-        for (String dkey : mDataRecords.keySet()) {
-            dataJson.put(dkey, mDataRecords.get(dkey).getJSON());
+        for (Map.Entry<String, FHSyncDataRecord> entry : mDataRecords.entrySet()) {
+            dataJson.put(entry.getKey(), entry.getValue().getJSON());
         }
         ret.put(KEY_DATA_RECORDS, dataJson);
+        return ret;
+    }
+
+    /**
+     * Gets everything about the dataset except the data and pending records.
+     */
+    private JSONObject getHeaderJSON() {
+        JSONObject ret = new JSONObject();
+        if (mHashvalue != null) {
+            ret.put(KEY_HASHVALUE, mHashvalue);
+        }
+        ret.put(KEY_DATE_SET_ID, mDatasetId);
+        ret.put(KEY_SYNC_CONFIG, mSyncConfig.getJSON());
         if (this.mSyncStart != null) {
             ret.put(KEY_SYNC_LOOP_START, this.mSyncStart.getTime());
         }
@@ -126,28 +212,306 @@ public class FHSyncDataset {
         ret.put(KEY_ACKNOWLEDGEMENTS, mAcknowledgements);
         ret.put(KEY_QUERY_PARAMS, mQueryParams);
         ret.put(KEY_METADATA, mMetaData);
+        ret.put(KEY_UID_MAPPINGS, new JSONObject(mUidMappings));
         return ret;
     }
 
     public JSONObject listData() {
         JSONObject ret = new JSONObject();
-        for (String key : this.mDataRecords.keySet()) {
-            FHSyncDataRecord dataRecord = this.mDataRecords.get(key);
+        for (Map.Entry<String, FHSyncDataRecord> entry : getReadableRecords().entrySet()) {
+            String key = entry.getKey();
+            FHSyncDataRecord dataRecord = entry.getValue();
             JSONObject dataJson = new JSONObject();
-            // return a copy of the data so that any changes made to the data will not affect the original data
-            dataJson.put("data", new JSONObject(dataRecord.getData().toString()));
+            // return a read-only view of the data so that it can't be changed without going through the dataset
+            dataJson.put("data", JSONObject.readOnly(dataRecord.getData()));
             dataJson.put("uid", key);
             ret.put(key, dataJson);
         }
         return ret;
     }
 
+    /**
+     * Lists a page of the records matching a filter, in the order given by a comparator.
+     * Only the records up to the end of the requested page are kept while the dataset is
+     * scanned, so memory use depends on the page and not on the size of the dataset.
+     *
+     * @param pFilter selects the records to return, null for all records
+     * @param pSort orders the record data, null to order by uid
+     * @param pOffset the number of matching records to skip
+     * @param pLimit the maximum number of records to return
+     * @return the records of the page, each with a key "uid" and a key "data" holding a
+     * read-only view of the record data
+     */
+    public JSONArray listData(FHSyncFilter pFilter, final Comparator<JSONObject> pSort, int pOffset, int pLimit) {
+        if (pOffset < 0 || pLimit < 0) {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+        JSONArray ret = new JSONArray();
+        if (pLimit == 0) {
+            return ret;
+        }
+        Comparator<PageEntry> order = new Comparator<PageEntry>() {
+            @Override
+            public int compare(PageEntry pFirst, PageEntry pSecond) {
+                int result = pSort == null ? 0 : pSort.compare(pFirst.mData, pSecond.mData);
+                return result != 0 ? result : pFirst.mUid.compareTo(pSecond.mUid);
+            }
+        };
+        int pageEnd = (int) Math.min((long) pOffset + pLimit, Integer.MAX_VALUE);
+        // keeps the first pageEnd records seen so far, with the last of them at the head
+        PriorityQueue<PageEntry> page = new PriorityQueue<>(Math.min(pageEnd, 64), Collections.reverseOrder(order));
+        for (Map.Entry<String, FHSyncDataRecord> entry : getReadableRecords().entrySet()) {
+            JSONObject data = entry.getValue().getData();
+            if (data == null) {
+                continue;
+            }
+            PageEntry pageEntry = new PageEntry(entry.getKey(), JSONObject.readOnly(data));
+            if (pFilter != null && !pFilter.accept(pageEntry.mUid, pageEntry.mData)) {
+                continue;
+            }
+            if (page.size() < pageEnd) {
+                page.offer(pageEntry);
+            } else if (order.compare(pageEntry, page.peek()) < 0) {
+                page.poll();
+                page.offer(pageEntry);
+            }
+        }
+        PageEntry[] sorted = page.toArray(new PageEntry[page.size()]);
+        Arrays.sort(sorted, order);
+        for (int i = pOffset; i < sorted.length; i++) {
+            JSONObject dataJson = new JSONObject();
+            dataJson.put("data", sorted[i].mData);
+            dataJson.put("uid", sorted[i].mUid);
+            ret.put(dataJson);
+        }
+        return ret;
+    }
+
+    /**
+     * Finds the records whose indexed field equals a value.
+     *
+     * @param pField A field listed in {@link FHSyncConfig#getIndexedFields()}
+     * @param pValue A string, number or boolean
+     * @return An array of objects with the uid and a read-only view of the data, ordered by uid
+     * @throws IllegalArgumentException if the field is not indexed
+     */
+    public JSONArray findBy(String pField, Object pValue) {
+        FHSyncIndex index = getIndex(pField);
+        return toRecordArray(index, index.find(pValue), pValue, pValue);
+    }
+
+    /**
+     * Finds the records whose indexed field is between two values, both inclusive.
+     *
+     * @param pField A field listed in {@link FHSyncConfig#getIndexedFields()}
+     * @param pFrom The lower bound, or null for no lower bound
+     * @param pTo The upper bound, or null for no upper bound
+     * @return An array of objects with the uid and a read-only view of the data, ordered by the field value
+     * @throws IllegalArgumentException if the field is not indexed
+     */
+    public JSONArray findRange(String pField, Object pFrom, Object pTo) {
+        FHSyncIndex index = getIndex(pField);
+        return toRecordArray(index, index.findRange(pFrom, pTo), pFrom, pTo);
+    }
+
+    private FHSyncIndex getIndex(String pField) {
+        FHSyncIndex index = mIndexes.get(pField);
+        if (index == null) {
+            throw new IllegalArgumentException("Field " + pField + " is not indexed in dataset " + mDatasetId);
+        }
+        return index;
+    }
+
+    private JSONArray toRecordArray(final FHSyncIndex pIndex, List<String> pUids, Object pFrom, Object pTo) {
+        Map<String, FHSyncDataRecord> records = getReadableRecords();
+        List<PageEntry> found = new ArrayList<>(pUids.size());
+        for (String uid : pUids) {
+            FHSyncDataRecord record = records.get(uid);
+            // the records are read after the index, and may have changed in between
+            if (record != null && record.getData() != null && pIndex.isInRange(record.getData(), pFrom, pTo)) {
+                found.add(new PageEntry(uid, record.getData()));
+            }
+        }
+        // the sort is stable, so records with the same value stay in uid order
+        Collections.sort(found, new Comparator<PageEntry>() {
+            @Override
+            public int compare(PageEntry pFirst, PageEntry pSecond) {
+                return pIndex.compare(pFirst.mData, pSecond.mData);
+            }
+        });
+        JSONArray ret = new JSONArray();
+        for (PageEntry entry : found) {
+            JSONObject dataJson = new JSONObject();
+            dataJson.put("data", JSONObject.readOnly(entry.mData));
+            dataJson.put("uid", entry.mUid);
+            ret.put(dataJson);
+        }
+        return ret;
+    }
+
+    /**
+     * Stores a data record and updates the field indexes and bucket hashes. Every change to
+     * mDataRecords outside of loading the dataset should go through here or
+     * {@link #removeRecord(String)}.
+     */
+    private void putRecord(String pUid, FHSyncDataRecord pRecord) {
+        mDataRecords.put(pUid, pRecord);
+        if (mSnapshotReads) {
+            updateSnapshot(getLatestSnapshot().plus(pUid, pRecord));
+        }
+        updateIndexes(pUid, pRecord);
+        FHSyncBucketHashes bucketHashes = mBucketHashes;
+        if (bucketHashes != null) {
+            bucketHashes.put(pUid, pRecord.getHashValue());
+        }
+    }
+
+    private void removeRecord(String pUid) {
+        mDataRecords.remove(pUid);
+        if (mSnapshotReads) {
+            updateSnapshot(getLatestSnapshot().minus(pUid));
+        }
+        updateIndexes(pUid, null);
+        FHSyncBucketHashes bucketHashes = mBucketHashes;
+        if (bucketHashes != null) {
+            bucketHashes.remove(pUid);
+        }
+    }
+
+    /**
+     * Indexes a changed record straight away, or once {@link #publishSnapshot()} is called while a
+     * sync response is applied, so lookups never find records the snapshot does not show yet.
+     *
+     * @param pRecord the record, or null if it was removed
+     */
+    private void updateIndexes(String pUid, FHSyncDataRecord pRecord) {
+        if (mHeldIndexChanges != null) {
+            mHeldIndexChanges.add(pUid);
+            return;
+        }
+        for (FHSyncIndex index : mIndexes.values()) {
+            if (pRecord == null) {
+                index.remove(pUid);
+            } else {
+                index.put(pUid, pRecord.getData());
+            }
+        }
+    }
+
+    /**
+     * @return the data records readers should see: the published snapshot, or the storage map if
+     * the storage does not hold every record in memory
+     */
+    private Map<String, FHSyncDataRecord> getReadableRecords() {
+        return mSnapshotReads ? mSnapshot : mDataRecords;
+    }
+
+    private FHSyncPersistentMap<FHSyncDataRecord> getLatestSnapshot() {
+        return mNextSnapshot != null ? mNextSnapshot : mSnapshot;
+    }
+
+    /**
+     * Publishes a changed snapshot straight away, or keeps it for {@link #publishSnapshot()} while
+     * a sync response is applied.
+     */
+    private void updateSnapshot(FHSyncPersistentMap<FHSyncDataRecord> pSnapshot) {
+        if (mNextSnapshot != null) {
+            mNextSnapshot = pSnapshot;
+        } else if (pSnapshot != mSnapshot) {
+            mSnapshot = pSnapshot.nextVersion();
+        }
+    }
+
+    /**
+     * Holds back the record changes from readers, and the notifications from listeners, until
+     * {@link #publishSnapshot()} is called.
+     */
+    private void beginSnapshot() {
+        mHeldNotifications = new ArrayList<>();
+        if (mSnapshotReads) {
+            mNextSnapshot = mSnapshot;
+            if (!mIndexes.isEmpty()) {
+                mHeldIndexChanges = new LinkedHashSet<>();
+            }
+        }
+    }
+
+    private void publishSnapshot() {
+        FHSyncPersistentMap<FHSyncDataRecord> next = mNextSnapshot;
+        List<Runnable> notifications = mHeldNotifications;
+        Set<String> indexChanges = mHeldIndexChanges;
+        mNextSnapshot = null;
+        mHeldNotifications = null;
+        mHeldIndexChanges = null;
+        mRecordNotifications = null;
+        if (next != null && next != mSnapshot) {
+            mSnapshot = next.nextVersion();
+        }
+        if (indexChanges != null) {
+            for (String uid : indexChanges) {
+                updateIndexes(uid, mDataRecords.get(uid));
+            }
+        }
+        try {
+            mStorage.flushRecords();
+        } catch (IOException e) {
+            // the records are still written by the next save
+            FHLog.e(LOG_TAG, "Error writing records of dataset: " + mDatasetId, e);
+        }
+        if (notifications != null) {
+            for (Runnable notification : notifications) {
+                notification.run();
+            }
+        }
+    }
+
+    private void rebuildSnapshot() {
+        if (!mSnapshotReads) {
+            return;
+        }
+        FHSyncPersistentMap<FHSyncDataRecord> snapshot = FHSyncPersistentMap.empty();
+        for (Map.Entry<String, FHSyncDataRecord> entry : mDataRecords.entrySet()) {
+            snapshot = snapshot.plus(entry.getKey(), entry.getValue());
+        }
+        mSnapshot = snapshot.nextVersion();
+    }
+
+    private void rebuildIndexes() {
+        List<String> fields = mSyncConfig.getIndexedFields();
+        if (fields.isEmpty()) {
+            mIndexes = Collections.emptyMap();
+            return;
+        }
+        Map<String, FHSyncIndex> indexes = new HashMap<>();
+        for (String field : fields) {
+            FHSyncIndex index = new FHSyncIndex(field);
+            for (Map.Entry<String, FHSyncDataRecord> entry : mDataRecords.entrySet()) {
+                index.put(entry.getKey(), entry.getValue().getData());
+            }
+            indexes.put(field, index);
+        }
+        mIndexes = Collections.unmodifiableMap(indexes);
+    }
+
+    private void rebuildBucketHashes() {
+        int bucketCount = mSyncConfig.getHashBuckets();
+        if (bucketCount <= 0) {
+            mBucketHashes = null;
+            return;
+        }
+        FHSyncBucketHashes bucketHashes = new FHSyncBucketHashes(bucketCount);
+        for (Map.Entry<String, FHSyncDataRecord> entry : mDataRecords.entrySet()) {
+            bucketHashes.put(entry.getKey(), entry.getValue().getHashValue());
+        }
+        mBucketHashes = bucketHashes;
+    }
+
     public JSONObject readData(String pUid) {
-        FHSyncDataRecord dataRecord = mDataRecords.get(pUid);
+        FHSyncDataRecord dataRecord = getReadableRecords().get(pUid);
         if (dataRecord != null) {
             JSONObject ret = new JSONObject();
-            // return a copy of the data so that any changes made to the data will not affect the original data
-            ret.put("data", new JSONObject(dataRecord.getData().toString()));
+            // return a read-only view of the data so that it can't be changed without going through the dataset
+            ret.put("data", JSONObject.readOnly(dataRecord.getData()));
             ret.put("uid", pUid);
             return ret;
         } else {
@@ -155,40 +519,235 @@ public class FHSyncDataset {
         }
     }
 
-    public JSONObject createData(JSONObject pData) {
+    public JSONObject createData(final JSONObject pData) {
+        return mExecutor.call(new Callable<JSONObject>() {
+            @Override
+            public JSONObject call() {
+                return doCreateData(pData);
+            }
+        });
+    }
+
+    private JSONObject doCreateData(JSONObject pData) {
         FHSyncPendingRecord pendingRecord = addPendingObject(null, pData, "create");
         FHSyncDataRecord dataRecord = mDataRecords.get(pendingRecord.getUid());
         JSONObject ret = new JSONObject();
         if (dataRecord != null) {
-            ret.put("data", new JSONObject(dataRecord.getData().toString()));
+            ret.put("data", JSONObject.readOnly(dataRecord.getData()));
             ret.put("uid", pendingRecord.getUid());
         }
         return ret;
     }
 
-    public JSONObject updateData(String pUid, JSONObject pData) {
+    public JSONObject updateData(final String pUid, final JSONObject pData) {
+        return mExecutor.call(new Callable<JSONObject>() {
+            @Override
+            public JSONObject call() {
+                return doUpdateData(pUid, pData);
+            }
+        });
+    }
+
+    private JSONObject doUpdateData(String pUid, JSONObject pData) {
         addPendingObject(pUid, pData, "update");
         FHSyncDataRecord dataRecord = mDataRecords.get(pUid);
         JSONObject ret = new JSONObject();
         if (dataRecord != null) {
-            ret.put("data", new JSONObject(dataRecord.getData().toString()));
+            ret.put("data", JSONObject.readOnly(dataRecord.getData()));
             ret.put("uid", pUid);
         }
         return ret;
     }
 
-    public JSONObject deleteData(String pUid) {
+    public JSONObject deleteData(final String pUid) {
+        return mExecutor.call(new Callable<JSONObject>() {
+            @Override
+            public JSONObject call() {
+                return doDeleteData(pUid);
+            }
+        });
+    }
+
+    private JSONObject doDeleteData(String pUid) {
         FHSyncPendingRecord pendingRecord = addPendingObject(pUid, null, "delete");
         FHSyncDataRecord deleted = pendingRecord.getPreData();
         JSONObject ret = new JSONObject();
         if (deleted != null) {
-            ret.put("data", new JSONObject(deleted.getData().toString()));
+            ret.put("data", JSONObject.readOnly(deleted.getData()));
             ret.put("uid", pUid);
         }
         return ret;
     }
 
+    /**
+     * Creates records as a single local change: the data is hashed in parallel, the dataset is
+     * written once and one LOCAL_UPDATE_APPLIED notification lists the uids of all the records.
+     *
+     * @param pData the data of the records
+     * @return the created records, in the order of pData, each with a key "uid" and a key "data"
+     * holding a read-only view of the data
+     */
+    public JSONArray createAll(List<JSONObject> pData) {
+        final List<FHSyncDataRecord> records = toDataRecords(pData);
+        return mExecutor.call(new Callable<JSONArray>() {
+            @Override
+            public JSONArray call() {
+                List<FHSyncPendingRecord> pendings = new ArrayList<>();
+                for (FHSyncDataRecord record : records) {
+                    pendings.add(newPendingObject(record, "create"));
+                }
+                hashInParallel(pendings);
+                for (FHSyncPendingRecord pending : pendings) {
+                    pending.setUid(pending.getHashValue());
+                }
+                storePendingObjs(pendings, "create");
+                return toRecordArray(pendings, false);
+            }
+        });
+    }
+
+    /**
+     * Updates records as a single local change, see {@link #createAll(List)}. Uids that are not
+     * in the dataset are ignored.
+     *
+     * @param pUpdates the new data of the records, keyed by uid
+     * @return the updated records, each with a key "uid" and a key "data" holding a read-only
+     * view of the data
+     */
+    public JSONArray updateAll(Map<String, JSONObject> pUpdates) {
+        final List<String> uids = new ArrayList<>(pUpdates.keySet());
+        List<JSONObject> data = new ArrayList<>();
+        for (String uid : uids) {
+            data.add(pUpdates.get(uid));
+        }
+        final List<FHSyncDataRecord> records = toDataRecords(data);
+        return mExecutor.call(new Callable<JSONArray>() {
+            @Override
+            public JSONArray call() {
+                List<FHSyncPendingRecord> pendings = new ArrayList<>();
+                for (int i = 0; i < uids.size(); i++) {
+                    FHSyncDataRecord existingData = mDataRecords.get(uids.get(i));
+                    if (existingData != null) {
+                        FHSyncPendingRecord pending = newPendingObject(records.get(i), "update");
+                        pending.setUid(uids.get(i));
+                        pending.setPreData(existingData.clone());
+                        pendings.add(pending);
+                    }
+                }
+                hashInParallel(pendings);
+                storePendingObjs(pendings, "update");
+                return toRecordArray(pendings, false);
+            }
+        });
+    }
+
+    /**
+     * Deletes records as a single local change, see {@link #createAll(List)}. Uids that are not
+     * in the dataset are ignored.
+     *
+     * @param pUids the uids of the records
+     * @return the deleted records, each with a key "uid" and a key "data" holding a read-only
+     * view of the data
+     */
+    public JSONArray deleteAll(Collection<String> pUids) {
+        final Set<String> uids = new LinkedHashSet<>(pUids);
+        return mExecutor.call(new Callable<JSONArray>() {
+            @Override
+            public JSONArray call() {
+                List<FHSyncPendingRecord> pendings = new ArrayList<>();
+                for (String uid : uids) {
+                    FHSyncDataRecord existingData = mDataRecords.get(uid);
+                    if (existingData != null) {
+                        FHSyncPendingRecord pending = newPendingObject(null, "delete");
+                        pending.setUid(uid);
+                        pending.setPreData(existingData.clone());
+                        pendings.add(pending);
+                    }
+                }
+                hashInParallel(pendings);
+                storePendingObjs(pendings, "delete");
+                return toRecordArray(pendings, true);
+            }
+        });
+    }
+
+    /**
+     * Copies and hashes the data of a batch of records in parallel.
+     */
+    private static List<FHSyncDataRecord> toDataRecords(final List<JSONObject> pData) {
+        final FHSyncDataRecord[] records = new FHSyncDataRecord[pData.size()];
+        forEachInParallel(records.length, new IndexedTask() {
+            @Override
+            public void run(int pIndex) {
+                records[pIndex] = new FHSyncDataRecord(pData.get(pIndex));
+            }
+        });
+        return Arrays.asList(records);
+    }
+
+    private static void hashInParallel(final List<FHSyncPendingRecord> pPendings) {
+        forEachInParallel(pPendings.size(), new IndexedTask() {
+            @Override
+            public void run(int pIndex) {
+                pPendings.get(pIndex).getHashValue();
+            }
+        });
+    }
+
+    private interface IndexedTask {
+        void run(int pIndex);
+    }
+
+    /**
+     * Runs a task for every index up to pCount, with the indexes split in a chunk per processor.
+     */
+    private static void forEachInParallel(int pCount, final IndexedTask pTask) {
+        int chunks = Math.min(Runtime.getRuntime().availableProcessors(), (pCount + MIN_PARALLEL_CHUNK - 1) / MIN_PARALLEL_CHUNK);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            final int from = (int) ((long) pCount * chunk / chunks);
+            final int to = (int) ((long) pCount * (chunk + 1) / chunks);
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < to; i++) {
+                        pTask.run(i);
+                    }
+                }
+            });
+        }
+        FHSyncSerialExecutor.runInParallel(tasks);
+    }
+
+    /**
+     * @param pDeleted whether the records were deleted, in which case their previous data is
+     * returned
+     */
+    private JSONArray toRecordArray(List<FHSyncPendingRecord> pPendings, boolean pDeleted) {
+        JSONArray ret = new JSONArray();
+        for (FHSyncPendingRecord pending : pPendings) {
+            FHSyncDataRecord record = pDeleted ? pending.getPreData() : mDataRecords.get(pending.getUid());
+            if (record != null) {
+                JSONObject dataJson = new JSONObject();
+                dataJson.put("data", JSONObject.readOnly(record.getData()));
+                dataJson.put("uid", pending.getUid());
+                ret.put(dataJson);
+            }
+        }
+        return ret;
+    }
+
     public void startSyncLoop() {
+        mExecutor.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                runSyncLoop();
+                return null;
+            }
+        });
+    }
+
+    private void runSyncLoop() {
         mSyncPending = false;
         mSyncRunning = true;
         mSyncStart = new Date();
@@ -205,34 +764,68 @@ public class FHSyncDataset {
                 syncLoopParams.put("dataset_hash", mHashvalue);
             }
             syncLoopParams.put("acknowledgements", mAcknowledgements);
+            FHSyncBucketHashes bucketHashes = mBucketHashes;
+            if (bucketHashes != null) {
+                // offer bucketed comparison, the cloud app echoes the count if it supports it
+                syncLoopParams.put(KEY_BUCKET_COUNT, bucketHashes.getBucketCount());
+            }
+            squashPendingRecords();
+            int maxRecords = mSyncConfig.getMaxPendingBatchRecords();
+            int maxBytes = mSyncConfig.getMaxPendingBatchBytes();
+            int batchBytes = 0;
+            boolean morePending = false;
+            // only the records sent by this loop are marked as crashed if it fails
+            final List<FHSyncPendingRecord> batch = new ArrayList<>();
             JSONArray pendings = new JSONArray();
-            for (String key : mPendingRecords.keySet()) {
-                FHSyncPendingRecord pendingRecord = mPendingRecords.get(key);
-                if (!pendingRecord.isInFlight() && !pendingRecord.isCrashed() && !pendingRecord.isDelayed()) {
-                    pendingRecord.setInFlight(true);
-                    pendingRecord.setInFlightDate(new Date());
-                    JSONObject pendingJSON = pendingRecord.getJSON();
-                    if ("create".equals(pendingRecord.getAction())) {
-                        pendingJSON.put("hash", pendingRecord.getUid());
-                    } else {
-                        pendingJSON.put("hash", pendingRecord.getHashValue());
+            for (FHSyncPendingRecord pendingRecord : mPendingRecords.values()) {
+                if (pendingRecord.isInFlight() || pendingRecord.isCrashed() || pendingRecord.isDelayed()) {
+                    continue;
+                }
+                if (maxRecords > 0 && batch.size() >= maxRecords) {
+                    morePending = true;
+                    break;
+                }
+                pendingRecord.setInFlight(true);
+                pendingRecord.setInFlightDate(new Date());
+                JSONObject pendingJSON = pendingRecord.getJSON();
+                if ("create".equals(pendingRecord.getAction())) {
+                    pendingJSON.put("hash", pendingRecord.getUid());
+                } else {
+                    pendingJSON.put("hash", pendingRecord.getHashValue());
+                }
+                if (maxBytes > 0) {
+                    int bytes = pendingJSON.toString().getBytes(UTF_8).length;
+                    if (!batch.isEmpty() && batchBytes + bytes > maxBytes) {
+                        pendingRecord.setInFlight(false);
+                        pendingRecord.setInFlightDate(null);
+                        morePending = true;
+                        break;
                     }
-                    pendings.put(pendingJSON);
+                    batchBytes += bytes;
                 }
+                batch.add(pendingRecord);
+                pendings.put(pendingJSON);
             }
+            final boolean syncAgain = morePending;
 
             syncLoopParams.put("pending", pendings);
-            FHLog.d(LOG_TAG, "Starting sync loop -global hash = " + mHashvalue + " :: params = " + syncLoopParams);
+            if (FHLog.isLoggable(FH.LOG_LEVEL_DEBUG)) {
+                FHLog.d(LOG_TAG, "Starting sync loop -global hash = " + mHashvalue + " :: params = " + syncLoopParams);
+            }
 
             try {
                 FHRemote actRequest = makeCloudRequest(syncLoopParams);
-                actRequest.executeAsync(
+                actRequest.executeAsync(serially(
                     new FHActCallback() {
 
                         @Override
                         public void success(FHResponse pResponse) {
                             JSONObject responseData = pResponse.getJson();
                             syncRequestSuccess(responseData);
+                            if (syncAgain) {
+                                // upload the next batch without waiting for the sync frequency
+                                setSyncPending(true);
+                            }
                         }
 
                         @Override
@@ -242,7 +835,7 @@ public class FHSyncDataset {
                             is unknown. Mark them as "crashed". The next time a syncLoop completes successfully, we
                             will review the crashed records to see if we can determine their current state.
                             */
-                            markInFlightAsCrashed();
+                            markInFlightAsCrashed(batch);
                             FHLog.e(
                                 LOG_TAG,
                                 "syncLoop failed : msg = " + pResponse.getErrorMessage(),
@@ -250,7 +843,7 @@ public class FHSyncDataset {
                             doNotify(null, NotificationMessage.SYNC_FAILED_CODE, pResponse.getRawResponse());
                             syncCompleteWithCode(pResponse.getRawResponse());
                         }
-                    });
+                    }));
             } catch (Exception e) {
                 FHLog.e(LOG_TAG, "Error performing sync", e);
                 doNotify(null, NotificationMessage.SYNC_FAILED_CODE, e.getMessage());
@@ -260,21 +853,29 @@ public class FHSyncDataset {
     }
 
     private void syncRequestSuccess(JSONObject pData) {
-        // Check to see if any previously crashed inflight records can now be resolved
-        updateCrashedInFlightFromNewData(pData);
-        updateDelayedFromNewData(pData);
-        updateMetaFromNewData(pData);
-
-
-        if (pData.has("updates")) {
-            JSONArray ack = new JSONArray();
-            JSONObject updates = pData.getJSONObject("updates");
-            JSONObject applied = updates.optJSONObject("applied");
-            checkUidChanges(applied);
-            processUpdates(applied, NotificationMessage.REMOTE_UPDATE_APPLIED_CODE, ack);
-            processUpdates(updates.optJSONObject("failed"), NotificationMessage.REMOTE_UPDATE_FAILED_CODE, ack);
-            processUpdates(updates.optJSONObject("collisions"), NotificationMessage.COLLISION_DETECTED_CODE, ack);
-            mAcknowledgements = ack;
+        beginSnapshot();
+        beginRecordNotifications();
+        try {
+            // Check to see if any previously crashed inflight records can now be resolved
+            updateCrashedInFlightFromNewData(pData);
+            updateDelayedFromNewData(pData);
+            updateMetaFromNewData(pData);
+            FHSyncBucketHashes bucketHashes = mBucketHashes;
+            mCloudSupportsBuckets = bucketHashes != null
+                && pData.optInt(KEY_BUCKET_COUNT) == bucketHashes.getBucketCount();
+
+            if (pData.has("updates")) {
+                JSONArray ack = new JSONArray();
+                JSONObject updates = pData.getJSONObject("updates");
+                JSONObject applied = updates.optJSONObject("applied");
+                checkUidChanges(applied);
+                processUpdates(applied, NotificationMessage.REMOTE_UPDATE_APPLIED_CODE, ack);
+                processUpdates(updates.optJSONObject("failed"), NotificationMessage.REMOTE_UPDATE_FAILED_CODE, ack);
+                processUpdates(updates.optJSONObject("collisions"), NotificationMessage.COLLISION_DETECTED_CODE, ack);
+                mAcknowledgements = ack;
+            }
+        } finally {
+            publishSnapshot();
         }
 
         if (pData.has("hash") && !pData.getString("hash").equals(mHashvalue)) {
@@ -292,39 +893,77 @@ public class FHSyncDataset {
     }
 
     private void syncRecords() {
+        FHSyncBucketHashes bucketHashes = mBucketHashes;
+        if (bucketHashes != null && mCloudSupportsBuckets) {
+            syncBuckets(bucketHashes);
+            return;
+        }
         JSONObject clientRecords = new JSONObject();
         for (Map.Entry<String, FHSyncDataRecord> entry : mDataRecords.entrySet()) {
             clientRecords.put(entry.getKey(), entry.getValue().getHashValue());
         }
+        JSONObject syncRecsParams = newSyncRecordsParams();
+        syncRecsParams.put("clientRecs", clientRecords);
+        sendSyncRecords(syncRecsParams, new SyncRecordsCallback());
+    }
 
+    /**
+     * Starts a bucketed syncRecords exchange. The first request sends the bucket hashes and the
+     * cloud app answers with the buckets that differ. The second request sends the record hashes of
+     * just those buckets and gets the usual create, update and delete answer, limited to them.
+     */
+    private void syncBuckets(final FHSyncBucketHashes pBucketHashes) {
+        JSONObject syncRecsParams = newSyncRecordsParams();
+        syncRecsParams.put(KEY_BUCKET_COUNT, pBucketHashes.getBucketCount());
+        syncRecsParams.put(KEY_CLIENT_BUCKETS, pBucketHashes.getHashes());
+        sendSyncRecords(syncRecsParams, new SyncRecordsCallback() {
+            @Override
+            public void success(FHResponse pResponse) {
+                syncBucketsSuccess(pResponse.getJson(), pBucketHashes);
+            }
+        });
+    }
+
+    private void syncBucketsSuccess(JSONObject pData, FHSyncBucketHashes pBucketHashes) {
+        JSONArray buckets = pData.optJSONArray(KEY_BUCKETS);
+        if (buckets == null) {
+            FHLog.w(LOG_TAG, "Cloud app did not answer the bucket hashes, syncing all records");
+            mCloudSupportsBuckets = false;
+            syncRecords();
+            return;
+        }
+        if (buckets.length() == 0) {
+            if (pData.has("hash")) {
+                mHashvalue = pData.getString("hash");
+            }
+            syncCompleteWithCode("online");
+            return;
+        }
+        FHLog.d(LOG_TAG, "Syncing records of " + buckets.length() + " differing buckets");
+        JSONObject syncRecsParams = newSyncRecordsParams();
+        syncRecsParams.put(KEY_BUCKET_COUNT, pBucketHashes.getBucketCount());
+        syncRecsParams.put(KEY_BUCKETS, buckets);
+        syncRecsParams.put("clientRecs", pBucketHashes.getRecordHashes(buckets));
+        sendSyncRecords(syncRecsParams, new SyncRecordsCallback());
+    }
+
+    private JSONObject newSyncRecordsParams() {
         JSONObject syncRecsParams = new JSONObject();
         syncRecsParams.put("fn", "syncRecords");
         syncRecsParams.put("dataset_id", mDatasetId);
         syncRecsParams.put("query_params", mQueryParams);
         syncRecsParams.put("meta_data", mCustomMetaData);
-        syncRecsParams.put("clientRecs", clientRecords);
+        return syncRecsParams;
+    }
 
-        FHLog.d(LOG_TAG, "syncRecParams :: " + syncRecsParams);
+    private void sendSyncRecords(JSONObject pSyncRecsParams, FHActCallback pCallback) {
+        if (FHLog.isLoggable(FH.LOG_LEVEL_DEBUG)) {
+            FHLog.d(LOG_TAG, "syncRecParams :: " + pSyncRecsParams);
+        }
 
         try {
-            FHRemote request = makeCloudRequest(syncRecsParams);
-            request.executeAsync(
-                new FHActCallback() {
-
-                    @Override
-                    public void success(FHResponse pResponse) {
-                        syncRecordsSuccess(pResponse.getJson());
-                    }
-
-                    @Override
-                    public void fail(FHResponse pResponse) {
-                        FHLog.e(
-                            LOG_TAG, "syncRecords failed: " + pResponse.getRawResponse(),
-                            pResponse.getError());
-                        doNotify(null, NotificationMessage.SYNC_FAILED_CODE, pResponse.getRawResponse());
-                        syncCompleteWithCode(pResponse.getRawResponse());
-                    }
-                });
+            FHRemote request = makeCloudRequest(pSyncRecsParams);
+            request.executeAsync(serially(pCallback));
         } catch (Exception e) {
             FHLog.e(LOG_TAG, "error when running syncRecords", e);
             doNotify(null, NotificationMessage.SYNC_FAILED_CODE, e.getMessage());
@@ -333,18 +972,52 @@ public class FHSyncDataset {
     }
 
     private void syncRecordsSuccess(JSONObject pData) {
-        applyPendingChangesToRecords(pData);
-        handleCreated(pData);
-        handleUpdated(pData);
-        handleDeleted(pData);
+        beginSnapshot();
+        beginRecordNotifications();
+        try {
+            applyPendingChangesToRecords(pData);
+            handleCreated(pData);
+            handleUpdated(pData);
+            handleDeleted(pData);
 
-        if (pData.has("hash")) {
-            mHashvalue = pData.getString("hash");
+            if (pData.has("hash")) {
+                mHashvalue = pData.getString("hash");
+            }
+        } finally {
+            publishSnapshot();
         }
 
         syncCompleteWithCode("online");
     }
 
+    /**
+     * Wraps a callback so that it runs on the executor of the dataset, whatever thread the
+     * response arrives on.
+     */
+    private FHActCallback serially(final FHActCallback pCallback) {
+        return new FHActCallback() {
+            @Override
+            public void success(final FHResponse pResponse) {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pCallback.success(pResponse);
+                    }
+                });
+            }
+
+            @Override
+            public void fail(final FHResponse pResponse) {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pCallback.fail(pResponse);
+                    }
+                });
+            }
+        };
+    }
+
     private FHRemote makeCloudRequest(JSONObject pSyncLoopParams) throws FHNotReadyException {
         FHRemote request = null;
         if(this.getSyncConfig().useCustomSync()){
@@ -360,8 +1033,8 @@ public class FHSyncDataset {
         if (deleted != null) {
             for (Iterator<String> it = deleted.keys(); it.hasNext(); ) {
                 String key = it.next();
-                mDataRecords.remove(key);
-                doNotify(key, NotificationMessage.DELTA_RECEIVED_CODE, "delete");
+                removeRecord(key);
+                doNotifyRecord(key, NotificationMessage.DELTA_RECEIVED_CODE, "delete");
             }
         }
     }
@@ -372,12 +1045,12 @@ public class FHSyncDataset {
             for (Iterator<String> it = dataUpdated.keys(); it.hasNext(); ) {
                 String key = it.next();
                 JSONObject obj = dataUpdated.getJSONObject(key);
-                FHSyncDataRecord rec = mDataRecords.get(key);
-                if (rec != null) {
-                    rec.setData(obj.getJSONObject("data"));
+                if (mDataRecords.containsKey(key)) {
+                    // a new record, readers may still hold the one it replaces
+                    FHSyncDataRecord rec = new FHSyncDataRecord(obj.getJSONObject("data"));
                     rec.setHashValue(obj.getString("hash"));
-                    mDataRecords.put(key, rec);
-                    doNotify(key, NotificationMessage.DELTA_RECEIVED_CODE, "update");
+                    putRecord(key, rec);
+                    doNotifyRecord(key, NotificationMessage.DELTA_RECEIVED_CODE, "update");
                 }
 
             }
@@ -393,8 +1066,8 @@ public class FHSyncDataset {
                 JSONObject obj = created.getJSONObject(key);
                 FHSyncDataRecord record = new FHSyncDataRecord(obj.getJSONObject("data"));
                 record.setHashValue(obj.getString("hash"));
-                mDataRecords.put(key, record);
-                doNotify(key, NotificationMessage.DELTA_RECEIVED_CODE, "create");
+                putRecord(key, record);
+                doNotifyRecord(key, NotificationMessage.DELTA_RECEIVED_CODE, "create");
 
             }
         }
@@ -409,7 +1082,7 @@ public class FHSyncDataset {
                 FHSyncPendingRecord pendingRec = mPendingRecords.get(key);
                 if (pendingRec != null && pendingRec.isInFlight() && !pendingRec.isCrashed()) {
                     mPendingRecords.remove(key);
-                    doNotify(up.getString("uid"), pNotification, up.toString());
+                    doNotifyUpdate(up.getString("uid"), pNotification, up);
                 }
             }
         }
@@ -420,9 +1093,8 @@ public class FHSyncDataset {
         JSONObject resolvedCrashed = new JSONObject();
         List<String> keysToRemove = new ArrayList<String>();
 
-        for ( Map.Entry<String, FHSyncPendingRecord> pendingRecordEntry : mPendingRecords.entrySet()) {
-            FHSyncPendingRecord pendingRecord = pendingRecordEntry.getValue();
-            String pendingHash = pendingRecordEntry.getKey();
+        for (FHSyncPendingRecord pendingRecord : mPendingRecords.getCrashed()) {
+            String pendingHash = pendingRecord.getHashValue();
             if (pendingRecord.isInFlight() && pendingRecord.isCrashed()) {
                 Log.d(LOG_TAG, 
                         String.format("updateCrashedInFlightFromNewData - Found crashed inFlight pending record uid= %s :: hash %s", pendingRecord.getUid(), pendingRecord.getHashValue()));
@@ -439,21 +1111,21 @@ public class FHSyncDataset {
                             // Crashed updated failed - revert local dataset
                             if (crashedAction != null && crashedAction.equals("create")) {
                                 Log.d(LOG_TAG,"updateCrashedInFlightFromNewData - Deleting failed create from dataset");
-                                this.mDataRecords.remove(crashedUpdate.get("uid"));
+                                removeRecord(crashedUpdate.getString("uid"));
                             } else if (crashedAction != null && (crashedAction.equals("update") ||
                                                          crashedAction.equals("delete"))) {
                                 Log.d(LOG_TAG,"updateCrashedInFlightFromNewData - Reverting failed %@ in dataset" + crashedAction);
-                                this.mDataRecords.put(crashedUpdate.getString("uid"), pendingRecord.getPreData());
+                                putRecord(crashedUpdate.getString("uid"), pendingRecord.getPreData());
                             }
                         }
                         
                     keysToRemove.add(pendingHash);
                     if ("applied".equals(crashedUpdate.opt("type"))) {
-                        doNotify(crashedUpdate.getString("uid"), NotificationMessage.REMOTE_UPDATE_APPLIED_CODE, crashedUpdate.toString());
+                        doNotifyUpdate(crashedUpdate.getString("uid"), NotificationMessage.REMOTE_UPDATE_APPLIED_CODE, crashedUpdate);
                     } else if ("failed".equals(crashedUpdate.opt("type"))) {
-                        doNotify(crashedUpdate.getString("uid"), NotificationMessage.REMOTE_UPDATE_FAILED_CODE, crashedUpdate.toString());
+                        doNotifyUpdate(crashedUpdate.getString("uid"), NotificationMessage.REMOTE_UPDATE_FAILED_CODE, crashedUpdate);
                     } else if ("collisions".equals(crashedUpdate.opt("type"))) {
-                        doNotify(crashedUpdate.getString("uid"), NotificationMessage.COLLISION_DETECTED_CODE, crashedUpdate.toString());
+                        doNotifyUpdate(crashedUpdate.getString("uid"), NotificationMessage.COLLISION_DETECTED_CODE, crashedUpdate);
                     }
                     
                         
@@ -478,9 +1150,8 @@ public class FHSyncDataset {
         }
         keysToRemove.clear();
         
-        for ( Map.Entry<String, FHSyncPendingRecord> pendingRecordEntry : mPendingRecords.entrySet()) {
-            FHSyncPendingRecord pendingRecord = pendingRecordEntry.getValue();
-            String pendingHash = pendingRecordEntry.getKey();
+        for (FHSyncPendingRecord pendingRecord : mPendingRecords.getCrashed()) {
+            String pendingHash = pendingRecord.getHashValue();
             
             if (pendingRecord.isInFlight() && pendingRecord.isCrashed()) {
                 if (pendingRecord.getCrashedCount() > mSyncConfig.getCrashCountWait()) {
@@ -520,18 +1191,114 @@ public class FHSyncDataset {
 
 
 
-    private void markInFlightAsCrashed() {
-        Map<String, FHSyncPendingRecord> crashedRecords = new HashMap<String, FHSyncPendingRecord>();
-        for (Map.Entry<String, FHSyncPendingRecord> entry : mPendingRecords.entrySet()) {
-            FHSyncPendingRecord pendingRecord = entry.getValue();
-            String pendingHash = entry.getKey();
-            if (pendingRecord.isInFlight()) {
+    /**
+     * Folds the pending changes to the same record that have not been sent yet into one net
+     * change, so that a record edited many times while its earlier changes were in flight is
+     * uploaded once. The earliest change is kept, so that anything waiting for it still finds it,
+     * and it takes the post data of the latest one. A create followed by a delete cancels out.
+     * Changes are usually folded as they are made, this catches the ones that could not be, such
+     * as changes made while an earlier change was in flight that was then retried.
+     */
+    private void squashPendingRecords() {
+        Map<String, List<FHSyncPendingRecord>> changesByUid = new HashMap<>();
+        for (FHSyncPendingRecord pendingRecord : mPendingRecords.values()) {
+            if (pendingRecord.isInFlight() || pendingRecord.isCrashed() || pendingRecord.getUid() == null) {
+                continue;
+            }
+            List<FHSyncPendingRecord> changes = changesByUid.get(pendingRecord.getUid());
+            if (changes == null) {
+                changes = new ArrayList<>();
+                changesByUid.put(pendingRecord.getUid(), changes);
+            }
+            changes.add(pendingRecord);
+        }
+        // the hash of every change folded away, mapped to the hash of the change that replaced it
+        Map<String, String> replaced = new HashMap<>();
+        for (List<FHSyncPendingRecord> changes : changesByUid.values()) {
+            if (changes.size() > 1) {
+                squash(changes, replaced);
+            }
+        }
+        if (replaced.isEmpty()) {
+            return;
+        }
+        FHLog.d(LOG_TAG, "Squashed " + replaced.size() + " pending records");
+        for (FHSyncPendingRecord pendingRecord : mPendingRecords.values()) {
+            String waitingFor = pendingRecord.getWaitingFor();
+            if (waitingFor != null && replaced.containsKey(waitingFor)) {
+                String replacement = replaced.get(waitingFor);
+                if (replacement == null || replacement.equals(pendingRecord.getHashValue())) {
+                    pendingRecord.setDelayed(false);
+                    pendingRecord.setWaitingFor(null);
+                } else {
+                    pendingRecord.setWaitingFor(replacement);
+                }
+            }
+        }
+    }
+
+    private void squash(List<FHSyncPendingRecord> pChanges, Map<String, String> pReplaced) {
+        Collections.sort(pChanges, PENDING_TIMESTAMP_ORDER);
+        for (int i = 1; i < pChanges.size(); i++) {
+            FHSyncPendingRecord previous = pChanges.get(i - 1);
+            FHSyncPendingRecord next = pChanges.get(i);
+            if ("delete".equalsIgnoreCase(previous.getAction())) {
+                // nothing can follow the delete of a record, leave an unexpected history alone
+                return;
+            }
+            if (previous.getTimestamp() == next.getTimestamp() && !follows(next, previous)) {
+                // the order of changes made within the same millisecond is not known
+                return;
+            }
+        }
+
+        FHSyncPendingRecord first = pChanges.get(0);
+        FHSyncPendingRecord last = pChanges.get(pChanges.size() - 1);
+        String firstHash = first.getHashValue();
+        if ("create".equalsIgnoreCase(first.getAction()) && "delete".equalsIgnoreCase(last.getAction())) {
+            for (FHSyncPendingRecord change : pChanges) {
+                mPendingRecords.remove(change.getHashValue());
+                pReplaced.put(change.getHashValue(), null);
+            }
+            return;
+        }
+
+        if (!"create".equalsIgnoreCase(first.getAction())) {
+            first.setAction(last.getAction());
+        }
+        first.setPostData(last.getPostData());
+        for (FHSyncPendingRecord change : pChanges.subList(1, pChanges.size())) {
+            if (!first.isDelayed() && change.isDelayed() && change.getWaitingFor() != null
+                && !pChanges.contains(mPendingRecords.get(change.getWaitingFor()))) {
+                first.setDelayed(true);
+                first.setWaitingFor(change.getWaitingFor());
+            }
+            mPendingRecords.remove(change.getHashValue());
+            pReplaced.put(change.getHashValue(), firstHash);
+        }
+        JSONObject metadata = mMetaData.optJSONObject(first.getUid());
+        if (metadata != null && pReplaced.containsKey(metadata.optString("pendingUid", null))) {
+            metadata.put("pendingUid", firstHash);
+        }
+    }
+
+    /**
+     * @return whether pNext was made on top of the data left by pPrevious
+     */
+    private static boolean follows(FHSyncPendingRecord pNext, FHSyncPendingRecord pPrevious) {
+        FHSyncDataRecord pre = pNext.getPreData();
+        FHSyncDataRecord post = pPrevious.getPostData();
+        return pre != null && post != null && pre.getHashValue() != null && pre.getHashValue().equals(post.getHashValue());
+    }
+
+    private void markInFlightAsCrashed(List<FHSyncPendingRecord> pBatch) {
+        for (FHSyncPendingRecord pendingRecord : pBatch) {
+            String pendingHash = pendingRecord.getHashValue();
+            if (pendingRecord.isInFlight() && mPendingRecords.get(pendingHash) == pendingRecord) {
                 FHLog.d(LOG_TAG, "Marking in flight pending record as crashed : " + pendingHash);
                 pendingRecord.setCrashed(true);
-                crashedRecords.put(pendingRecord.getUid(), pendingRecord);
             }
         }
-
     }
 
     public void syncCompleteWithCode(String pCode) {
@@ -539,20 +1306,14 @@ public class FHSyncDataset {
         mSyncEnd = new Date();
         writeToFile();
         doNotify(mHashvalue, NotificationMessage.SYNC_COMPLETE_CODE, pCode);
+        wakeScheduler();
     }
 
     private FHSyncPendingRecord addPendingObject(String pUid, JSONObject pData, String pAction) {
         if (!FH.isOnline()) {
             doNotify(pUid, NotificationMessage.OFFLINE_UPDATE_CODE, pAction);
         }
-        FHSyncPendingRecord pending = new FHSyncPendingRecord();
-        pending.setInFlight(false);
-        pending.setAction(pAction);
-
-        if (pData != null) {
-            FHSyncDataRecord dataRecord = new FHSyncDataRecord(pData);
-            pending.setPostData(dataRecord);
-        }
+        FHSyncPendingRecord pending = newPendingObject(pData == null ? null : new FHSyncDataRecord(pData), pAction);
 
         if ("create".equalsIgnoreCase(pAction)) {
             pending.setUid(pending.getHashValue());
@@ -568,19 +1329,68 @@ public class FHSyncDataset {
         return pending;
     }
 
+    private FHSyncPendingRecord newPendingObject(FHSyncDataRecord pPostData, String pAction) {
+        FHSyncPendingRecord pending = new FHSyncPendingRecord();
+        // the timestamp goes into the hash, which is the uid of a created record, so two changes
+        // never share one, even when a batch holds the same data twice within a millisecond
+        mLastPendingTimestamp = Math.max(pending.getTimestamp(), mLastPendingTimestamp + 1);
+        pending.setTimestamp(mLastPendingTimestamp);
+        pending.setInFlight(false);
+        pending.setAction(pAction);
+        if (pPostData != null) {
+            pending.setPostData(pPostData);
+        }
+        return pending;
+    }
+
     private void storePendingObj(FHSyncPendingRecord pPendingObj) {
         mPendingRecords.put(pPendingObj.getHashValue(), pPendingObj);
         updateDatasetFromLocal(pPendingObj);
-        if (mSyncConfig.isAutoSyncLocalUpdates()) {
-            mSyncPending = true;
-        }
-        writeToFile();
+        localChangeStored();
+        persistPendingChange(pPendingObj.getUid());
         doNotify(
             pPendingObj.getUid(),
             NotificationMessage.LOCAL_UPDATE_APPLIED_CODE,
             pPendingObj.getAction());
     }
 
+    /**
+     * Stores a batch of local changes. Readers see them all at once, the dataset is written once
+     * and a single notification lists their uids.
+     */
+    private void storePendingObjs(List<FHSyncPendingRecord> pPendingObjs, String pAction) {
+        if (pPendingObjs.isEmpty()) {
+            return;
+        }
+        if (!FH.isOnline()) {
+            doNotify(null, NotificationMessage.OFFLINE_UPDATE_CODE, pAction);
+        }
+        List<String> uids = new ArrayList<>();
+        beginSnapshot();
+        try {
+            for (FHSyncPendingRecord pendingObj : pPendingObjs) {
+                mPendingRecords.put(pendingObj.getHashValue(), pendingObj);
+                updateDatasetFromLocal(pendingObj);
+                uids.add(pendingObj.getUid());
+            }
+        } finally {
+            publishSnapshot();
+        }
+        localChangeStored();
+        writeToFile();
+        doNotifyBatch(uids, NotificationMessage.LOCAL_UPDATE_APPLIED_CODE, pAction);
+    }
+
+    private void localChangeStored() {
+        if (mSyncConfig.isAutoSyncLocalUpdates()) {
+            if (mSyncConfig.getLocalUpdateDebounceMillis() > 0) {
+                localChangeMade(System.currentTimeMillis());
+            } else {
+                setSyncPending(true);
+            }
+        }
+    }
+
     private void updateDatasetFromLocal(FHSyncPendingRecord pPendingObj) {
         String previousPendingUid;
         FHSyncPendingRecord previousPendingObj;
@@ -596,6 +1406,8 @@ public class FHSyncDataset {
         }
         FHSyncDataRecord existing = mDataRecords.get(uid);
         boolean fromPending = metadata.optBoolean("fromPending");
+        // whether the uid has a record once the change is applied
+        boolean present = existing != null;
         
         if ("create".equalsIgnoreCase(pPendingObj.getAction())) {
             if (existing != null) {
@@ -609,7 +1421,7 @@ public class FHSyncDataset {
                     }
                 }
             }
-            mDataRecords.put(uid, new FHSyncDataRecord());
+            present = true;
         }
 
         if ("update".equalsIgnoreCase(pPendingObj.getAction())) {
@@ -665,6 +1477,9 @@ public class FHSyncDataset {
                                 // get rid of the pending update
                                 pPendingObj.setPreData(previousPendingObj.getPreData());
                                 pPendingObj.setInFlight(false);
+                                // and keep waiting for whatever the update was waiting for
+                                pPendingObj.setDelayed(previousPendingObj.isDelayed());
+                                pPendingObj.setWaitingFor(previousPendingObj.getWaitingFor());
                                 mPendingRecords.remove(previousPendingUid);
                             } else if (!previousPendingObj.getHashValue().equals(pPendingObj.getHashValue())) {
                                 //Don't make a delayed update wait for itself, that is just rude
@@ -676,35 +1491,28 @@ public class FHSyncDataset {
                 }
                 
             }
-            mDataRecords.remove(uid);
+            removeRecord(uid);
+            present = false;
         }
 
-        if (mDataRecords.containsKey(uid)) {
+        if (present) {
             FHSyncDataRecord record = pPendingObj.getPostData();
-            mDataRecords.put(uid, record);
+            putRecord(uid, record);
             metadata.put("fromPending", true);
             metadata.put("pendingUid", uidToSave);
         }
     }
 
+    /**
+     * Restores the header of the dataset, see {@link #getHeaderJSON()}.
+     */
     private void fromJSON(JSONObject pObj) {
-        JSONObject syncConfigJson = pObj.getJSONObject(KEY_SYNC_CONFIG);
-        this.mSyncConfig = FHSyncConfig.fromJSON(syncConfigJson);
-        this.mHashvalue = pObj.optString(KEY_HASHVALUE, null);
-        JSONObject pendingJSON = pObj.getJSONObject(KEY_PENDING_RECORDS);
-        for (Iterator<String> it = pendingJSON.keys(); it.hasNext(); ) {
-            String key = it.next();
-            JSONObject pendObjJson = pendingJSON.getJSONObject(key);
-            FHSyncPendingRecord pending = FHSyncPendingRecord.fromJSON(pendObjJson);
-            this.mPendingRecords.put(key, pending);
-        }
-        JSONObject dataJSON = pObj.getJSONObject(KEY_DATA_RECORDS);
-        for (Iterator<String> dit = dataJSON.keys(); dit.hasNext(); ) {
-            String dkey = dit.next();
-            JSONObject dataObjJson = dataJSON.getJSONObject(dkey);
-            FHSyncDataRecord datarecord = FHSyncDataRecord.fromJSON(dataObjJson);
-            this.mDataRecords.put(dkey, datarecord);
+        JSONObject syncConfigJson = pObj.optJSONObject(KEY_SYNC_CONFIG);
+        if (syncConfigJson != null) {
+            this.mSyncConfig = FHSyncConfig.fromJSON(syncConfigJson);
+            mStorage.configure(mSyncConfig);
         }
+        this.mHashvalue = pObj.optString(KEY_HASHVALUE, null);
         if (pObj.has(KEY_SYNC_LOOP_START)) {
             this.mSyncStart = new Date(pObj.getLong(KEY_SYNC_LOOP_START));
         }
@@ -720,44 +1528,179 @@ public class FHSyncDataset {
         if (pObj.has(KEY_METADATA)) {
             this.mMetaData = pObj.getJSONObject(KEY_METADATA);
         }
+        JSONObject uidMappings = pObj.optJSONObject(KEY_UID_MAPPINGS);
+        if (uidMappings != null) {
+            for (Iterator<String> it = uidMappings.keys(); it.hasNext(); ) {
+                String oldUid = it.next();
+                this.mUidMappings.put(oldUid, uidMappings.getString(oldUid));
+            }
+        }
     }
 
-    private void readFromFile() {
-        String filePath = mDatasetId + STORAGE_FILE_EXT;
+    private void readFromStorage() {
+        boolean loaded = false;
         try {
-            FileInputStream fis = mContext.openFileInput(filePath);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            writeStream(fis, bos);
-            String content = bos.toString("UTF-8");
-            JSONObject json = new JSONObject(content);
-            fromJSON(json);
-            doNotify(null, NotificationMessage.LOCAL_UPDATE_APPLIED_CODE, "load");
-        } catch (FileNotFoundException ex) {
-            FHLog.w(LOG_TAG, "File not found for reading: " + filePath);
+            JSONObject header = mStorage.load(mPendingRecords);
+            // a pending record is known by the hash it was stored under, recomputing it from the
+            // stored state, which changes as the record goes in flight, would give another one
+            for (Map.Entry<String, FHSyncPendingRecord> entry : mPendingRecords.entrySet()) {
+                entry.getValue().setHashValue(entry.getKey());
+            }
+            if (header != null) {
+                fromJSON(header);
+                loaded = true;
+            }
         } catch (IOException e) {
-            FHLog.e(LOG_TAG, "Error reading file : " + filePath, e);
+            FHLog.e(LOG_TAG, "Error reading dataset : " + mDatasetId, e);
         } catch (JSONException je) {
-            FHLog.e(LOG_TAG, "Failed to parse JSON file : " + filePath, je);
+            FHLog.e(LOG_TAG, "Failed to parse dataset : " + mDatasetId, je);
+        }
+        rebuildSnapshot();
+        rebuildIndexes();
+        rebuildBucketHashes();
+        if (loaded) {
+            doNotify(null, NotificationMessage.LOCAL_UPDATE_APPLIED_CODE, "load");
         }
     }
 
-    public synchronized void writeToFile() {
-        String filePath = mDatasetId + STORAGE_FILE_EXT;
+    /**
+     * Persists a local change. The storage persists just the state of the affected uid if it
+     * can (e.g. by appending it to the journal), otherwise the whole dataset is written.
+     */
+    private void persistPendingChange(String pUid) {
         try {
-            FileOutputStream fos = mContext.openFileOutput(filePath, Context.MODE_PRIVATE);
-            String content = getJSON().toString();
-            ByteArrayInputStream bis = new ByteArrayInputStream(content.getBytes());
-            writeStream(bis, fos);
-        } catch (FileNotFoundException ex) {
-            FHLog.e(LOG_TAG, "File not found for writing: " + filePath, ex);
-            doNotify(null, NotificationMessage.CLIENT_STORAGE_FAILED_CODE, ex.getMessage());
+            if (mStorage.saveChange(pUid, mMetaData.optJSONObject(pUid), mPendingRecords)) {
+                return;
+            }
         } catch (IOException e) {
-            FHLog.e(LOG_TAG, "Error writing file: " + filePath, e);
-            doNotify(null, NotificationMessage.CLIENT_STORAGE_FAILED_CODE, e.getMessage());
+            FHLog.e(LOG_TAG, "Error saving change to " + pUid + ", falling back to a full write", e);
         }
+        writeToFile();
+    }
+
+    /**
+     * Writes the whole dataset to its storage.
+     */
+    public void writeToFile() {
+        mExecutor.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    mStorage.save(getHeaderJSON(), mPendingRecords);
+                } catch (IOException e) {
+                    FHLog.e(LOG_TAG, "Error writing dataset: " + mDatasetId, e);
+                    doNotify(null, NotificationMessage.CLIENT_STORAGE_FAILED_CODE, e.getMessage());
+                }
+                return null;
+            }
+        });
     }
 
     private void doNotify(String pUID, int pCode, String pMessage) {
+        boolean toListener = isListenerNotified(pCode);
+        boolean toSubscribers = hasSubscriptions(pCode);
+        if (toListener || toSubscribers) {
+            sendNotification(
+                pCode, NotificationMessage.getMessage(mDatasetId, pUID, pCode, pMessage), toListener, toSubscribers);
+        }
+    }
+
+    private void doNotifyBatch(List<String> pUIDs, int pCode, String pMessage) {
+        boolean toListener = isListenerNotified(pCode);
+        boolean toSubscribers = hasSubscriptions(pCode);
+        if (toListener || toSubscribers) {
+            sendNotification(
+                pCode, NotificationMessage.getBatchMessage(mDatasetId, pUIDs, pCode, pMessage), toListener, toSubscribers);
+        }
+    }
+
+    /**
+     * @return whether anyone is told about the event: the listener of the sync client if the
+     * config asks for it, or a subscription
+     */
+    private boolean isWanted(int pCode) {
+        return isListenerNotified(pCode) || hasSubscriptions(pCode);
+    }
+
+    private boolean isListenerNotified(int pCode) {
+        return mNotificationHandler != null && isNotified(pCode);
+    }
+
+    private boolean hasSubscriptions(int pCode) {
+        FHSyncNotificationBus bus = mNotificationBus;
+        return bus != null && bus.hasSubscriptions(mDatasetId, pCode);
+    }
+
+    /**
+     * Notifies an event about one record of the sync response being applied, in a batch with the
+     * others of the response if the config asks for it.
+     */
+    private void doNotifyRecord(String pUID, int pCode, String pMessage) {
+        Map<Integer, Map<String, List<String>>> notifications = mRecordNotifications;
+        if (notifications == null) {
+            doNotify(pUID, pCode, pMessage);
+            return;
+        }
+        if (!isWanted(pCode)) {
+            return;
+        }
+        Map<String, List<String>> byMessage = notifications.get(pCode);
+        if (byMessage == null) {
+            byMessage = new LinkedHashMap<>();
+            notifications.put(pCode, byMessage);
+        }
+        List<String> uids = byMessage.get(pMessage);
+        if (uids == null) {
+            uids = new ArrayList<>();
+            byMessage.put(pMessage, uids);
+            // the batch is held in the place of its first record, in order with the other notifications
+            sendRecordNotifications(pCode, pMessage, uids);
+        }
+        uids.add(pUID);
+    }
+
+    private void sendRecordNotifications(final int pCode, final String pMessage, final List<String> pUIDs) {
+        final FHSyncNotificationHandler handler = isListenerNotified(pCode) ? mNotificationHandler : null;
+        final FHSyncNotificationBus bus = hasSubscriptions(pCode) ? mNotificationBus : null;
+        mHeldNotifications.add(new Runnable() {
+            @Override
+            public void run() {
+                if (handler != null) {
+                    handler.notifyRecords(mDatasetId, pCode, pMessage, pUIDs);
+                }
+                if (bus != null) {
+                    bus.publish(pCode, NotificationMessage.getBatchMessage(mDatasetId, pUIDs, pCode, pMessage));
+                }
+            }
+        });
+    }
+
+    /**
+     * Notifies the outcome of a change sent to the cloud. The update is only turned into the
+     * message when the record is notified on its own.
+     */
+    private void doNotifyUpdate(String pUID, int pCode, JSONObject pUpdate) {
+        if (!isWanted(pCode)) {
+            return;
+        }
+        if (mRecordNotifications != null) {
+            doNotifyRecord(pUID, pCode, null);
+        } else {
+            doNotify(pUID, pCode, pUpdate.toString());
+        }
+    }
+
+    /**
+     * Batches the record notifications until {@link #publishSnapshot()}, which must follow a call
+     * to {@link #beginSnapshot()}.
+     */
+    private void beginRecordNotifications() {
+        if (mSyncConfig.isBatchNotifications()) {
+            mRecordNotifications = new LinkedHashMap<>();
+        }
+    }
+
+    private boolean isNotified(int pCode) {
         boolean sendMessage = false;
         switch (pCode) {
             case NotificationMessage.SYNC_STARTED_CODE:
@@ -812,25 +1755,28 @@ public class FHSyncDataset {
             default:
                 break;
         }
-        if (sendMessage) {
-            NotificationMessage notification =
-                NotificationMessage.getMessage(mDatasetId, pUID, pCode, pMessage);
-            Message message = mNotificationHandler.obtainMessage(pCode, notification);
-            mNotificationHandler.sendMessage(message);
-        }
+        return sendMessage;
     }
 
-    private static void writeStream(InputStream pInput, OutputStream pOutput) throws IOException {
-        if (pInput != null && pOutput != null) {
-            BufferedInputStream bis = new BufferedInputStream(pInput);
-            BufferedOutputStream bos = new BufferedOutputStream(pOutput);
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = bis.read(buffer)) != -1) {
-                bos.write(buffer, 0, bytesRead);
+    private void sendNotification(
+        final int pCode, final NotificationMessage pNotification, boolean pToListener, boolean pToSubscribers) {
+        final FHSyncNotificationHandler handler = pToListener ? mNotificationHandler : null;
+        final FHSyncNotificationBus bus = pToSubscribers ? mNotificationBus : null;
+        Runnable notification = new Runnable() {
+            @Override
+            public void run() {
+                if (handler != null) {
+                    handler.sendMessage(handler.obtainMessage(pCode, pNotification));
+                }
+                if (bus != null) {
+                    bus.publish(pCode, pNotification);
+                }
             }
-            bos.close();
-            bis.close();
+        };
+        if (mHeldNotifications != null) {
+            mHeldNotifications.add(notification);
+        } else {
+            notification.run();
         }
     }
 
@@ -841,72 +1787,56 @@ public class FHSyncDataset {
      * overridden (blinking disappear / reappear effect).
     */
     private void applyPendingChangesToRecords(JSONObject resData) {
-        Log.d(LOG_TAG, String.format("SyncRecords result = %s pending = %s", resData.toString(), mPendingRecords.toString()));
-        for (FHSyncPendingRecord pendingRecord : mPendingRecords.values()) {
-            JSONObject resRecord = null;
-            if (resData.has("create")) {
-                resRecord = resData.optJSONObject("create");
-                if (resRecord != null && resRecord.has(pendingRecord.getUid())) {
-                    resRecord.remove(pendingRecord.getUid());
-                }
-            }
-            
-            if (resData.has("update")) {
-                resRecord = resData.optJSONObject("update");
-                if (resRecord != null && resRecord.has(pendingRecord.getUid())) {
-                    resRecord.remove(pendingRecord.getUid());
-                }
-            }
-            
-            if (resData.has("delete")) {
-                resRecord = resData.optJSONObject("delete");
-                if (resRecord != null && resRecord.has(pendingRecord.getUid())) {
-                    resRecord.remove(pendingRecord.getUid());
-                }
+        removePendingUids(resData.optJSONObject("create"));
+        removePendingUids(resData.optJSONObject("update"));
+        removePendingUids(resData.optJSONObject("delete"));
+        if (FHLog.isLoggable(FH.LOG_LEVEL_DEBUG)) {
+            FHLog.d(LOG_TAG, "SyncRecords result after pending removed = " + resData);
+        }
+    }
+
+    private void removePendingUids(JSONObject pRecords) {
+        if (pRecords == null) {
+            return;
+        }
+        for (Iterator<String> it = pRecords.keys(); it.hasNext(); ) {
+            if (mPendingRecords.hasUid(it.next())) {
+                it.remove();
             }
-            Log.d(LOG_TAG, String.format("SyncRecords result after pending removed = %s", resData.toString()));
         }
     }
-    
+
     private void updateDelayedFromNewData(JSONObject responseData) {
-        for (Map.Entry<String, FHSyncPendingRecord> record : this.mPendingRecords.entrySet()) {
-            
-            FHSyncPendingRecord pendingObject = record.getValue();
-            if (pendingObject.isDelayed() && pendingObject.getWaitingFor() != null) {
-                if( responseData.has("updates")) {
-                    JSONObject updatedHashes = responseData.getJSONObject("updates").optJSONObject("hashes");
-                    if (updatedHashes != null && updatedHashes.has(pendingObject.getWaitingFor())) {
+        JSONObject updates = responseData.optJSONObject("updates");
+        JSONObject updatedHashes = updates == null ? null : updates.optJSONObject("hashes");
+        if (updatedHashes != null) {
+            // the records waiting for one of the updates the cloud app has processed can go
+            for (Iterator<String> it = updatedHashes.keys(); it.hasNext(); ) {
+                for (FHSyncPendingRecord pendingObject : mPendingRecords.getWaitingFor(it.next())) {
+                    if (pendingObject.isDelayed()) {
                         pendingObject.setDelayed(false);
                         pendingObject.setWaitingFor(null);
-                    } if ( updatedHashes == null ) {
-                        boolean waitingForIsStillPending = false; 
-                        String waitingFor = pendingObject.getWaitingFor();
-                        if (pendingObject.getWaitingFor().equals(pendingObject.getHashValue())) {
-                            //Somehow a pending object is waiting on itself, lets not do that
-                            pendingObject.setDelayed(false);
-                            pendingObject.setWaitingFor(null);    
-                        } else {
-                            for (FHSyncPendingRecord pending : mPendingRecords.values()) {
-
-                                if (pending.getHashValue().equals(waitingFor) || pending.getUid().equals(waitingFor)) {
-
-                                    waitingForIsStillPending = true;
-                                    break;
-                                }
-                            }
-                            if (!waitingForIsStillPending) {
-                                pendingObject.setDelayed(false);
-                                pendingObject.setWaitingFor(null);    
-                            }
-                        }
                     }
-                } 
-            } else if (pendingObject.isDelayed() && pendingObject.getWaitingFor() == null) {
+                }
+            }
+        }
+        for (FHSyncPendingRecord pendingObject : mPendingRecords.getDelayed()) {
+            String waitingFor = pendingObject.getWaitingFor();
+            if (waitingFor == null) {
                 pendingObject.setDelayed(false);
+            } else if (updates != null && updatedHashes == null) {
+                if (waitingFor.equals(pendingObject.getHashValue())) {
+                    //Somehow a pending object is waiting on itself, lets not do that
+                    pendingObject.setDelayed(false);
+                    pendingObject.setWaitingFor(null);
+                } else if (!mPendingRecords.containsKey(waitingFor) && !mPendingRecords.hasUid(waitingFor)) {
+                    pendingObject.setDelayed(false);
+                    pendingObject.setWaitingFor(null);
+                }
             }
         }
     }
-    
+
     private void updateMetaFromNewData(JSONObject responseData) {
         Iterator keysIter = this.mMetaData.keys();
         Set<String> keysToRemove = new HashSet<>(this.mMetaData.length());
@@ -934,7 +1864,6 @@ public class FHSyncDataset {
     private void checkUidChanges(JSONObject appliedUpdates) {
         if (appliedUpdates != null && appliedUpdates.length() > 0) {
             Iterator keysIterator = appliedUpdates.keys();
-            Map<String, String> newUids = new HashMap<>();
             List<String> keys = new ArrayList<>();
             while (keysIterator.hasNext()) {
                 keys.add((String) keysIterator.next());
@@ -948,27 +1877,16 @@ public class FHSyncDataset {
                     String oldUid = obj.getString("hash");
                     //remember the mapping
                     this.mUidMappings.put(oldUid, newUid);
-                    newUids.put(oldUid, newUid);
                     //we should update the data records to make sure they are now using the new UID
                     FHSyncDataRecord dataRecord = this.mDataRecords.get(oldUid);
                     if (dataRecord != null) {
-                        this.mDataRecords.put(newUid, dataRecord);
-                        this.mDataRecords.remove(oldUid);
+                        putRecord(newUid, dataRecord);
+                        removeRecord(oldUid);
                     }
-                    
-                }
-                
-                if (newUids.size() > 0) {
-                    //we need to check all existing pendingRecords and update their UIDs if they are still the old values
-                    for (Map.Entry<String, FHSyncPendingRecord> keyRecord : mPendingRecords.entrySet()) {
-                        FHSyncPendingRecord pendingRecord = keyRecord.getValue();
-                        String pendingRecordUid = pendingRecord.getUid();
-                        String newUID = newUids.get(pendingRecordUid);
-                        if (newUID != null) {
-                            pendingRecord.setUid(newUID);
-                        }    
+                    //and the pending records that still use the old UID
+                    for (FHSyncPendingRecord pendingRecord : mPendingRecords.getByUid(oldUid)) {
+                        pendingRecord.setUid(newUid);
                     }
-                    
                 }
                 
             }
@@ -990,14 +1908,32 @@ public class FHSyncDataset {
 
     public void setSyncPending(boolean pSyncPending) {
         this.mSyncPending = pSyncPending;
+        if (pSyncPending) {
+            wakeScheduler();
+        }
     }
 
     public boolean isSyncPending() {
         return mSyncPending;
     }
 
-    public void setSyncConfig(FHSyncConfig pSyncConfig) {
-        this.mSyncConfig = pSyncConfig;
+    public void setSyncConfig(final FHSyncConfig pSyncConfig) {
+        mExecutor.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mSyncConfig = pSyncConfig;
+                mStorage.configure(pSyncConfig);
+                rebuildIndexes();
+                FHSyncBucketHashes bucketHashes = mBucketHashes;
+                int bucketCount = (bucketHashes != null) ? bucketHashes.getBucketCount() : 0;
+                if (pSyncConfig.getHashBuckets() != bucketCount) {
+                    rebuildBucketHashes();
+                }
+                return null;
+            }
+        });
+        // the sync frequency may have changed
+        wakeScheduler();
     }
 
     public FHSyncConfig getSyncConfig() {
@@ -1010,6 +1946,9 @@ public class FHSyncDataset {
 
     public void stopSync(boolean pStopSync) {
         this.mStopSync = pStopSync;
+        if (!pStopSync) {
+            wakeScheduler();
+        }
     }
 
     public boolean isStopSync() {
@@ -1024,6 +1963,62 @@ public class FHSyncDataset {
         return mSyncEnd;
     }
 
+    /**
+     * Sets the scheduler that starts the sync loops of this dataset, which is woken up whenever
+     * the dataset may have become due.
+     *
+     * @param pScheduler the scheduler, or null if the sync loops are started by hand
+     */
+    void setScheduler(FHSyncScheduler pScheduler) {
+        mScheduler = pScheduler;
+    }
+
+    /**
+     * Records a local change to be synced once the debounce window has passed.
+     *
+     * @param pNow the time of the change in milliseconds
+     */
+    synchronized void localChangeMade(long pNow) {
+        if (mFirstLocalChange == 0) {
+            mFirstLocalChange = pNow;
+        }
+        mLastLocalChange = pNow;
+        wakeScheduler();
+    }
+
+    /**
+     * Gets when the debounced local changes are due to be synced: once the debounce window has
+     * passed since the last change, or the maximum delay since the first one, whichever is first.
+     *
+     * @return the time in milliseconds, or Long.MAX_VALUE if there are no debounced changes
+     */
+    synchronized long getLocalChangesDueTime() {
+        if (mFirstLocalChange == 0) {
+            return Long.MAX_VALUE;
+        }
+        long due = mLastLocalChange + mSyncConfig.getLocalUpdateDebounceMillis();
+        int maxDelay = mSyncConfig.getLocalUpdateMaxDelayMillis();
+        if (maxDelay > 0) {
+            due = Math.min(due, mFirstLocalChange + maxDelay);
+        }
+        return due;
+    }
+
+    /**
+     * Forgets the debounced local changes, because a sync loop that uploads them is starting.
+     */
+    synchronized void clearLocalChanges() {
+        mFirstLocalChange = 0;
+        mLastLocalChange = 0;
+    }
+
+    private void wakeScheduler() {
+        FHSyncScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.wakeUp();
+        }
+    }
+
     public void setContext(Context pContext) {
         mContext = pContext;
     }
@@ -1032,4 +2027,38 @@ public class FHSyncDataset {
         mNotificationHandler = pHandler;
     }
 
+    void setNotificationBus(FHSyncNotificationBus pBus) {
+        mNotificationBus = pBus;
+    }
+
+    /**
+     * Hands a syncRecords response to {@link #syncRecordsSuccess(JSONObject)} and reports
+     * failures.
+     */
+    private class SyncRecordsCallback implements FHActCallback {
+
+        @Override
+        public void success(FHResponse pResponse) {
+            syncRecordsSuccess(pResponse.getJson());
+        }
+
+        @Override
+        public void fail(FHResponse pResponse) {
+            FHLog.e(
+                LOG_TAG, "syncRecords failed: " + pResponse.getRawResponse(),
+                pResponse.getError());
+            doNotify(null, NotificationMessage.SYNC_FAILED_CODE, pResponse.getRawResponse());
+            syncCompleteWithCode(pResponse.getRawResponse());
+        }
+    }
+
+    private static class PageEntry {
+        private final String mUid;
+        private final JSONObject mData;
+
+        PageEntry(String pUid, JSONObject pData) {
+            this.mUid = pUid;
+            this.mData = pData;
+        }
+    }
 }
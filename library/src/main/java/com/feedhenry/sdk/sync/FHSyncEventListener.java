@@ -0,0 +1,30 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+/**
+ * Implement the listener interface to receive the events of a subscription, see
+ * {@link FHSyncClient#subscribe(String, java.util.concurrent.Executor, FHSyncEventListener, int...)}.
+ */
+public interface FHSyncEventListener {
+    /**
+     * Invoked when an event the subscription is for is emitted. {@link NotificationMessage#getCode()}
+     * tells which event it is.
+     *
+     * @param pMessage The message
+     */
+    void onEvent(NotificationMessage pMessage);
+}
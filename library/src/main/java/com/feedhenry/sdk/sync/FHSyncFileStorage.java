@@ -0,0 +1,454 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import android.content.Context;
+import com.feedhenry.sdk.utils.FHLog;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.json.fh.JSONException;
+import org.json.fh.JSONObject;
+import org.json.fh.JSONTokener;
+
+/**
+ * The default storage. The whole dataset is kept in memory and written to a single JSON file.
+ * When the journal is enabled in {@link FHSyncConfig}, local changes are appended to a journal
+ * file instead of rewriting the dataset file every time.
+ */
+public class FHSyncFileStorage implements FHSyncStorage {
+
+    static final String STORAGE_FILE_EXT = ".sync.json";
+    static final String BINARY_FILE_EXT = ".sync.bin";
+    static final String JOURNAL_FILE_EXT = ".sync.journal";
+    static final String TEMP_FILE_EXT = ".tmp";
+    static final String UNREADABLE_FILE_EXT = ".unreadable";
+
+    private static final String KEY_JOURNAL_UID = "uid";
+    private static final String KEY_JOURNAL_RECORD = "record";
+    private static final String KEY_JOURNAL_META = "meta";
+    private static final String KEY_JOURNAL_PENDING = "pending";
+
+    private static final String LOG_TAG = "com.feedhenry.sdk.sync.FHSyncFileStorage";
+
+    private final Context mContext;
+    private final String mDatasetId;
+    private final ConcurrentMap<String, FHSyncDataRecord> mDataRecords = new ConcurrentHashMap<>();
+    private boolean mUseJournal;
+    private boolean mUseBinarySnapshot;
+    private int mJournalCompactionThreshold;
+    private int mJournalEntries;
+
+    public FHSyncFileStorage(Context pContext, String pDatasetId) {
+        mContext = pContext;
+        mDatasetId = pDatasetId;
+    }
+
+    @Override
+    public Map<String, FHSyncDataRecord> getDataRecords() {
+        return mDataRecords;
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return true;
+    }
+
+    @Override
+    public synchronized void configure(FHSyncConfig pConfig) {
+        mUseJournal = pConfig.isUseJournal();
+        mUseBinarySnapshot = pConfig.isUseBinarySnapshot();
+        mJournalCompactionThreshold = pConfig.getJournalCompactionThreshold();
+    }
+
+    @Override
+    public synchronized JSONObject load(Map<String, FHSyncPendingRecord> pPendingRecords) throws IOException {
+        // Prefer the file in the configured format, the other one is only there until the dataset is next saved
+        boolean binary = mUseBinarySnapshot;
+        if (!mContext.getFileStreamPath(mDatasetId + getExtension(binary)).exists()
+            && mContext.getFileStreamPath(mDatasetId + getExtension(!binary)).exists()) {
+            binary = !binary;
+        }
+        String filePath = mDatasetId + getExtension(binary);
+        JSONObject header = null;
+        try {
+            header = readFile(binary, pPendingRecords);
+        } catch (FileNotFoundException ex) {
+            FHLog.w(LOG_TAG, "File not found for reading: " + filePath);
+        } catch (IOException e) {
+            FHLog.e(LOG_TAG, "Error reading file : " + filePath, e);
+            header = loadFallback(binary, pPendingRecords);
+        } catch (JSONException je) {
+            FHLog.e(LOG_TAG, "Failed to parse JSON file : " + filePath, je);
+            header = loadFallback(binary, pPendingRecords);
+        }
+        JSONObject replayHeader = header == null ? new JSONObject() : header;
+        if (replayJournal(replayHeader, pPendingRecords) > 0) {
+            header = replayHeader;
+        }
+        return header;
+    }
+
+    private JSONObject readFile(boolean pBinary, Map<String, FHSyncPendingRecord> pPendingRecords) throws IOException {
+        InputStream fis = mContext.openFileInput(mDatasetId + getExtension(pBinary));
+        try {
+            if (pBinary) {
+                return FHSyncBinarySnapshot.read(new BufferedInputStream(fis), pPendingRecords, mDataRecords);
+            }
+            return readJSON(new JSONTokener(fis), pPendingRecords);
+        } finally {
+            closeQuietly(fis);
+        }
+    }
+
+    /**
+     * Called when the dataset file could not be read. The records read before the error are
+     * dropped and the file in the other format is read instead, if there is one. When nothing can
+     * be read the file is kept aside, so the next save does not overwrite the only copy of the
+     * dataset.
+     *
+     * @return the header of the dataset, or null if it could not be read
+     */
+    private JSONObject loadFallback(boolean pBinary, Map<String, FHSyncPendingRecord> pPendingRecords) {
+        mDataRecords.clear();
+        pPendingRecords.clear();
+        String otherPath = mDatasetId + getExtension(!pBinary);
+        if (mContext.getFileStreamPath(otherPath).exists()) {
+            try {
+                JSONObject header = readFile(!pBinary, pPendingRecords);
+                FHLog.w(LOG_TAG, "Loaded dataset " + mDatasetId + " from " + otherPath + " instead");
+                return header;
+            } catch (IOException e) {
+                FHLog.e(LOG_TAG, "Error reading file : " + otherPath, e);
+            } catch (JSONException je) {
+                FHLog.e(LOG_TAG, "Failed to parse JSON file : " + otherPath, je);
+            }
+            mDataRecords.clear();
+            pPendingRecords.clear();
+        }
+        String filePath = mDatasetId + getExtension(pBinary);
+        String keptPath = filePath + UNREADABLE_FILE_EXT;
+        if (mContext.getFileStreamPath(filePath).renameTo(mContext.getFileStreamPath(keptPath))) {
+            FHLog.w(LOG_TAG, "Kept unreadable dataset file as " + keptPath);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void save(JSONObject pHeader, Map<String, FHSyncPendingRecord> pPendingRecords)
+        throws IOException {
+        if (mUseBinarySnapshot) {
+            writeFile(BINARY_FILE_EXT, STORAGE_FILE_EXT, pHeader, pPendingRecords);
+            return;
+        }
+        JSONObject json = new JSONObject();
+        for (Iterator<String> it = pHeader.keys(); it.hasNext(); ) {
+            String key = it.next();
+            json.put(key, pHeader.get(key));
+        }
+        JSONObject pendingJson = new JSONObject();
+        for (Map.Entry<String, FHSyncPendingRecord> entry : pPendingRecords.entrySet()) {
+            pendingJson.put(entry.getKey(), entry.getValue().getJSON());
+        }
+        json.put(FHSyncDataset.KEY_PENDING_RECORDS, pendingJson);
+        JSONObject dataJson = new JSONObject();
+        for (Map.Entry<String, FHSyncDataRecord> entry : mDataRecords.entrySet()) {
+            dataJson.put(entry.getKey(), entry.getValue().getJSON());
+        }
+        json.put(FHSyncDataset.KEY_DATA_RECORDS, dataJson);
+        writeFile(STORAGE_FILE_EXT, BINARY_FILE_EXT, json, null);
+    }
+
+    /**
+     * In journal mode only the state of the changed uid is appended to the journal. Once the
+     * journal is due for compaction (or journaling is off) the whole dataset has to be written.
+     */
+    @Override
+    public synchronized boolean saveChange(String pUid, JSONObject pMetaData,
+                                           Map<String, FHSyncPendingRecord> pPendingRecords) {
+        if (!mUseJournal || mJournalEntries >= mJournalCompactionThreshold) {
+            return false;
+        }
+        String filePath = mDatasetId + JOURNAL_FILE_EXT;
+        FileOutputStream fos = null;
+        try {
+            fos = mContext.openFileOutput(filePath, Context.MODE_PRIVATE | Context.MODE_APPEND);
+            fos.write((getJournalEntry(pUid, pMetaData, pPendingRecords).toString() + "\n").getBytes("UTF-8"));
+            fos.flush();
+            fos.getFD().sync();
+            mJournalEntries++;
+            return true;
+        } catch (IOException e) {
+            FHLog.e(LOG_TAG, "Error writing journal: " + filePath + ", falling back to a full write", e);
+            return false;
+        } finally {
+            closeQuietly(fos);
+        }
+    }
+
+    @Override
+    public void flushRecords() {
+        // the records are only written with the whole dataset
+    }
+
+    private static String getExtension(boolean pBinary) {
+        return pBinary ? BINARY_FILE_EXT : STORAGE_FILE_EXT;
+    }
+
+    /**
+     * Checks if the dataset has been saved in either format.
+     */
+    boolean exists() {
+        return mContext.getFileStreamPath(mDatasetId + STORAGE_FILE_EXT).exists()
+            || mContext.getFileStreamPath(mDatasetId + BINARY_FILE_EXT).exists();
+    }
+
+    /**
+     * Removes the files of the dataset.
+     */
+    synchronized void delete() {
+        mContext.deleteFile(mDatasetId + STORAGE_FILE_EXT);
+        mContext.deleteFile(mDatasetId + BINARY_FILE_EXT);
+        mContext.deleteFile(mDatasetId + JOURNAL_FILE_EXT);
+        mJournalEntries = 0;
+    }
+
+    /**
+     * Writes the whole dataset to its file and, once that is safely on disk, discards the journal
+     * and the file in the other format.
+     *
+     * @param pDataset the whole dataset as JSON, or the header when pPendingRecords is given and
+     * the binary format is written
+     */
+    private void writeFile(String pExtension, String pOtherExtension, JSONObject pDataset,
+                           Map<String, FHSyncPendingRecord> pPendingRecords) throws IOException {
+        String filePath = mDatasetId + pExtension;
+        String tempPath = filePath + TEMP_FILE_EXT;
+        FileOutputStream fos = null;
+        try {
+            fos = mContext.openFileOutput(tempPath, Context.MODE_PRIVATE);
+            if (pPendingRecords != null) {
+                FHSyncBinarySnapshot.write(new BufferedOutputStream(fos), pDataset, pPendingRecords, mDataRecords);
+            } else {
+                fos.write(pDataset.toString().getBytes("UTF-8"));
+            }
+            fos.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            if (!mContext.getFileStreamPath(tempPath).renameTo(mContext.getFileStreamPath(filePath))) {
+                throw new IOException("Unable to replace " + filePath);
+            }
+            mContext.deleteFile(mDatasetId + JOURNAL_FILE_EXT);
+            mContext.deleteFile(mDatasetId + pOtherExtension);
+            mJournalEntries = 0;
+        } finally {
+            closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Reads the dataset file. Data and pending records are materialized one at a time as the
+     * file is read, so the whole file never has to be held as a String or a single JSON tree.
+     *
+     * @return everything else in the file
+     */
+    private JSONObject readJSON(JSONTokener pTokener, Map<String, FHSyncPendingRecord> pPendingRecords) {
+        if (pTokener.nextClean() != '{') {
+            throw pTokener.syntaxError("A dataset file must begin with '{'");
+        }
+        JSONObject header = new JSONObject();
+        for (String key = nextKey(pTokener, true); key != null; key = nextKey(pTokener, false)) {
+            if (FHSyncDataset.KEY_DATA_RECORDS.equals(key)) {
+                readRecords(pTokener, null);
+            } else if (FHSyncDataset.KEY_PENDING_RECORDS.equals(key)) {
+                readRecords(pTokener, pPendingRecords);
+            } else {
+                header.put(key, pTokener.nextValue());
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Reads the data records, or the pending records when pPendingRecords is not null.
+     */
+    private void readRecords(JSONTokener pTokener, Map<String, FHSyncPendingRecord> pPendingRecords) {
+        if (pTokener.nextClean() != '{') {
+            throw pTokener.syntaxError("Expected '{'");
+        }
+        for (String key = nextKey(pTokener, true); key != null; key = nextKey(pTokener, false)) {
+            JSONObject recordJson = new JSONObject(pTokener);
+            if (pPendingRecords == null) {
+                mDataRecords.put(key, FHSyncDataRecord.fromPersistedJSON(recordJson));
+            } else {
+                pPendingRecords.put(key, FHSyncPendingRecord.fromPersistedJSON(recordJson));
+            }
+        }
+    }
+
+    /**
+     * Reads the next key of an object whose opening brace has already been consumed.
+     *
+     * @return the key, positioned before its value, or null once the closing brace is reached
+     */
+    private static String nextKey(JSONTokener pTokener, boolean pFirst) {
+        char c = pTokener.nextClean();
+        if (!pFirst && c != '}') {
+            if (c != ',') {
+                throw pTokener.syntaxError("Expected a ',' or '}'");
+            }
+            c = pTokener.nextClean();
+        }
+        if (c == '}') {
+            return null;
+        }
+        if (c == 0) {
+            throw pTokener.syntaxError("Expected a '}'");
+        }
+        pTokener.back();
+        String key = pTokener.nextValue().toString();
+        if (pTokener.nextClean() != ':') {
+            throw pTokener.syntaxError("Expected a ':' after a key");
+        }
+        return key;
+    }
+
+    /**
+     * A journal entry holds the complete local state of a single uid (data record, metadata and
+     * every pending record for it), so replaying an entry is idempotent.
+     */
+    private JSONObject getJournalEntry(String pUid, JSONObject pMetaData,
+                                       Map<String, FHSyncPendingRecord> pPendingRecords) {
+        JSONObject entry = new JSONObject();
+        entry.put(KEY_JOURNAL_UID, pUid);
+        FHSyncDataRecord record = mDataRecords.get(pUid);
+        if (record != null) {
+            entry.put(KEY_JOURNAL_RECORD, record.getJSON());
+        }
+        if (pMetaData != null) {
+            entry.put(KEY_JOURNAL_META, pMetaData);
+        }
+        JSONObject pendingJson = new JSONObject();
+        for (Map.Entry<String, FHSyncPendingRecord> pendingEntry : pPendingRecords.entrySet()) {
+            if (pUid.equals(pendingEntry.getValue().getUid())) {
+                pendingJson.put(pendingEntry.getKey(), pendingEntry.getValue().getJSON());
+            }
+        }
+        entry.put(KEY_JOURNAL_PENDING, pendingJson);
+        return entry;
+    }
+
+    private void applyJournalEntry(JSONObject pEntry, JSONObject pHeader,
+                                   Map<String, FHSyncPendingRecord> pPendingRecords) {
+        String uid = pEntry.getString(KEY_JOURNAL_UID);
+        JSONObject record = pEntry.optJSONObject(KEY_JOURNAL_RECORD);
+        if (record != null) {
+            mDataRecords.put(uid, FHSyncDataRecord.fromPersistedJSON(record));
+        } else {
+            mDataRecords.remove(uid);
+        }
+        JSONObject metadata = pEntry.optJSONObject(KEY_JOURNAL_META);
+        JSONObject headerMetaData = pHeader.optJSONObject(FHSyncDataset.KEY_METADATA);
+        if (headerMetaData == null) {
+            headerMetaData = new JSONObject();
+            pHeader.put(FHSyncDataset.KEY_METADATA, headerMetaData);
+        }
+        if (metadata != null) {
+            headerMetaData.put(uid, metadata);
+        } else {
+            headerMetaData.remove(uid);
+        }
+        for (Iterator<Map.Entry<String, FHSyncPendingRecord>> it = pPendingRecords.entrySet().iterator(); it.hasNext(); ) {
+            if (uid.equals(it.next().getValue().getUid())) {
+                it.remove();
+            }
+        }
+        JSONObject pendingJson = pEntry.getJSONObject(KEY_JOURNAL_PENDING);
+        for (Iterator<String> it = pendingJson.keys(); it.hasNext(); ) {
+            String key = it.next();
+            pPendingRecords.put(key, FHSyncPendingRecord.fromPersistedJSON(pendingJson.getJSONObject(key)));
+        }
+    }
+
+    private int replayJournal(JSONObject pHeader, Map<String, FHSyncPendingRecord> pPendingRecords) {
+        String filePath = mDatasetId + JOURNAL_FILE_EXT;
+        BufferedReader reader = null;
+        int replayed = 0;
+        boolean truncated = false;
+        try {
+            reader = new BufferedReader(new InputStreamReader(mContext.openFileInput(filePath), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                JSONObject entry;
+                try {
+                    entry = new JSONObject(line);
+                } catch (JSONException je) {
+                    // A partially written last entry means the app died while appending, the change was never acknowledged
+                    FHLog.w(LOG_TAG, "Ignoring truncated journal entry " + (replayed + 1) + " in " + filePath);
+                    truncated = true;
+                    break;
+                }
+                applyJournalEntry(entry, pHeader, pPendingRecords);
+                replayed++;
+            }
+        } catch (FileNotFoundException ex) {
+            // No journal, the dataset file is up to date
+        } catch (IOException e) {
+            FHLog.e(LOG_TAG, "Error reading journal : " + filePath, e);
+        } catch (JSONException je) {
+            FHLog.e(LOG_TAG, "Failed to replay journal : " + filePath, je);
+        } finally {
+            closeQuietly(reader);
+        }
+        mJournalEntries = replayed;
+        if (replayed > 0) {
+            FHLog.d(LOG_TAG, "Replayed " + replayed + " journal entries for " + mDatasetId);
+        }
+        if (truncated) {
+            // entries appended after the broken one would never be replayed, start from a clean file
+            try {
+                save(pHeader, pPendingRecords);
+            } catch (IOException e) {
+                FHLog.e(LOG_TAG, "Error compacting journal: " + filePath, e);
+            }
+        }
+        return replayed;
+    }
+
+    static void closeQuietly(Closeable pCloseable) {
+        if (pCloseable != null) {
+            try {
+                pCloseable.close();
+            } catch (IOException e) {
+                FHLog.w(LOG_TAG, "Failed to close stream: " + e.getMessage());
+            }
+        }
+    }
+}
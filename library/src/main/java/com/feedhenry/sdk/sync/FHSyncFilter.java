@@ -0,0 +1,33 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import org.json.fh.JSONObject;
+
+/**
+ * Selects the records returned by
+ * {@link FHSyncClient#list(String, FHSyncFilter, java.util.Comparator, int, int)}.
+ */
+public interface FHSyncFilter {
+    /**
+     * Decides if a record should be part of the result.
+     *
+     * @param pUid The uid of the record
+     * @param pData A read-only view of the record data
+     * @return true to include the record
+     */
+    boolean accept(String pUid, JSONObject pData);
+}
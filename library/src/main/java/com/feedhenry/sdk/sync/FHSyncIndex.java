@@ -0,0 +1,229 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.json.fh.JSONObject;
+
+/**
+ * A sorted index over one field of the records of a dataset. It maps the field value to the uids
+ * of the records holding that value, so lookups and range queries do not have to scan and
+ * re-read every record.
+ *
+ * Only string, number and boolean values are indexed. Values of different types never compare
+ * equal; booleans sort before numbers and numbers before strings. Numbers are compared by value,
+ * so 1 and 1.0 are the same key.
+ */
+class FHSyncIndex {
+
+    private static final Comparator<Object> VALUE_ORDER = new Comparator<Object>() {
+        @Override
+        public int compare(Object pLeft, Object pRight) {
+            int rank = rank(pLeft) - rank(pRight);
+            if (rank != 0) {
+                return rank;
+            }
+            if (pLeft instanceof Boolean) {
+                return ((Boolean) pLeft).compareTo((Boolean) pRight);
+            }
+            if (pLeft instanceof Number) {
+                return compareNumbers((Number) pLeft, (Number) pRight);
+            }
+            return ((String) pLeft).compareTo((String) pRight);
+        }
+    };
+
+    private final String mField;
+    private final String[] mPath;
+    private final TreeMap<Object, Set<String>> mEntries = new TreeMap<>(VALUE_ORDER);
+    private final Map<String, Object> mValues = new HashMap<>();
+
+    /**
+     * @param pField the field name, with dots separating the names of nested objects
+     */
+    FHSyncIndex(String pField) {
+        mField = pField;
+        mPath = pField.split("\\.");
+    }
+
+    String getField() {
+        return mField;
+    }
+
+    /**
+     * Indexes a record, replacing whatever was indexed for its uid before.
+     *
+     * @param pUid the record uid
+     * @param pData the record data, may be null
+     */
+    synchronized void put(String pUid, JSONObject pData) {
+        Object value = valueOf(pData);
+        Object previous = mValues.get(pUid);
+        if (previous != null) {
+            if (value != null && VALUE_ORDER.compare(previous, value) == 0) {
+                return;
+            }
+            unlink(pUid, previous);
+        }
+        if (value == null) {
+            return;
+        }
+        mValues.put(pUid, value);
+        Set<String> uids = mEntries.get(value);
+        if (uids == null) {
+            uids = new TreeSet<>();
+            mEntries.put(value, uids);
+        }
+        uids.add(pUid);
+    }
+
+    synchronized void remove(String pUid) {
+        Object previous = mValues.get(pUid);
+        if (previous != null) {
+            unlink(pUid, previous);
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mValues.clear();
+    }
+
+    /**
+     * Gets the uids of the records whose field equals the value.
+     *
+     * @param pValue a string, number or boolean
+     * @return the uids in ascending order
+     */
+    synchronized List<String> find(Object pValue) {
+        Set<String> uids = mEntries.get(checkValue(pValue));
+        return uids == null ? new ArrayList<String>() : new ArrayList<>(uids);
+    }
+
+    /**
+     * Gets the uids of the records whose field is between the two values, both inclusive.
+     *
+     * @param pFrom the lower bound, or null for no lower bound
+     * @param pTo the upper bound, or null for no upper bound
+     * @return the uids ordered by field value, then by uid
+     */
+    synchronized List<String> findRange(Object pFrom, Object pTo) {
+        NavigableMap<Object, Set<String>> range = mEntries;
+        if (pFrom != null && pTo != null) {
+            if (VALUE_ORDER.compare(checkValue(pFrom), checkValue(pTo)) > 0) {
+                return new ArrayList<>();
+            }
+            range = mEntries.subMap(pFrom, true, pTo, true);
+        } else if (pFrom != null) {
+            range = mEntries.tailMap(checkValue(pFrom), true);
+        } else if (pTo != null) {
+            range = mEntries.headMap(checkValue(pTo), true);
+        }
+        List<String> result = new ArrayList<>();
+        for (Collection<String> uids : range.values()) {
+            result.addAll(uids);
+        }
+        return result;
+    }
+
+    /**
+     * Tells whether the field of a record is between two values, both inclusive. Lookups re-check
+     * the records they read with it, since those can be older than the index for a moment.
+     *
+     * @param pData the record data
+     * @param pFrom the lower bound, or null for no lower bound
+     * @param pTo the upper bound, or null for no upper bound
+     */
+    boolean isInRange(JSONObject pData, Object pFrom, Object pTo) {
+        Object value = valueOf(pData);
+        return value != null
+            && (pFrom == null || VALUE_ORDER.compare(value, pFrom) >= 0)
+            && (pTo == null || VALUE_ORDER.compare(value, pTo) <= 0);
+    }
+
+    /**
+     * Compares the field of two records that are both indexed, see {@link #isInRange}.
+     */
+    int compare(JSONObject pFirst, JSONObject pSecond) {
+        return VALUE_ORDER.compare(valueOf(pFirst), valueOf(pSecond));
+    }
+
+    private void unlink(String pUid, Object pValue) {
+        mValues.remove(pUid);
+        Set<String> uids = mEntries.get(pValue);
+        if (uids != null) {
+            uids.remove(pUid);
+            if (uids.isEmpty()) {
+                mEntries.remove(pValue);
+            }
+        }
+    }
+
+    private Object valueOf(JSONObject pData) {
+        JSONObject current = pData;
+        for (int i = 0; i < mPath.length - 1 && current != null; i++) {
+            current = current.optJSONObject(mPath[i]);
+        }
+        if (current == null) {
+            return null;
+        }
+        Object value = current.opt(mPath[mPath.length - 1]);
+        return rank(value) < 0 ? null : value;
+    }
+
+    private static Object checkValue(Object pValue) {
+        if (rank(pValue) < 0) {
+            throw new IllegalArgumentException("Only strings, numbers and booleans can be looked up in an index");
+        }
+        return pValue;
+    }
+
+    private static int rank(Object pValue) {
+        if (pValue instanceof Boolean) {
+            return 0;
+        }
+        if (pValue instanceof Number) {
+            return 1;
+        }
+        if (pValue instanceof String) {
+            return 2;
+        }
+        return -1;
+    }
+
+    private static int compareNumbers(Number pLeft, Number pRight) {
+        if (isIntegral(pLeft) && isIntegral(pRight)) {
+            long left = pLeft.longValue();
+            long right = pRight.longValue();
+            return left < right ? -1 : (left == right ? 0 : 1);
+        }
+        return Double.compare(pLeft.doubleValue(), pRight.doubleValue());
+    }
+
+    private static boolean isIntegral(Number pValue) {
+        return pValue instanceof Integer || pValue instanceof Long
+            || pValue instanceof Short || pValue instanceof Byte;
+    }
+}
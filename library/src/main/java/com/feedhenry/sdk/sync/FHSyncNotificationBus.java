@@ -0,0 +1,90 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Hands the events of the datasets of a {@link FHSyncClient} to the subscriptions that are for
+ * them. Datasets check {@link #hasSubscriptions(String, int)} before they build an event, so events
+ * nobody subscribed to cost nothing.
+ */
+final class FHSyncNotificationBus {
+
+    private static final int ALL_CODES = (1 << (NotificationMessage.LOCAL_UPDATE_APPLIED_CODE + 1)) - 1;
+
+    private static final FHSyncSubscription[] NO_SUBSCRIPTIONS = new FHSyncSubscription[0];
+
+    // replaced rather than changed, so that going through it takes neither a lock nor an iterator
+    private volatile FHSyncSubscription[] mSubscriptions = NO_SUBSCRIPTIONS;
+
+    /**
+     * @param pDataId the id of the dataset, or null for all datasets
+     * @param pCodes the notification codes, or none for all codes
+     */
+    FHSyncSubscription subscribe(String pDataId, Executor pExecutor, FHSyncEventListener pListener, int... pCodes) {
+        if (pExecutor == null || pListener == null) {
+            throw new IllegalArgumentException("A subscription needs an executor and a listener");
+        }
+        int codes = pCodes.length == 0 ? ALL_CODES : 0;
+        for (int code : pCodes) {
+            if (code < 0 || ((1 << code) & ALL_CODES) == 0) {
+                throw new IllegalArgumentException("Unknown notification code " + code);
+            }
+            codes |= 1 << code;
+        }
+        FHSyncSubscription subscription = new FHSyncSubscription(this, pDataId, codes, pExecutor, pListener);
+        synchronized (this) {
+            FHSyncSubscription[] subscriptions = Arrays.copyOf(mSubscriptions, mSubscriptions.length + 1);
+            subscriptions[subscriptions.length - 1] = subscription;
+            mSubscriptions = subscriptions;
+        }
+        return subscription;
+    }
+
+    synchronized void remove(FHSyncSubscription pSubscription) {
+        FHSyncSubscription[] subscriptions = mSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i] == pSubscription) {
+                FHSyncSubscription[] remaining = new FHSyncSubscription[subscriptions.length - 1];
+                System.arraycopy(subscriptions, 0, remaining, 0, i);
+                System.arraycopy(subscriptions, i + 1, remaining, i, remaining.length - i);
+                mSubscriptions = remaining;
+                return;
+            }
+        }
+    }
+
+    boolean hasSubscriptions(String pDataId, int pCode) {
+        FHSyncSubscription[] subscriptions = mSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i].matches(pDataId, pCode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void publish(int pCode, NotificationMessage pMessage) {
+        FHSyncSubscription[] subscriptions = mSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i].matches(pMessage.getDataId(), pCode)) {
+                subscriptions[i].deliver(pMessage);
+            }
+        }
+    }
+}
@@ -18,10 +18,15 @@ package com.feedhenry.sdk.sync;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import java.util.ArrayList;
+import java.util.List;
 
 public class FHSyncNotificationHandler extends Handler {
 
     private FHSyncListener mSyncListener;
+    private final Object mBatchLock = new Object();
+    // the batched notification sent last, as long as it is undelivered and nothing was sent after it
+    private Batch mLastBatch;
 
     public FHSyncNotificationHandler(FHSyncListener pListener) {
         super();
@@ -37,8 +42,51 @@ public class FHSyncNotificationHandler extends Handler {
         mSyncListener = pListener;
     }
 
+    /**
+     * Notifies an event about several records. If the last message sent is an undelivered
+     * notification of the same event of the dataset, the records are added to it instead of
+     * sending another one. Records are never added to a notification queued before another
+     * message, so the listener hears of the events in the order they happened.
+     *
+     * @param pDataId the id of the dataset
+     * @param pCode the code of the event
+     * @param pMessage the message of the event
+     * @param pUIDs the ids of the records
+     */
+    void notifyRecords(String pDataId, int pCode, String pMessage, List<String> pUIDs) {
+        synchronized (mBatchLock) {
+            if (mLastBatch != null && mLastBatch.isFor(pDataId, pCode, pMessage)) {
+                mLastBatch.mUIDs.addAll(pUIDs);
+                return;
+            }
+            Batch batch = new Batch(pDataId, pCode, pMessage, new ArrayList<>(pUIDs));
+            sendMessage(obtainMessage(pCode, batch));
+            mLastBatch = batch;
+        }
+    }
+
+    @Override
+    public boolean sendMessageAtTime(Message pMsg, long pUptimeMillis) {
+        // every way of sending a message ends here
+        synchronized (mBatchLock) {
+            mLastBatch = null;
+            return super.sendMessageAtTime(pMsg, pUptimeMillis);
+        }
+    }
+
     public void handleMessage(Message pMsg) {
-        NotificationMessage notification = (NotificationMessage) pMsg.obj;
+        NotificationMessage notification;
+        if (pMsg.obj instanceof Batch) {
+            Batch batch = (Batch) pMsg.obj;
+            synchronized (mBatchLock) {
+                if (mLastBatch == batch) {
+                    mLastBatch = null;
+                }
+            }
+            notification = NotificationMessage.getBatchMessage(batch.mDataId, batch.mUIDs, batch.mCode, batch.mMessage);
+        } else {
+            notification = (NotificationMessage) pMsg.obj;
+        }
         if (mSyncListener != null) {
             switch (pMsg.what) {
                 case NotificationMessage.SYNC_STARTED_CODE:
@@ -75,4 +123,23 @@ public class FHSyncNotificationHandler extends Handler {
             }
         }
     }
+
+    private static final class Batch {
+        final String mDataId;
+        final int mCode;
+        final String mMessage;
+        final List<String> mUIDs;
+
+        Batch(String pDataId, int pCode, String pMessage, List<String> pUIDs) {
+            mDataId = pDataId;
+            mCode = pCode;
+            mMessage = pMessage;
+            mUIDs = pUIDs;
+        }
+
+        boolean isFor(String pDataId, int pCode, String pMessage) {
+            return mCode == pCode && mDataId.equals(pDataId)
+                && (mMessage == null ? pMessage == null : mMessage.equals(pMessage));
+        }
+    }
 }
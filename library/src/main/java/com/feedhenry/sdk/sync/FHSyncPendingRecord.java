@@ -66,6 +66,10 @@ public class FHSyncPendingRecord {
 
     private static final String KEY_HASH = "hash";
     private String waitingFor;
+
+    // the store this record is in, which indexes it by uid, waitingFor and state, and its key there
+    FHSyncPendingStore store;
+    String storeKey;
     
 
     public FHSyncPendingRecord() {
@@ -104,6 +108,21 @@ public class FHSyncPendingRecord {
     }
 
     public static FHSyncPendingRecord fromJSON(JSONObject pObj) {
+        return fromJSON(pObj, false);
+    }
+
+    /**
+     * Builds a pending record from JSON read back from local storage, trusting the stored hashes
+     * of the pre and post data instead of recomputing them.
+     *
+     * @param pObj the persisted JSON form of a pending record
+     * @return the pending record
+     */
+    static FHSyncPendingRecord fromPersistedJSON(JSONObject pObj) {
+        return fromJSON(pObj, true);
+    }
+
+    private static FHSyncPendingRecord fromJSON(JSONObject pObj, boolean pTrustHashes) {
         FHSyncPendingRecord record = new FHSyncPendingRecord();
         if (pObj.has(KEY_INFLIGHT)) {
             record.setInFlight(pObj.getBoolean(KEY_INFLIGHT));
@@ -124,16 +143,10 @@ public class FHSyncPendingRecord {
             record.setUid(pObj.getString(KEY_UID));
         }
         if (pObj.has(KEY_PRE)) {
-            FHSyncDataRecord preData = new FHSyncDataRecord();
-            preData.setData(pObj.getJSONObject(KEY_PRE));
-            preData.setHashValue(pObj.getString(KEY_PRE_HASH));
-            record.setPreData(preData);
+            record.setPreData(toDataRecord(pObj.getJSONObject(KEY_PRE), pObj.getString(KEY_PRE_HASH), pTrustHashes));
         }
         if (pObj.has(KEY_POST)) {
-            FHSyncDataRecord postData = new FHSyncDataRecord();
-            postData.setData(pObj.getJSONObject(KEY_POST));
-            postData.setHashValue(pObj.getString(KEY_POST_HASH));
-            record.setPostData(postData);
+            record.setPostData(toDataRecord(pObj.getJSONObject(KEY_POST), pObj.getString(KEY_POST_HASH), pTrustHashes));
         }
         
         if (pObj.has(KEY_DELAYED)) {
@@ -169,7 +182,9 @@ public class FHSyncPendingRecord {
     }
 
     public void setInFlight(boolean inFight) {
+        FHSyncPendingStore owner = beforeChange();
         this.inFight = inFight;
+        afterChange(owner);
     }
 
     public Date getInFlightDate() {
@@ -185,7 +200,9 @@ public class FHSyncPendingRecord {
     }
 
     public void setCrashed(boolean crashed) {
+        FHSyncPendingStore owner = beforeChange();
         this.crashed = crashed;
+        afterChange(owner);
     }
 
     public String getAction() {
@@ -209,7 +226,9 @@ public class FHSyncPendingRecord {
     }
 
     public void setUid(String uid) {
+        FHSyncPendingStore owner = beforeChange();
         this.uid = uid;
+        afterChange(owner);
     }
 
     public FHSyncDataRecord getPreData() {
@@ -257,7 +276,9 @@ public class FHSyncPendingRecord {
     }
     
     public void setDelayed(boolean delayed) {
+        FHSyncPendingStore owner = beforeChange();
         this.delayed = delayed;
+        afterChange(owner);
     }
 
     public String getWaitingFor() {
@@ -265,7 +286,32 @@ public class FHSyncPendingRecord {
     }
 
     public void setWaitingFor(String waitingFor) {
+        FHSyncPendingStore owner = beforeChange();
         this.waitingFor = waitingFor;
+        afterChange(owner);
+    }
+
+    private FHSyncPendingStore beforeChange() {
+        FHSyncPendingStore owner = store;
+        if (owner != null) {
+            owner.beforeChange(this);
+        }
+        return owner;
+    }
+
+    private void afterChange(FHSyncPendingStore pStore) {
+        if (pStore != null) {
+            pStore.afterChange(this);
+        }
+    }
+
+    private static FHSyncDataRecord toDataRecord(JSONObject pData, String pHashValue, boolean pTrustHash) {
+        if (pTrustHash) {
+            return FHSyncDataRecord.fromPersistedData(pData, pHashValue);
+        }
+        FHSyncDataRecord dataRecord = new FHSyncDataRecord();
+        dataRecord.setData(pData);
+        dataRecord.setHashValue(pHashValue);
+        return dataRecord;
     }
-    
 }
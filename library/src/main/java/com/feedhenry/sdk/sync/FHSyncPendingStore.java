@@ -0,0 +1,266 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The pending records of a dataset, keyed by their hash, with secondary indexes by uid, by the
+ * hash they are waiting for and by state, so that a sync response can be applied by looking up
+ * the records it mentions instead of scanning the whole queue.
+ *
+ * A record keeps the indexes up to date itself while it is in the store: its setters for the
+ * indexed fields tell the store about the change. Lookups and iteration do not lock and, like a
+ * {@link ConcurrentHashMap}, may or may not see changes made while they run.
+ */
+final class FHSyncPendingStore extends AbstractMap<String, FHSyncPendingRecord> {
+
+    private final ConcurrentMap<String, FHSyncPendingRecord> mRecords = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> mByUid = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> mByWaitingFor = new ConcurrentHashMap<>();
+    private final Set<String> mInFlight = newKeySet();
+    private final Set<String> mCrashed = newKeySet();
+    private final Set<String> mDelayed = newKeySet();
+
+    private static Set<String> newKeySet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    @Override
+    public FHSyncPendingRecord get(Object pKey) {
+        return mRecords.get(pKey);
+    }
+
+    @Override
+    public boolean containsKey(Object pKey) {
+        return mRecords.containsKey(pKey);
+    }
+
+    @Override
+    public int size() {
+        return mRecords.size();
+    }
+
+    @Override
+    public synchronized FHSyncPendingRecord put(String pKey, FHSyncPendingRecord pRecord) {
+        if (pRecord.store != null && pRecord.store != this) {
+            throw new IllegalStateException("The pending record is in another dataset");
+        }
+        FHSyncPendingRecord previous = mRecords.get(pKey);
+        if (previous == pRecord) {
+            return previous;
+        }
+        if (previous != null) {
+            unindex(previous);
+            previous.store = null;
+            previous.storeKey = null;
+        }
+        if (pRecord.store == this) {
+            // the record is moving to a new key
+            remove(pRecord.storeKey);
+        }
+        pRecord.store = this;
+        pRecord.storeKey = pKey;
+        mRecords.put(pKey, pRecord);
+        index(pRecord);
+        return previous;
+    }
+
+    @Override
+    public synchronized FHSyncPendingRecord remove(Object pKey) {
+        FHSyncPendingRecord record = mRecords.remove(pKey);
+        if (record != null) {
+            unindex(record);
+            record.store = null;
+            record.storeKey = null;
+        }
+        return record;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (FHSyncPendingRecord record : mRecords.values()) {
+            record.store = null;
+            record.storeKey = null;
+        }
+        mRecords.clear();
+        mByUid.clear();
+        mByWaitingFor.clear();
+        mInFlight.clear();
+        mCrashed.clear();
+        mDelayed.clear();
+    }
+
+    @Override
+    public Set<Entry<String, FHSyncPendingRecord>> entrySet() {
+        return new AbstractSet<Entry<String, FHSyncPendingRecord>>() {
+            @Override
+            public Iterator<Entry<String, FHSyncPendingRecord>> iterator() {
+                final Iterator<Entry<String, FHSyncPendingRecord>> entries = mRecords.entrySet().iterator();
+                return new Iterator<Entry<String, FHSyncPendingRecord>>() {
+                    private String mLastKey;
+
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, FHSyncPendingRecord> next() {
+                        Entry<String, FHSyncPendingRecord> entry = entries.next();
+                        mLastKey = entry.getKey();
+                        return new SimpleImmutableEntry<>(entry);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (mLastKey == null) {
+                            throw new IllegalStateException();
+                        }
+                        FHSyncPendingStore.this.remove(mLastKey);
+                        mLastKey = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return mRecords.size();
+            }
+        };
+    }
+
+    /**
+     * @return the pending records of a uid
+     */
+    List<FHSyncPendingRecord> getByUid(String pUid) {
+        return lookup(mByUid.get(pUid));
+    }
+
+    /**
+     * @return the pending records waiting for the pending record with the given hash
+     */
+    List<FHSyncPendingRecord> getWaitingFor(String pHash) {
+        return lookup(mByWaitingFor.get(pHash));
+    }
+
+    List<FHSyncPendingRecord> getInFlight() {
+        return lookup(mInFlight);
+    }
+
+    List<FHSyncPendingRecord> getCrashed() {
+        return lookup(mCrashed);
+    }
+
+    List<FHSyncPendingRecord> getDelayed() {
+        return lookup(mDelayed);
+    }
+
+    boolean hasUid(String pUid) {
+        Set<String> keys = mByUid.get(pUid);
+        return keys != null && !keys.isEmpty();
+    }
+
+    private List<FHSyncPendingRecord> lookup(Set<String> pKeys) {
+        if (pKeys == null || pKeys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<FHSyncPendingRecord> records = new ArrayList<>(pKeys.size());
+        for (String key : pKeys) {
+            FHSyncPendingRecord record = mRecords.get(key);
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Called by a record in this store before one of its indexed fields changes.
+     */
+    synchronized void beforeChange(FHSyncPendingRecord pRecord) {
+        if (mRecords.get(pRecord.storeKey) == pRecord) {
+            unindex(pRecord);
+        }
+    }
+
+    /**
+     * Called by a record in this store after one of its indexed fields changed.
+     */
+    synchronized void afterChange(FHSyncPendingRecord pRecord) {
+        if (mRecords.get(pRecord.storeKey) == pRecord) {
+            index(pRecord);
+        }
+    }
+
+    private void index(FHSyncPendingRecord pRecord) {
+        String key = pRecord.storeKey;
+        addTo(mByUid, pRecord.getUid(), key);
+        addTo(mByWaitingFor, pRecord.getWaitingFor(), key);
+        if (pRecord.isInFlight()) {
+            mInFlight.add(key);
+        }
+        if (pRecord.isCrashed()) {
+            mCrashed.add(key);
+        }
+        if (pRecord.isDelayed()) {
+            mDelayed.add(key);
+        }
+    }
+
+    private void unindex(FHSyncPendingRecord pRecord) {
+        String key = pRecord.storeKey;
+        removeFrom(mByUid, pRecord.getUid(), key);
+        removeFrom(mByWaitingFor, pRecord.getWaitingFor(), key);
+        mInFlight.remove(key);
+        mCrashed.remove(key);
+        mDelayed.remove(key);
+    }
+
+    private static void addTo(ConcurrentMap<String, Set<String>> pIndex, String pValue, String pKey) {
+        if (pValue == null) {
+            return;
+        }
+        Set<String> keys = pIndex.get(pValue);
+        if (keys == null) {
+            keys = newKeySet();
+            pIndex.put(pValue, keys);
+        }
+        keys.add(pKey);
+    }
+
+    private static void removeFrom(Map<String, Set<String>> pIndex, String pValue, String pKey) {
+        if (pValue == null) {
+            return;
+        }
+        Set<String> keys = pIndex.get(pValue);
+        if (keys != null) {
+            keys.remove(pKey);
+            if (keys.isEmpty()) {
+                pIndex.remove(pValue);
+            }
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map keyed by strings. {@link #plus(String, Object)} and {@link #minus(String)}
+ * return a new map that shares everything but the path to the changed key with this one, so a
+ * change copies a handful of small arrays whatever the size of the map, and a map that has been
+ * handed out never changes.
+ *
+ * The map is a hash array mapped trie: each level of the tree uses five bits of the key hash to
+ * pick one of up to 32 children, and a node only has slots for the children it has.
+ *
+ * @param <V> the type of the values
+ */
+final class FHSyncPersistentMap<V> extends AbstractMap<String, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final FHSyncPersistentMap<Object> EMPTY = new FHSyncPersistentMap<>(null, 0, 0);
+
+    // a Leaf, a Collision or a Node, or null when the map is empty
+    private final Object mRoot;
+    private final int mSize;
+    private final long mVersion;
+
+    private FHSyncPersistentMap(Object pRoot, int pSize, long pVersion) {
+        mRoot = pRoot;
+        mSize = pSize;
+        mVersion = pVersion;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> FHSyncPersistentMap<V> empty() {
+        return (FHSyncPersistentMap<V>) EMPTY;
+    }
+
+    /**
+     * @return the version of the map, which only changes through {@link #nextVersion()}
+     */
+    long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return a map with the same entries and the next version
+     */
+    FHSyncPersistentMap<V> nextVersion() {
+        return new FHSyncPersistentMap<>(mRoot, mSize, mVersion + 1);
+    }
+
+    /**
+     * @return a map where the key has the value
+     */
+    FHSyncPersistentMap<V> plus(String pKey, V pValue) {
+        if (pKey == null) {
+            throw new NullPointerException();
+        }
+        boolean[] added = new boolean[1];
+        Object root = mRoot == null ? new Leaf<>(hash(pKey), pKey, pValue)
+            : put(mRoot, 0, new Leaf<>(hash(pKey), pKey, pValue), added);
+        if (mRoot == null) {
+            added[0] = true;
+        }
+        return root == mRoot ? this : new FHSyncPersistentMap<V>(root, added[0] ? mSize + 1 : mSize, mVersion);
+    }
+
+    /**
+     * @return a map without the key
+     */
+    FHSyncPersistentMap<V> minus(String pKey) {
+        if (pKey == null || mRoot == null) {
+            return this;
+        }
+        Object root = remove(mRoot, 0, hash(pKey), pKey);
+        return root == mRoot ? this : new FHSyncPersistentMap<V>(root, mSize - 1, mVersion);
+    }
+
+    @Override
+    public V get(Object pKey) {
+        Leaf<V> leaf = find(pKey);
+        return leaf == null ? null : leaf.mValue;
+    }
+
+    @Override
+    public boolean containsKey(Object pKey) {
+        return find(pKey) != null;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        return new AbstractSet<Entry<String, V>>() {
+            @Override
+            public Iterator<Entry<String, V>> iterator() {
+                return new EntryIterator<>(mRoot);
+            }
+
+            @Override
+            public int size() {
+                return mSize;
+            }
+        };
+    }
+
+    private static int hash(String pKey) {
+        int h = pKey.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int pHash, int pShift) {
+        return 1 << ((pHash >>> pShift) & MASK);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Leaf<V> find(Object pKey) {
+        if (!(pKey instanceof String)) {
+            return null;
+        }
+        String key = (String) pKey;
+        int hash = hash(key);
+        Object node = mRoot;
+        int shift = 0;
+        while (node != null) {
+            if (node instanceof Leaf) {
+                Leaf<V> leaf = (Leaf<V>) node;
+                return leaf.mKey.equals(key) ? leaf : null;
+            }
+            if (node instanceof Collision) {
+                return (Leaf<V>) ((Collision) node).find(hash, key);
+            }
+            Node branch = (Node) node;
+            int bit = bit(hash, shift);
+            if ((branch.mBitmap & bit) == 0) {
+                return null;
+            }
+            node = branch.mSlots[branch.index(bit)];
+            shift += BITS;
+        }
+        return null;
+    }
+
+    /**
+     * @return the node with the leaf added or replaced, or pNode itself if it already holds it
+     */
+    private static Object put(Object pNode, int pShift, Leaf<?> pLeaf, boolean[] pAdded) {
+        if (pNode instanceof Leaf) {
+            Leaf<?> leaf = (Leaf<?>) pNode;
+            if (leaf.mKey.equals(pLeaf.mKey)) {
+                return leaf.mValue == pLeaf.mValue ? leaf : pLeaf;
+            }
+            pAdded[0] = true;
+            if (leaf.mHash == pLeaf.mHash) {
+                return new Collision(leaf.mHash, new Leaf<?>[] {leaf, pLeaf});
+            }
+            return merge(leaf, leaf.mHash, pLeaf, pShift);
+        }
+        if (pNode instanceof Collision) {
+            Collision collision = (Collision) pNode;
+            if (collision.mHash != pLeaf.mHash) {
+                pAdded[0] = true;
+                return merge(collision, collision.mHash, pLeaf, pShift);
+            }
+            return collision.put(pLeaf, pAdded);
+        }
+        Node node = (Node) pNode;
+        int bit = bit(pLeaf.mHash, pShift);
+        int index = node.index(bit);
+        if ((node.mBitmap & bit) == 0) {
+            pAdded[0] = true;
+            Object[] slots = new Object[node.mSlots.length + 1];
+            System.arraycopy(node.mSlots, 0, slots, 0, index);
+            slots[index] = pLeaf;
+            System.arraycopy(node.mSlots, index, slots, index + 1, node.mSlots.length - index);
+            return new Node(node.mBitmap | bit, slots);
+        }
+        Object child = node.mSlots[index];
+        Object newChild = put(child, pShift + BITS, pLeaf, pAdded);
+        return newChild == child ? node : node.with(index, newChild);
+    }
+
+    /**
+     * Makes a node holding two entries whose hashes differ.
+     */
+    private static Object merge(Object pFirst, int pFirstHash, Leaf<?> pSecond, int pShift) {
+        int firstBit = bit(pFirstHash, pShift);
+        int secondBit = bit(pSecond.mHash, pShift);
+        if (firstBit == secondBit) {
+            return new Node(firstBit, new Object[] {merge(pFirst, pFirstHash, pSecond, pShift + BITS)});
+        }
+        // compare the positions rather than the bits, the bit of position 31 is negative
+        boolean firstIsLower = ((pFirstHash >>> pShift) & MASK) < ((pSecond.mHash >>> pShift) & MASK);
+        Object[] slots = firstIsLower ? new Object[] {pFirst, pSecond} : new Object[] {pSecond, pFirst};
+        return new Node(firstBit | secondBit, slots);
+    }
+
+    /**
+     * @return the node without the key, null if nothing is left, or pNode itself if it does not
+     * hold the key
+     */
+    private static Object remove(Object pNode, int pShift, int pHash, String pKey) {
+        if (pNode instanceof Leaf) {
+            return ((Leaf<?>) pNode).mKey.equals(pKey) ? null : pNode;
+        }
+        if (pNode instanceof Collision) {
+            return ((Collision) pNode).remove(pHash, pKey);
+        }
+        Node node = (Node) pNode;
+        int bit = bit(pHash, pShift);
+        if ((node.mBitmap & bit) == 0) {
+            return node;
+        }
+        int index = node.index(bit);
+        Object child = node.mSlots[index];
+        Object newChild = remove(child, pShift + BITS, pHash, pKey);
+        if (newChild == child) {
+            return node;
+        }
+        if (newChild == null) {
+            if (node.mSlots.length == 1) {
+                return null;
+            }
+            Object[] slots = new Object[node.mSlots.length - 1];
+            System.arraycopy(node.mSlots, 0, slots, 0, index);
+            System.arraycopy(node.mSlots, index + 1, slots, index, slots.length - index);
+            if (slots.length == 1 && !(slots[0] instanceof Node)) {
+                // a single entry can move up to where this node was
+                return slots[0];
+            }
+            return new Node(node.mBitmap & ~bit, slots);
+        }
+        if (node.mSlots.length == 1 && !(newChild instanceof Node)) {
+            return newChild;
+        }
+        return node.with(index, newChild);
+    }
+
+    private static final class Leaf<V> implements Map.Entry<String, V> {
+        final int mHash;
+        final String mKey;
+        final V mValue;
+
+        Leaf(int pHash, String pKey, V pValue) {
+            mHash = pHash;
+            mKey = pKey;
+            mValue = pValue;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public V getValue() {
+            return mValue;
+        }
+
+        @Override
+        public V setValue(V pValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object pThat) {
+            if (!(pThat instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> that = (Map.Entry<?, ?>) pThat;
+            return mKey.equals(that.getKey())
+                && (mValue == null ? that.getValue() == null : mValue.equals(that.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return mKey.hashCode() ^ (mValue == null ? 0 : mValue.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return mKey + "=" + mValue;
+        }
+    }
+
+    /**
+     * The entries whose keys have the same hash.
+     */
+    private static final class Collision {
+        final int mHash;
+        final Leaf<?>[] mLeaves;
+
+        Collision(int pHash, Leaf<?>[] pLeaves) {
+            mHash = pHash;
+            mLeaves = pLeaves;
+        }
+
+        Leaf<?> find(int pHash, String pKey) {
+            if (pHash != mHash) {
+                return null;
+            }
+            for (Leaf<?> leaf : mLeaves) {
+                if (leaf.mKey.equals(pKey)) {
+                    return leaf;
+                }
+            }
+            return null;
+        }
+
+        Object put(Leaf<?> pLeaf, boolean[] pAdded) {
+            for (int i = 0; i < mLeaves.length; i++) {
+                if (mLeaves[i].mKey.equals(pLeaf.mKey)) {
+                    if (mLeaves[i].mValue == pLeaf.mValue) {
+                        return this;
+                    }
+                    Leaf<?>[] leaves = mLeaves.clone();
+                    leaves[i] = pLeaf;
+                    return new Collision(mHash, leaves);
+                }
+            }
+            pAdded[0] = true;
+            Leaf<?>[] leaves = new Leaf<?>[mLeaves.length + 1];
+            System.arraycopy(mLeaves, 0, leaves, 0, mLeaves.length);
+            leaves[mLeaves.length] = pLeaf;
+            return new Collision(mHash, leaves);
+        }
+
+        Object remove(int pHash, String pKey) {
+            if (pHash != mHash) {
+                return this;
+            }
+            for (int i = 0; i < mLeaves.length; i++) {
+                if (mLeaves[i].mKey.equals(pKey)) {
+                    if (mLeaves.length == 2) {
+                        return mLeaves[1 - i];
+                    }
+                    Leaf<?>[] leaves = new Leaf<?>[mLeaves.length - 1];
+                    System.arraycopy(mLeaves, 0, leaves, 0, i);
+                    System.arraycopy(mLeaves, i + 1, leaves, i, leaves.length - i);
+                    return new Collision(mHash, leaves);
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * A branch of the tree, with a bit set in mBitmap for every child it has.
+     */
+    private static final class Node {
+        final int mBitmap;
+        final Object[] mSlots;
+
+        Node(int pBitmap, Object[] pSlots) {
+            mBitmap = pBitmap;
+            mSlots = pSlots;
+        }
+
+        int index(int pBit) {
+            return Integer.bitCount(mBitmap & (pBit - 1));
+        }
+
+        Node with(int pIndex, Object pChild) {
+            Object[] slots = mSlots.clone();
+            slots[pIndex] = pChild;
+            return new Node(mBitmap, slots);
+        }
+    }
+
+    private static final class EntryIterator<V> implements Iterator<Entry<String, V>> {
+        private final Deque<Object> mStack = new ArrayDeque<>();
+        private Leaf<V> mNext;
+
+        EntryIterator(Object pRoot) {
+            if (pRoot != null) {
+                mStack.push(pRoot);
+            }
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            mNext = null;
+            while (mNext == null && !mStack.isEmpty()) {
+                Object node = mStack.pop();
+                if (node instanceof Leaf) {
+                    mNext = (Leaf<V>) node;
+                } else if (node instanceof Collision) {
+                    for (Leaf<?> leaf : ((Collision) node).mLeaves) {
+                        mStack.push(leaf);
+                    }
+                } else {
+                    Object[] slots = ((Node) node).mSlots;
+                    for (int i = slots.length - 1; i >= 0; i--) {
+                        mStack.push(slots[i]);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+        @Override
+        public Entry<String, V> next() {
+            if (mNext == null) {
+                throw new NoSuchElementException();
+            }
+            Leaf<V> next = mNext;
+            advance();
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
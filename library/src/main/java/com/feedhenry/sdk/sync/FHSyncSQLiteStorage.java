@@ -0,0 +1,512 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.feedhenry.sdk.utils.FHLog;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.json.fh.JSONObject;
+
+/**
+ * Stores a dataset in an SQLite database, so only the records that are being used have to be in
+ * memory. Records changed by a sync are held until {@link #flushRecords()} or the next full save,
+ * or until {@link #FLUSH_THRESHOLD} of them are held, and are then written in a single
+ * transaction. Local changes are committed in a single transaction each, together with the
+ * records held at the time.
+ *
+ * A dataset previously stored by {@link FHSyncFileStorage} is moved into the database when it is
+ * first loaded.
+ */
+public class FHSyncSQLiteStorage implements FHSyncStorage {
+
+    static final String DATABASE_EXT = ".sync.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_HEADER = "header";
+    private static final String TABLE_RECORDS = "records";
+    private static final String TABLE_PENDING = "pending";
+    private static final String TABLE_METADATA = "metadata";
+
+    private static final String COLUMN_UID = "uid";
+    private static final String COLUMN_HASH = "hash";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_VALUE = "value";
+
+    private static final String HEADER_ROW = "dataset";
+    private static final int PAGE_SIZE = 100;
+    static final int FLUSH_THRESHOLD = 500;
+
+    private static final String LOG_TAG = "com.feedhenry.sdk.sync.FHSyncSQLiteStorage";
+
+    private final Context mContext;
+    private final String mDatasetId;
+    private final SQLiteOpenHelper mHelper;
+    private final RecordMap mDataRecords = new RecordMap();
+
+    public FHSyncSQLiteStorage(Context pContext, String pDatasetId) {
+        mContext = pContext;
+        mDatasetId = pDatasetId;
+        mHelper = new DatabaseHelper(pContext, pDatasetId + DATABASE_EXT);
+    }
+
+    @Override
+    public Map<String, FHSyncDataRecord> getDataRecords() {
+        return mDataRecords;
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return false;
+    }
+
+    @Override
+    public void configure(FHSyncConfig pConfig) {
+        // nothing to configure, every change is committed to the database
+    }
+
+    @Override
+    public synchronized JSONObject load(Map<String, FHSyncPendingRecord> pPendingRecords) throws IOException {
+        try {
+            SQLiteDatabase db = mHelper.getReadableDatabase();
+            String headerJson = queryValue(db, TABLE_HEADER, COLUMN_NAME, HEADER_ROW);
+            if (headerJson == null) {
+                return migrateFileStorage(pPendingRecords);
+            }
+            JSONObject header = new JSONObject(headerJson);
+            JSONObject metaData = new JSONObject();
+            Cursor cursor = db.query(TABLE_METADATA, new String[]{COLUMN_UID, COLUMN_VALUE}, null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    metaData.put(cursor.getString(0), new JSONObject(cursor.getString(1)));
+                }
+            } finally {
+                cursor.close();
+            }
+            header.put(FHSyncDataset.KEY_METADATA, metaData);
+            cursor = db.query(TABLE_PENDING, new String[]{COLUMN_HASH, COLUMN_VALUE}, null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    pPendingRecords.put(cursor.getString(0), FHSyncPendingRecord.fromPersistedJSON(new JSONObject(cursor.getString(1))));
+                }
+            } finally {
+                cursor.close();
+            }
+            return header;
+        } catch (SQLException e) {
+            throw new IOException("Unable to read dataset " + mDatasetId, e);
+        }
+    }
+
+    @Override
+    public synchronized void save(JSONObject pHeader, Map<String, FHSyncPendingRecord> pPendingRecords)
+        throws IOException {
+        try {
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            synchronized (mDataRecords) {
+                db.beginTransaction();
+                try {
+                    JSONObject header = new JSONObject();
+                    for (Iterator<String> it = pHeader.keys(); it.hasNext(); ) {
+                        String key = it.next();
+                        if (!FHSyncDataset.KEY_METADATA.equals(key)) {
+                            header.put(key, pHeader.get(key));
+                        }
+                    }
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_NAME, HEADER_ROW);
+                    values.put(COLUMN_VALUE, header.toString());
+                    db.insertWithOnConflict(TABLE_HEADER, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+                    db.delete(TABLE_METADATA, null, null);
+                    JSONObject metaData = pHeader.optJSONObject(FHSyncDataset.KEY_METADATA);
+                    if (metaData != null) {
+                        for (Iterator<String> it = metaData.keys(); it.hasNext(); ) {
+                            String uid = it.next();
+                            writeMetaData(db, uid, metaData.optJSONObject(uid));
+                        }
+                    }
+
+                    db.delete(TABLE_PENDING, null, null);
+                    for (Map.Entry<String, FHSyncPendingRecord> entry : pPendingRecords.entrySet()) {
+                        writePending(db, entry.getKey(), entry.getValue());
+                    }
+
+                    writeChanges(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                mDataRecords.mChanges.clear();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Unable to write dataset " + mDatasetId, e);
+        }
+    }
+
+    @Override
+    public synchronized boolean saveChange(String pUid, JSONObject pMetaData,
+                                           Map<String, FHSyncPendingRecord> pPendingRecords) throws IOException {
+        try {
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            synchronized (mDataRecords) {
+                db.beginTransaction();
+                try {
+                    writeChanges(db);
+                    db.delete(TABLE_METADATA, COLUMN_UID + " = ?", new String[]{pUid});
+                    writeMetaData(db, pUid, pMetaData);
+                    db.delete(TABLE_PENDING, COLUMN_UID + " = ?", new String[]{pUid});
+                    for (Map.Entry<String, FHSyncPendingRecord> entry : pPendingRecords.entrySet()) {
+                        if (pUid.equals(entry.getValue().getUid())) {
+                            writePending(db, entry.getKey(), entry.getValue());
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                mDataRecords.mChanges.clear();
+            }
+            return true;
+        } catch (SQLException e) {
+            throw new IOException("Unable to write change to " + pUid + " in dataset " + mDatasetId, e);
+        }
+    }
+
+    @Override
+    public void flushRecords() throws IOException {
+        try {
+            mDataRecords.flush();
+        } catch (SQLException e) {
+            throw new IOException("Unable to write records of dataset " + mDatasetId, e);
+        }
+    }
+
+    /**
+     * Moves a dataset stored by {@link FHSyncFileStorage} into the database.
+     */
+    private JSONObject migrateFileStorage(Map<String, FHSyncPendingRecord> pPendingRecords) throws IOException {
+        FHSyncFileStorage fileStorage = new FHSyncFileStorage(mContext, mDatasetId);
+        if (!fileStorage.exists()) {
+            return null;
+        }
+        JSONObject header = fileStorage.load(pPendingRecords);
+        if (header != null) {
+            FHLog.i(LOG_TAG, "Moving dataset " + mDatasetId + " from its file to the database");
+            mDataRecords.putAll(fileStorage.getDataRecords());
+            save(header, pPendingRecords);
+            fileStorage.delete();
+        }
+        return header;
+    }
+
+    /**
+     * Writes the unsaved state of the records. The caller holds the lock of the records and
+     * clears the changes once the transaction is committed.
+     */
+    private void writeChanges(SQLiteDatabase pDb) {
+        for (Map.Entry<String, FHSyncDataRecord> change : mDataRecords.mChanges.entrySet()) {
+            String uid = change.getKey();
+            if (change.getValue() == null) {
+                pDb.delete(TABLE_RECORDS, COLUMN_UID + " = ?", new String[]{uid});
+            } else {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_UID, uid);
+                values.put(COLUMN_VALUE, change.getValue().getJSON().toString());
+                pDb.insertWithOnConflict(TABLE_RECORDS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        }
+    }
+
+    private static void writeMetaData(SQLiteDatabase pDb, String pUid, JSONObject pMetaData) {
+        if (pMetaData != null) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_UID, pUid);
+            values.put(COLUMN_VALUE, pMetaData.toString());
+            pDb.insertWithOnConflict(TABLE_METADATA, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+
+    private static void writePending(SQLiteDatabase pDb, String pHash, FHSyncPendingRecord pRecord) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_HASH, pHash);
+        values.put(COLUMN_UID, pRecord.getUid());
+        values.put(COLUMN_VALUE, pRecord.getJSON().toString());
+        pDb.insertWithOnConflict(TABLE_PENDING, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private static String queryValue(SQLiteDatabase pDb, String pTable, String pKeyColumn, String pKey) {
+        Cursor cursor = pDb.query(pTable, new String[]{COLUMN_VALUE}, pKeyColumn + " = ?", new String[]{pKey}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The data records. Records are read from the database when they are asked for and are not
+     * kept in memory. Changes are held until they are flushed or saved: a null value marks a
+     * removed record.
+     */
+    private class RecordMap extends AbstractMap<String, FHSyncDataRecord> {
+
+        private final Map<String, FHSyncDataRecord> mChanges = new HashMap<>();
+
+        @Override
+        public synchronized FHSyncDataRecord get(Object pKey) {
+            if (mChanges.containsKey(pKey)) {
+                return mChanges.get(pKey);
+            }
+            if (!(pKey instanceof String)) {
+                return null;
+            }
+            String json = queryValue(mHelper.getReadableDatabase(), TABLE_RECORDS, COLUMN_UID, (String) pKey);
+            return json == null ? null : FHSyncDataRecord.fromPersistedJSON(new JSONObject(json));
+        }
+
+        @Override
+        public synchronized boolean containsKey(Object pKey) {
+            if (mChanges.containsKey(pKey)) {
+                return mChanges.get(pKey) != null;
+            }
+            return pKey instanceof String && isStored((String) pKey);
+        }
+
+        /**
+         * Unlike other maps this does not read the previous record from the database, so the
+         * record is only returned if it has not been saved yet.
+         */
+        @Override
+        public synchronized FHSyncDataRecord put(String pKey, FHSyncDataRecord pValue) {
+            if (pKey == null || pValue == null) {
+                throw new NullPointerException();
+            }
+            FHSyncDataRecord previous = mChanges.put(pKey, pValue);
+            flushIfFull();
+            return previous;
+        }
+
+        /**
+         * Unlike other maps this does not read the removed record from the database, so the
+         * record is only returned if it has not been saved yet.
+         */
+        @Override
+        public synchronized FHSyncDataRecord remove(Object pKey) {
+            if (!(pKey instanceof String)) {
+                return null;
+            }
+            FHSyncDataRecord previous = mChanges.put((String) pKey, null);
+            flushIfFull();
+            return previous;
+        }
+
+        @Override
+        public Set<Entry<String, FHSyncDataRecord>> entrySet() {
+            return new AbstractSet<Entry<String, FHSyncDataRecord>>() {
+                @Override
+                public Iterator<Entry<String, FHSyncDataRecord>> iterator() {
+                    return new RecordIterator();
+                }
+
+                @Override
+                public int size() {
+                    return RecordMap.this.size();
+                }
+            };
+        }
+
+        @Override
+        public synchronized int size() {
+            SQLiteDatabase db = mHelper.getReadableDatabase();
+            int size = (int) DatabaseUtils.queryNumEntries(db, TABLE_RECORDS);
+            for (Map.Entry<String, FHSyncDataRecord> change : mChanges.entrySet()) {
+                boolean stored = isStored(change.getKey());
+                if (change.getValue() == null && stored) {
+                    size--;
+                } else if (change.getValue() != null && !stored) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        private boolean isStored(String pUid) {
+            return DatabaseUtils.longForQuery(mHelper.getReadableDatabase(),
+                "SELECT COUNT(*) FROM " + TABLE_RECORDS + " WHERE " + COLUMN_UID + " = ?", new String[]{pUid}) > 0;
+        }
+
+        /**
+         * Writes the held changes in a single transaction. Only the lock of the records is taken,
+         * which is enough to keep saves out as they take it before their transaction.
+         */
+        synchronized void flush() {
+            if (mChanges.isEmpty()) {
+                return;
+            }
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                writeChanges(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            mChanges.clear();
+        }
+
+        private void flushIfFull() {
+            if (mChanges.size() < FLUSH_THRESHOLD) {
+                return;
+            }
+            try {
+                flush();
+            } catch (SQLException e) {
+                // the changes stay held and are written with the next flush or save
+                FHLog.e(LOG_TAG, "Unable to write records of dataset " + mDatasetId, e);
+            }
+        }
+
+        private synchronized Map<String, FHSyncDataRecord> copyChanges() {
+            return new HashMap<>(mChanges);
+        }
+    }
+
+    /**
+     * Goes through the stored records in uid order, a page at a time, and then through the
+     * records that have not been saved yet. Changes made while iterating may or may not be seen.
+     */
+    private class RecordIterator implements Iterator<Map.Entry<String, FHSyncDataRecord>> {
+
+        private final Map<String, FHSyncDataRecord> mChanges = mDataRecords.copyChanges();
+        private List<Map.Entry<String, FHSyncDataRecord>> mPage = new ArrayList<>();
+        private int mPosition;
+        private String mLastStoredUid;
+        private boolean mStoredDone;
+        private Iterator<Map.Entry<String, FHSyncDataRecord>> mChangesIterator;
+        private Map.Entry<String, FHSyncDataRecord> mNext;
+        private Map.Entry<String, FHSyncDataRecord> mLast;
+
+        @Override
+        public boolean hasNext() {
+            if (mNext == null) {
+                mNext = advance();
+            }
+            return mNext != null;
+        }
+
+        @Override
+        public Map.Entry<String, FHSyncDataRecord> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mLast = mNext;
+            mNext = null;
+            return mLast;
+        }
+
+        @Override
+        public void remove() {
+            if (mLast == null) {
+                throw new IllegalStateException();
+            }
+            mDataRecords.remove(mLast.getKey());
+            mLast = null;
+        }
+
+        private Map.Entry<String, FHSyncDataRecord> advance() {
+            while (!mStoredDone) {
+                if (mPosition < mPage.size()) {
+                    return mPage.get(mPosition++);
+                }
+                readPage();
+            }
+            if (mChangesIterator == null) {
+                mChangesIterator = mChanges.entrySet().iterator();
+            }
+            while (mChangesIterator.hasNext()) {
+                Map.Entry<String, FHSyncDataRecord> change = mChangesIterator.next();
+                if (change.getValue() != null) {
+                    return new AbstractMap.SimpleImmutableEntry<>(change);
+                }
+            }
+            return null;
+        }
+
+        private void readPage() {
+            mPage = new ArrayList<>(PAGE_SIZE);
+            mPosition = 0;
+            String selection = mLastStoredUid == null ? null : COLUMN_UID + " > ?";
+            String[] args = mLastStoredUid == null ? null : new String[]{mLastStoredUid};
+            Cursor cursor = mHelper.getReadableDatabase().query(TABLE_RECORDS, new String[]{COLUMN_UID, COLUMN_VALUE},
+                selection, args, null, null, COLUMN_UID, String.valueOf(PAGE_SIZE));
+            int rows = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    rows++;
+                    mLastStoredUid = cursor.getString(0);
+                    if (!mChanges.containsKey(mLastStoredUid)) {
+                        FHSyncDataRecord record = FHSyncDataRecord.fromPersistedJSON(new JSONObject(cursor.getString(1)));
+                        mPage.add(new AbstractMap.SimpleImmutableEntry<>(mLastStoredUid, record));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            mStoredDone = rows < PAGE_SIZE;
+        }
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context pContext, String pName) {
+            super(pContext, pName, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase pDb) {
+            pDb.execSQL("CREATE TABLE " + TABLE_HEADER + " (" + COLUMN_NAME + " TEXT PRIMARY KEY, "
+                + COLUMN_VALUE + " TEXT NOT NULL)");
+            pDb.execSQL("CREATE TABLE " + TABLE_RECORDS + " (" + COLUMN_UID + " TEXT PRIMARY KEY, "
+                + COLUMN_VALUE + " TEXT NOT NULL)");
+            pDb.execSQL("CREATE TABLE " + TABLE_PENDING + " (" + COLUMN_HASH + " TEXT PRIMARY KEY, "
+                + COLUMN_UID + " TEXT, " + COLUMN_VALUE + " TEXT NOT NULL)");
+            pDb.execSQL("CREATE INDEX " + TABLE_PENDING + "_" + COLUMN_UID + " ON " + TABLE_PENDING
+                + " (" + COLUMN_UID + ")");
+            pDb.execSQL("CREATE TABLE " + TABLE_METADATA + " (" + COLUMN_UID + " TEXT PRIMARY KEY, "
+                + COLUMN_VALUE + " TEXT NOT NULL)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase pDb, int pOldVersion, int pNewVersion) {
+            // only one version so far
+        }
+    }
+}
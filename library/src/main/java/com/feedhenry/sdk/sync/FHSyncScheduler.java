@@ -0,0 +1,319 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import com.feedhenry.sdk.utils.FHLog;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Starts the sync loops of the datasets of a {@link FHSyncClient} when they are due.
+ *
+ * The scheduler works out when the next dataset is due and sleeps until then. A dataset wakes it
+ * up early when a sync is requested, when a sync loop completes and when it is resumed, so nothing
+ * runs while no dataset is due.
+ *
+ * Local changes of a dataset that debounces them make it due once they have settled, or once the
+ * oldest of them has waited for the maximum delay.
+ *
+ * Sync loops of different datasets run at the same time, up to a limit. Every dataset is given
+ * one of as many handler threads as the limit allows. Its sync loops start on that thread, and as
+ * the thread has a looper the responses of their requests arrive there, to be handed over to the
+ * serial executor of the dataset.
+ */
+final class FHSyncScheduler {
+
+    /**
+     * The shortest time between two sync loops of a dataset, so that a dataset that keeps asking
+     * for a sync does not take all the scheduler's time.
+     */
+    static final long MIN_SYNC_INTERVAL_MILLIS = 500;
+
+    /**
+     * How long a stopping scheduler waits for the running sync loops to complete before it quits
+     * the handler threads anyway.
+     */
+    static final long STOP_TIMEOUT_MILLIS = 60 * 1000;
+
+    private static final String LOG_TAG = "com.feedhenry.sdk.sync.FHSyncScheduler";
+
+    private final FHSyncClient mClient;
+    private final Object mLock = new Object();
+    private final Thread mThread;
+    private final List<Handler> mHandlers = new ArrayList<>();
+    private final Map<String, Handler> mDatasetHandlers = new HashMap<>();
+    private final Map<FHSyncDataset, Long> mLastStarts = new IdentityHashMap<>();
+    private final Set<FHSyncDataset> mStarting =
+        Collections.newSetFromMap(new IdentityHashMap<FHSyncDataset, Boolean>());
+    private volatile int mMaxConcurrentSyncs;
+    private boolean mWoken;
+    private boolean mStopped;
+
+    /**
+     * @param pClient the sync client whose datasets are scheduled
+     * @param pMaxConcurrentSyncs the number of sync loops that may run at the same time
+     */
+    FHSyncScheduler(FHSyncClient pClient, int pMaxConcurrentSyncs) {
+        mClient = pClient;
+        setMaxConcurrentSyncs(pMaxConcurrentSyncs);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                schedule();
+            }
+        }, "FHSyncScheduler");
+        mThread.setDaemon(true);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stops scheduling. Sync loops that already started run to completion: the handler threads,
+     * which receive the responses of their requests, quit once no sync loop runs any more. Sync
+     * loops still running after {@link #STOP_TIMEOUT_MILLIS} are abandoned; their changes in flight
+     * are resent like those of a crashed sync loop.
+     */
+    void stop() {
+        synchronized (mLock) {
+            mStopped = true;
+            mLock.notifyAll();
+        }
+    }
+
+    void setMaxConcurrentSyncs(int pMaxConcurrentSyncs) {
+        mMaxConcurrentSyncs = pMaxConcurrentSyncs;
+        wakeUp();
+    }
+
+    /**
+     * Makes the scheduler check which datasets are due, because one of them changed.
+     */
+    void wakeUp() {
+        synchronized (mLock) {
+            mWoken = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private void schedule() {
+        while (true) {
+            synchronized (mLock) {
+                if (mStopped) {
+                    break;
+                }
+                mWoken = false;
+            }
+            long delay;
+            try {
+                delay = startDueSyncs();
+            } catch (RuntimeException e) {
+                FHLog.e(LOG_TAG, "Error starting sync loops", e);
+                delay = MIN_SYNC_INTERVAL_MILLIS;
+            }
+            synchronized (mLock) {
+                long wakeAt = System.currentTimeMillis() + delay;
+                try {
+                    while (!mWoken && !mStopped) {
+                        if (delay < 0) {
+                            mLock.wait();
+                        } else {
+                            long remaining = wakeAt - System.currentTimeMillis();
+                            if (remaining <= 0) {
+                                break;
+                            }
+                            mLock.wait(remaining);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        quitWhenIdle();
+    }
+
+    private void quitWhenIdle() {
+        long giveUpAt = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+        try {
+            // the datasets no longer wake up a stopped scheduler
+            while (!getRunning().isEmpty() && System.currentTimeMillis() < giveUpAt) {
+                Thread.sleep(MIN_SYNC_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (FHSyncDataset dataset : getRunning()) {
+            FHLog.w(LOG_TAG, "Abandoning a sync loop that did not complete when the sync client stopped");
+            dataset.setSyncRunning(false);
+        }
+        synchronized (mHandlers) {
+            for (Handler handler : mHandlers) {
+                handler.getLooper().quit();
+            }
+            mHandlers.clear();
+            mDatasetHandlers.clear();
+        }
+        mLastStarts.clear();
+    }
+
+    /**
+     * @return the datasets whose sync loops were started by the scheduler and have not completed
+     */
+    private List<FHSyncDataset> getRunning() {
+        List<FHSyncDataset> running = new ArrayList<>();
+        for (FHSyncDataset dataset : mLastStarts.keySet()) {
+            if (isRunning(dataset)) {
+                running.add(dataset);
+            }
+        }
+        return running;
+    }
+
+    private boolean isRunning(FHSyncDataset pDataset) {
+        synchronized (mStarting) {
+            if (mStarting.contains(pDataset)) {
+                return true;
+            }
+        }
+        return pDataset.isSyncRunning();
+    }
+
+    /**
+     * Starts the sync loops that are due, as far as the limit allows.
+     *
+     * @return the time in milliseconds until the next dataset is due, or -1 if none is
+     */
+    private long startDueSyncs() {
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        int running = 0;
+        List<Map.Entry<String, FHSyncDataset>> due = new ArrayList<>();
+        Map<String, FHSyncDataset> datasets = mClient.getDataSets();
+        forgetRemovedDatasets(datasets);
+        for (Map.Entry<String, FHSyncDataset> entry : datasets.entrySet()) {
+            FHSyncDataset dataset = entry.getValue();
+            if (isRunning(dataset)) {
+                // a completing sync loop wakes the scheduler up
+                running++;
+            } else if (!dataset.isStopSync()) {
+                long dueAt = getDueTime(dataset);
+                if (dueAt <= now) {
+                    due.add(entry);
+                } else {
+                    next = Math.min(next, dueAt);
+                }
+            }
+        }
+        for (Map.Entry<String, FHSyncDataset> entry : due) {
+            if (running >= mMaxConcurrentSyncs) {
+                // the next sync loop to complete wakes the scheduler up
+                break;
+            }
+            running++;
+            startSync(entry.getKey(), entry.getValue(), now);
+        }
+        return next == Long.MAX_VALUE ? -1 : next - now;
+    }
+
+    /**
+     * Forgets the datasets that are no longer managed or are stopped, once their sync loops are
+     * not running.
+     */
+    private void forgetRemovedDatasets(Map<String, FHSyncDataset> pDatasets) {
+        Set<FHSyncDataset> managed = Collections.newSetFromMap(new IdentityHashMap<FHSyncDataset, Boolean>());
+        managed.addAll(pDatasets.values());
+        Iterator<FHSyncDataset> scheduled = mLastStarts.keySet().iterator();
+        while (scheduled.hasNext()) {
+            FHSyncDataset dataset = scheduled.next();
+            if ((dataset.isStopSync() || !managed.contains(dataset)) && !isRunning(dataset)) {
+                scheduled.remove();
+            }
+        }
+        synchronized (mHandlers) {
+            mDatasetHandlers.keySet().retainAll(pDatasets.keySet());
+        }
+    }
+
+    /**
+     * @return when the dataset is next due, or Long.MAX_VALUE if it is not
+     */
+    long getDueTime(FHSyncDataset pDataset) {
+        Long lastStart = mLastStarts.get(pDataset);
+        long earliest = (lastStart == null) ? 0 : lastStart + MIN_SYNC_INTERVAL_MILLIS;
+        if (pDataset.isSyncPending() || pDataset.getSyncStart() == null) {
+            return earliest;
+        }
+        long due = pDataset.getLocalChangesDueTime();
+        Date syncEnd = pDataset.getSyncEnd();
+        if (syncEnd != null) {
+            long frequency = pDataset.getSyncConfig().getSyncFrequency() * 1000L;
+            due = Math.min(due, syncEnd.getTime() + frequency);
+        }
+        return (due == Long.MAX_VALUE) ? due : Math.max(earliest, due);
+    }
+
+    private void startSync(String pDataId, final FHSyncDataset pDataset, long pNow) {
+        mLastStarts.put(pDataset, pNow);
+        // the sync loop uploads the debounced local changes too
+        pDataset.clearLocalChanges();
+        synchronized (mStarting) {
+            mStarting.add(pDataset);
+        }
+        getHandler(pDataId).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pDataset.startSyncLoop();
+                } finally {
+                    synchronized (mStarting) {
+                        mStarting.remove(pDataset);
+                    }
+                    wakeUp();
+                }
+            }
+        });
+    }
+
+    private Handler getHandler(String pDataId) {
+        synchronized (mHandlers) {
+            Handler handler = mDatasetHandlers.get(pDataId);
+            if (handler == null) {
+                if (mHandlers.size() < mMaxConcurrentSyncs) {
+                    HandlerThread thread = new HandlerThread("FHSyncClient-" + (mHandlers.size() + 1));
+                    thread.start();
+                    handler = new Handler(thread.getLooper());
+                    mHandlers.add(handler);
+                } else {
+                    handler = mHandlers.get(mDatasetHandlers.size() % mHandlers.size());
+                }
+                mDatasetHandlers.put(pDataId, handler);
+            }
+            return handler;
+        }
+    }
+}
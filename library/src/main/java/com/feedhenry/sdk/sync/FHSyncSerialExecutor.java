@@ -0,0 +1,223 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import com.feedhenry.sdk.utils.FHLog;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tasks given to it one at a time, in order, so that the state they change has a single
+ * writer.
+ *
+ * The executor has no thread of its own. Queued tasks run on a pool shared by all the executors,
+ * and a task that is called while the executor is idle runs straight away on the calling thread,
+ * which saves a thread switch for the common case of a local change with no sync loop running.
+ */
+final class FHSyncSerialExecutor implements Executor {
+
+    private static final String LOG_TAG = "com.feedhenry.sdk.sync.FHSyncSerialExecutor";
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+    private static final Executor SHARED_POOL = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable pRunnable) {
+            Thread thread = new Thread(pRunnable, "FHSyncSerialExecutor-" + sThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Executor mPool;
+    private final Queue<Runnable> mTasks = new ArrayDeque<>();
+    // the thread running tasks, guarded by mTasks
+    private Thread mRunner;
+    private boolean mDrainScheduled;
+
+    FHSyncSerialExecutor() {
+        this(SHARED_POOL);
+    }
+
+    FHSyncSerialExecutor(Executor pPool) {
+        mPool = pPool;
+    }
+
+    /**
+     * Queues a task to run after the ones already given to the executor. A task that throws is
+     * logged and the next one runs.
+     */
+    @Override
+    public void execute(Runnable pTask) {
+        boolean schedule;
+        synchronized (mTasks) {
+            mTasks.add(pTask);
+            schedule = mRunner == null && !mDrainScheduled;
+            mDrainScheduled |= schedule;
+        }
+        if (schedule) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Runs a task after the ones already given to the executor and waits for its result. Called
+     * from a task of this executor, the task runs straight away.
+     *
+     * @param pTask the task
+     * @return the result of the task
+     */
+    <T> T call(Callable<T> pTask) {
+        Thread current = Thread.currentThread();
+        boolean nested;
+        boolean idle;
+        synchronized (mTasks) {
+            nested = mRunner == current;
+            idle = mRunner == null && !mDrainScheduled && mTasks.isEmpty();
+            if (idle) {
+                mRunner = current;
+            }
+        }
+        if (nested) {
+            return callDirectly(pTask);
+        }
+        if (idle) {
+            try {
+                return callDirectly(pTask);
+            } finally {
+                release();
+            }
+        }
+        FutureTask<T> future = new FutureTask<>(pTask);
+        execute(future);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a dataset task", e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Runs tasks at the same time, on the calling thread and on the pool shared by the executors,
+     * and waits for all of them. The tasks must not depend on each other.
+     *
+     * @param pTasks the tasks
+     */
+    static void runInParallel(List<? extends Runnable> pTasks) {
+        if (pTasks.isEmpty()) {
+            return;
+        }
+        List<FutureTask<Void>> futures = new ArrayList<>();
+        for (Runnable task : pTasks.subList(1, pTasks.size())) {
+            FutureTask<Void> future = new FutureTask<>(task, null);
+            SHARED_POOL.execute(future);
+            futures.add(future);
+        }
+        pTasks.get(0).run();
+        for (FutureTask<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a parallel task", e);
+            } catch (ExecutionException e) {
+                throw rethrow(e.getCause());
+            }
+        }
+    }
+
+    private static <T> T callDirectly(Callable<T> pTask) {
+        try {
+            return pTask.call();
+        } catch (Exception e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable pThrowable) {
+        if (pThrowable instanceof RuntimeException) {
+            throw (RuntimeException) pThrowable;
+        }
+        if (pThrowable instanceof Error) {
+            throw (Error) pThrowable;
+        }
+        throw new IllegalStateException(pThrowable);
+    }
+
+    /**
+     * Hands the executor back after a task ran on the calling thread, scheduling the tasks that
+     * were queued in the meantime.
+     */
+    private void release() {
+        boolean schedule;
+        synchronized (mTasks) {
+            mRunner = null;
+            schedule = !mTasks.isEmpty() && !mDrainScheduled;
+            mDrainScheduled |= schedule;
+        }
+        if (schedule) {
+            scheduleDrain();
+        }
+    }
+
+    private void scheduleDrain() {
+        mPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    private void drain() {
+        Thread current = Thread.currentThread();
+        synchronized (mTasks) {
+            mDrainScheduled = false;
+            if (mRunner != null) {
+                // a caller is running a task, it schedules the queue again when it is done
+                return;
+            }
+            mRunner = current;
+        }
+        while (true) {
+            Runnable task;
+            synchronized (mTasks) {
+                task = mTasks.poll();
+                if (task == null) {
+                    mRunner = null;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                FHLog.e(LOG_TAG, "Error running a dataset task", e);
+            }
+        }
+    }
+}
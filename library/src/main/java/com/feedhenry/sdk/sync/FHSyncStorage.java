@@ -0,0 +1,98 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import java.io.IOException;
+import java.util.Map;
+import org.json.fh.JSONObject;
+
+/**
+ * Persists the local state of a {@link FHSyncDataset}.
+ *
+ * The data records live in the map returned by {@link #getDataRecords()}, so a storage decides
+ * how many of them are held in memory. Everything else about the dataset (sync config, hash,
+ * acknowledgements, query params, metadata and uid mappings) is passed around as a header
+ * JSON object, and the pending records are kept in memory by the dataset.
+ */
+public interface FHSyncStorage {
+
+    /**
+     * Gets the map holding the data records. Changes made to it are persisted by the next call to
+     * {@link #save(JSONObject, Map)}, by {@link #saveChange(String, JSONObject, Map)} for the
+     * changed uid, or by {@link #flushRecords()}.
+     *
+     * @return the data records, keyed by uid
+     */
+    Map<String, FHSyncDataRecord> getDataRecords();
+
+    /**
+     * Tells whether the map returned by {@link #getDataRecords()} holds every data record in
+     * memory. If it does, the dataset serves reads from an immutable snapshot of the records;
+     * otherwise reads go to the map, which loads the records it does not hold.
+     *
+     * @return true if every data record is held in memory
+     */
+    boolean isInMemory();
+
+    /**
+     * Applies the settings of the sync config that concern the storage.
+     *
+     * @param pConfig the config of the dataset
+     */
+    void configure(FHSyncConfig pConfig);
+
+    /**
+     * Loads the persisted dataset. The data records are made available through
+     * {@link #getDataRecords()} and the pending records are added to pPendingRecords.
+     *
+     * @param pPendingRecords receives the pending records, keyed by their hash
+     * @return the header of the dataset, or null if nothing was persisted
+     * @throws IOException if the dataset could not be read
+     */
+    JSONObject load(Map<String, FHSyncPendingRecord> pPendingRecords) throws IOException;
+
+    /**
+     * Persists the whole dataset.
+     *
+     * @param pHeader the header of the dataset
+     * @param pPendingRecords all pending records, keyed by their hash
+     * @throws IOException if the dataset could not be written
+     */
+    void save(JSONObject pHeader, Map<String, FHSyncPendingRecord> pPendingRecords) throws IOException;
+
+    /**
+     * Persists a local change to a single uid: its data record, its entry in the header metadata
+     * and its pending records. The change is persisted completely or not at all.
+     *
+     * @param pUid the uid that changed
+     * @param pMetaData the metadata of the uid, or null if it has none
+     * @param pPendingRecords all pending records, keyed by their hash
+     * @return false if the change was not persisted on its own and the whole dataset has to be
+     * saved with {@link #save(JSONObject, Map)} instead
+     * @throws IOException if the change could not be written
+     */
+    boolean saveChange(String pUid, JSONObject pMetaData, Map<String, FHSyncPendingRecord> pPendingRecords)
+        throws IOException;
+
+    /**
+     * Persists the changes made to the data records since they were last persisted, if the
+     * storage holds them back. Called once the records changed by a sync have been applied; the
+     * header is still only written by the next {@link #save(JSONObject, Map)}.
+     *
+     * @throws IOException if the records could not be written
+     */
+    void flushRecords() throws IOException;
+}
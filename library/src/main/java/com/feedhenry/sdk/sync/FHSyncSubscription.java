@@ -0,0 +1,69 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk.sync;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A subscription to the events of the sync framework, see
+ * {@link FHSyncClient#subscribe(String, Executor, FHSyncEventListener, int...)}.
+ */
+public final class FHSyncSubscription {
+
+    private final FHSyncNotificationBus mBus;
+    private final String mDataId;
+    // a bit per notification code
+    private final int mCodes;
+    private final Executor mExecutor;
+    private final FHSyncEventListener mListener;
+    private volatile boolean mCancelled;
+
+    FHSyncSubscription(FHSyncNotificationBus pBus, String pDataId, int pCodes, Executor pExecutor, FHSyncEventListener pListener) {
+        mBus = pBus;
+        mDataId = pDataId;
+        mCodes = pCodes;
+        mExecutor = pExecutor;
+        mListener = pListener;
+    }
+
+    /**
+     * Stops the events of the subscription. Events that were emitted before but not delivered yet
+     * are dropped.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mBus.remove(this);
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    boolean matches(String pDataId, int pCode) {
+        return (mCodes & (1 << pCode)) != 0 && (mDataId == null || mDataId.equals(pDataId));
+    }
+
+    void deliver(final NotificationMessage pMessage) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    mListener.onEvent(pMessage);
+                }
+            }
+        });
+    }
+}
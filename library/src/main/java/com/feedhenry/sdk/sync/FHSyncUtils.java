@@ -21,10 +21,12 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import org.json.fh.JSONArray;
 import org.json.fh.JSONException;
 import org.json.fh.JSONObject;
+import org.json.fh.JSONString;
 
 public class FHSyncUtils {
 
@@ -33,6 +35,13 @@ public class FHSyncUtils {
     };
     private static final String TAG = "FHSyncUtils";
 
+    private static final ThreadLocal<CanonicalHasher> CANONICAL_HASHERS = new ThreadLocal<CanonicalHasher>() {
+        @Override
+        protected CanonicalHasher initialValue() {
+            return new CanonicalHasher();
+        }
+    };
+
     public static JSONArray sortObj(JSONArray pObject) {
         JSONArray results = new JSONArray();
         
@@ -73,22 +82,28 @@ public class FHSyncUtils {
         return results;
     }
      
+    /**
+     * Generates the hash of a JSON array. The result is the same as hashing the string form of
+     * {@link #sortObj(JSONArray)}, but the canonical form is streamed straight into the digest.
+     *
+     * @param pObject the array to hash
+     * @return the SHA-1 hash as a hex string
+     */
     public static String generateObjectHash(JSONArray pObject) {
-        String hashValue = "";
-        JSONArray sorted = sortObj(pObject);
-        hashValue = generateHash(sorted.toString());
-
-        return hashValue;
+        return CANONICAL_HASHERS.get().hashArray(pObject);
     }
 
-       public static String generateObjectHash(JSONObject pObject) {
-        String hashValue = "";
-        JSONArray sorted = sortObj(pObject);
-        hashValue = generateHash(sorted.toString());
-
-        return hashValue;
+    /**
+     * Generates the hash of a JSON object. The result is the same as hashing the string form of
+     * {@link #sortObj(JSONObject)}, but the canonical form is streamed straight into the digest.
+     *
+     * @param pObject the object to hash
+     * @return the SHA-1 hash as a hex string
+     */
+    public static String generateObjectHash(JSONObject pObject) {
+        return CANONICAL_HASHERS.get().hashObject(pObject);
     }
-    
+
     public static String generateHash(String pText) {
         try {
             String hashValue;
@@ -103,7 +118,16 @@ public class FHSyncUtils {
         }
     }
 
-    private static String encodeHex(byte[] pData) {
+    static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            Log.e(TAG, ex.getMessage(), ex);
+            throw new RuntimeException(ex);
+        }
+    }
+
+    static String encodeHex(byte[] pData) {
         int l = pData.length;
 
         char[] out = new char[l << 1];
@@ -141,5 +165,233 @@ public class FHSyncUtils {
         return names;
     }
 
-    
+    /**
+     * Writes the canonical form produced by sortObj, i.e. <code>[{"key":"k","value":v},...]</code>
+     * with keys in sorted order and array indexes as keys, directly into a SHA-1 digest. Characters
+     * are encoded the same way as String.getBytes("ASCII"), so anything outside ASCII becomes '?'.
+     * Instances are reused per thread and are not thread safe.
+     */
+    private static class CanonicalHasher {
+
+        private static final byte[] ENTRY_KEY = asciiBytes("{\"key\":");
+        private static final byte[] ENTRY_VALUE = asciiBytes(",\"value\":");
+        private static final byte[] NULL_VALUE = asciiBytes("null");
+
+        private final MessageDigest mDigest = newSha1();
+        private final byte[] mBuffer = new byte[1024];
+        private int mPosition;
+
+        String hashObject(JSONObject pObject) {
+            try {
+                writeObject(pObject);
+                return digest();
+            } finally {
+                reset();
+            }
+        }
+
+        String hashArray(JSONArray pArray) {
+            try {
+                writeArray(pArray);
+                return digest();
+            } finally {
+                reset();
+            }
+        }
+
+        private void writeObject(JSONObject pObject) {
+            write('[');
+            boolean first = true;
+            for (Iterator<String> it = pObject.sortedKeys(); it.hasNext(); ) {
+                if (!first) {
+                    write(',');
+                }
+                first = false;
+                String key = it.next();
+                writeEntry(key, pObject.get(key));
+            }
+            write(']');
+        }
+
+        private void writeArray(JSONArray pArray) {
+            write('[');
+            for (int i = 0, length = pArray.length(); i < length; i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                writeEntry(String.valueOf(i), pArray.get(i));
+            }
+            write(']');
+        }
+
+        private void writeEntry(String pKey, Object pValue) {
+            write(ENTRY_KEY);
+            writeQuoted(pKey);
+            write(ENTRY_VALUE);
+            if (pValue instanceof JSONArray) {
+                writeArray((JSONArray) pValue);
+            } else if (pValue instanceof JSONObject) {
+                writeObject((JSONObject) pValue);
+            } else {
+                writeValue(pValue);
+            }
+            write('}');
+        }
+
+        /**
+         * Mirrors JSONObject.valueToString for everything but JSONObject and JSONArray.
+         */
+        private void writeValue(Object pValue) {
+            if (pValue.equals(null)) {
+                write(NULL_VALUE);
+            } else if (pValue instanceof JSONString) {
+                Object text;
+                try {
+                    text = ((JSONString) pValue).toJSONString();
+                } catch (Exception e) {
+                    throw new JSONException(e);
+                }
+                if (!(text instanceof String)) {
+                    throw new JSONException("Bad value from toJSONString: " + text);
+                }
+                writeRaw((String) text);
+            } else if (pValue instanceof Integer || pValue instanceof Long) {
+                writeLong(((Number) pValue).longValue());
+            } else if (pValue instanceof Number) {
+                writeRaw(JSONObject.numberToString((Number) pValue));
+            } else if (pValue instanceof Boolean) {
+                writeRaw(pValue.toString());
+            } else {
+                writeQuoted(pValue.toString());
+            }
+        }
+
+        private void writeLong(long pValue) {
+            if (pValue == Long.MIN_VALUE) {
+                writeRaw(Long.toString(pValue));
+                return;
+            }
+            if (pValue < 0) {
+                write('-');
+                pValue = -pValue;
+            }
+            long divisor = 1;
+            while (pValue / divisor >= 10) {
+                divisor *= 10;
+            }
+            for (; divisor > 0; divisor /= 10) {
+                write((char) ('0' + (pValue / divisor) % 10));
+            }
+        }
+
+        /**
+         * Mirrors JSONObject.quote.
+         */
+        private void writeQuoted(String pText) {
+            write('"');
+            char c = 0;
+            for (int i = 0, len = pText.length(); i < len; i++) {
+                char b = c;
+                c = pText.charAt(i);
+                switch (c) {
+                case '\\':
+                case '"':
+                    write('\\');
+                    write(c);
+                    break;
+                case '/':
+                    if (b == '<') {
+                        write('\\');
+                    }
+                    write(c);
+                    break;
+                case '\b':
+                    write('\\');
+                    write('b');
+                    break;
+                case '\t':
+                    write('\\');
+                    write('t');
+                    break;
+                case '\n':
+                    write('\\');
+                    write('n');
+                    break;
+                case '\f':
+                    write('\\');
+                    write('f');
+                    break;
+                case '\r':
+                    write('\\');
+                    write('r');
+                    break;
+                default:
+                    if (c < ' ') {
+                        write('\\');
+                        write('u');
+                        write('0');
+                        write('0');
+                        write(DIGITS[c >>> 4]);
+                        write(DIGITS[c & 0xF]);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < len
+                            && Character.isLowSurrogate(pText.charAt(i + 1))) {
+                        // a surrogate pair is a single unmappable character for the ASCII encoder
+                        write('?');
+                        c = pText.charAt(++i);
+                    } else {
+                        write(c);
+                    }
+                }
+            }
+            write('"');
+        }
+
+        private void writeRaw(String pText) {
+            for (int i = 0, len = pText.length(); i < len; i++) {
+                char c = pText.charAt(i);
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(pText.charAt(i + 1))) {
+                    i++;
+                }
+                write(c);
+            }
+        }
+
+        private void write(byte[] pBytes) {
+            if (mPosition + pBytes.length > mBuffer.length) {
+                flush();
+            }
+            System.arraycopy(pBytes, 0, mBuffer, mPosition, pBytes.length);
+            mPosition += pBytes.length;
+        }
+
+        private void write(char pChar) {
+            if (mPosition == mBuffer.length) {
+                flush();
+            }
+            mBuffer[mPosition++] = pChar < 0x80 ? (byte) pChar : (byte) '?';
+        }
+
+        private void flush() {
+            mDigest.update(mBuffer, 0, mPosition);
+            mPosition = 0;
+        }
+
+        private String digest() {
+            flush();
+            return encodeHex(mDigest.digest());
+        }
+
+        private void reset() {
+            mPosition = 0;
+            mDigest.reset();
+        }
+
+        private static byte[] asciiBytes(String pText) {
+            byte[] bytes = new byte[pText.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) pText.charAt(i);
+            }
+            return bytes;
+        }
+    }
 }
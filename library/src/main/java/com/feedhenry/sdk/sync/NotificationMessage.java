@@ -15,7 +15,9 @@
  */
 package com.feedhenry.sdk.sync;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -64,12 +66,19 @@ public class NotificationMessage {
     private String mUID;
     private String mCodeMessage;
     private String mExtraMessage;
+    private List<String> mUIDs;
 
     public NotificationMessage(String pDataId, String pUID, String pCodeMessage, String pExtraMessage) {
         this.mDataId = pDataId;
         this.mUID = pUID;
         this.mCodeMessage = pCodeMessage;
         this.mExtraMessage = pExtraMessage;
+        this.mUIDs = pUID == null ? Collections.<String>emptyList() : Collections.singletonList(pUID);
+    }
+
+    private NotificationMessage(String pDataId, List<String> pUIDs, String pCodeMessage, String pExtraMessage) {
+        this(pDataId, (String) null, pCodeMessage, pExtraMessage);
+        this.mUIDs = Collections.unmodifiableList(pUIDs);
     }
 
     /**
@@ -90,6 +99,15 @@ public class NotificationMessage {
         return mUID;
     }
 
+    /**
+     * The ids of the data records associated with the event
+     *
+     * @return the ids of the data records associated with the event, empty if there are none
+     */
+    public List<String> getUIDs() {
+        return mUIDs;
+    }
+
     /**
      * The code message associated with the event
      *
@@ -122,4 +140,12 @@ public class NotificationMessage {
     public static NotificationMessage getMessage(String pDatasetId, String pUid, int pCode, String pMessage) {
         return new NotificationMessage(pDatasetId, pUid, mMessageMap.get(pCode), pMessage);
     }
+
+    /**
+     * Gets the message of an event concerning several data records, such as a batch of local
+     * changes. {@link #getUID()} returns null for such a message.
+     */
+    public static NotificationMessage getBatchMessage(String pDatasetId, List<String> pUids, int pCode, String pMessage) {
+        return new NotificationMessage(pDatasetId, pUids, mMessageMap.get(pCode), pMessage);
+    }
 }
@@ -20,8 +20,19 @@ import com.feedhenry.sdk.FH;
 
 public class FHLog {
 
+    /**
+     * Checks whether messages of the given level are logged, so that callers can skip building
+     * expensive log messages.
+     *
+     * @param pLogLevel one of the FH.LOG_LEVEL_* constants
+     * @return true if messages of this level are logged
+     */
+    public static boolean isLoggable(int pLogLevel) {
+        return pLogLevel >= FH.getLogLevel();
+    }
+
     private static void log(int pLogLevel, String pTag, String pMessage, Throwable pThrowable) {
-        if (pLogLevel >= FH.getLogLevel()) {
+        if (isLoggable(pLogLevel)) {
             if (pLogLevel == FH.LOG_LEVEL_VERBOSE) {
                 Log.v(pTag, pMessage);
             } else if (pLogLevel == FH.LOG_LEVEL_DEBUG) {
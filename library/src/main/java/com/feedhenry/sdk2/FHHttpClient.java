@@ -16,26 +16,97 @@
 package com.feedhenry.sdk2;
 
 import com.feedhenry.sdk.*;
-import com.feedhenry.sdk.utils.FHLog;
 import com.loopj.android.http.AsyncHttpClient;
-import com.loopj.android.http.JsonHttpResponseHandler;
 import com.loopj.android.http.RequestParams;
-import com.loopj.android.http.SyncHttpClient;
-import cz.msebera.android.httpclient.Consts;
 import cz.msebera.android.httpclient.Header;
 import cz.msebera.android.httpclient.HttpHost;
-import cz.msebera.android.httpclient.conn.params.ConnRoutePNames;
-import cz.msebera.android.httpclient.entity.StringEntity;
+import cz.msebera.android.httpclient.message.BasicHeader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Iterator;
-import org.json.fh.JSONArray;
+import java.util.zip.GZIPOutputStream;
 import org.json.fh.JSONObject;
 
+/**
+ * Sends JSON requests to the cloud through a {@link FHHttpTransport}.
+ *
+ * Clients created without a transport of their own share the default transport, and so share its
+ * keep-alive connections, timeout, proxy and pool size.
+ */
 public class FHHttpClient {
 
-    private final AsyncHttpClient mClient = new AsyncHttpClient();
-    private final SyncHttpClient mSyncClient = new SyncHttpClient();
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static FHHttpTransport sDefaultTransport;
+    private static final FHHttpClient sInstance = new FHHttpClient();
+
+    private final FHHttpTransport mTransport;
+    private volatile int mBackgroundParseThreshold = FHJsonHttpResponseHandler.DEFAULT_BACKGROUND_PARSE_THRESHOLD;
+    private volatile int mGzipThreshold = -1;
+    private volatile FHHttpTransferListener mTransferListener;
+
+    /**
+     * Creates a client that uses the default transport.
+     */
+    public FHHttpClient() {
+        this(null);
+    }
 
-    private static final String LOG_TAG = "com.feedhenry.sdk.FHHttpClient";
+    /**
+     * Creates a client that uses the given transport.
+     *
+     * @param pTransport the transport to send the requests with, or null to use the default one
+     */
+    public FHHttpClient(FHHttpTransport pTransport) {
+        mTransport = pTransport;
+    }
+
+    /**
+     * Gets the client shared by the SDK requests.
+     *
+     * @return the shared client, which uses the default transport
+     */
+    public static FHHttpClient getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Gets the transport used by clients that were not given one. It is created on first use and
+     * is a {@link FHUrlConnectionHttpTransport} unless another one was set.
+     *
+     * @return the default transport
+     */
+    public static synchronized FHHttpTransport getDefaultTransport() {
+        if (sDefaultTransport == null) {
+            sDefaultTransport = new FHUrlConnectionHttpTransport();
+        }
+        return sDefaultTransport;
+    }
+
+    /**
+     * Replaces the transport used by clients that were not given one, for example with a
+     * {@link FHLoopjHttpTransport}. Requests that were already sent are not affected.
+     *
+     * @param pTransport the new default transport
+     */
+    public static synchronized void setDefaultTransport(FHHttpTransport pTransport) {
+        if (pTransport == null) {
+            throw new IllegalArgumentException("The default transport can not be null");
+        }
+        sDefaultTransport = pTransport;
+    }
+
+    /**
+     * Gets the transport the requests of this client are sent with.
+     *
+     * @return the transport of this client, or the default transport
+     */
+    public FHHttpTransport getTransport() {
+        return (mTransport != null) ? mTransport : getDefaultTransport();
+    }
 
     public void put(
         String pUrl,
@@ -43,34 +114,7 @@ public class FHHttpClient {
         JSONObject pParams,
         FHActCallback pCallback,
         boolean pUseSync) {
-        if (FH.isOnline()) {
-            StringEntity entity = new StringEntity(new JSONObject().toString(), Consts.UTF_8);
-            if (pParams != null) {
-                entity = new StringEntity(pParams.toString(), Consts.UTF_8);
-            }
-            if (pUseSync) {
-                mSyncClient.setUserAgent(FH.getUserAgent());
-                mSyncClient.put(
-                    null,
-                    pUrl,
-                    pHeaders,
-                    entity,
-                    "application/json",
-                    new FHJsonHttpResponseHandler(pCallback));
-            } else {
-                mClient.setUserAgent(FH.getUserAgent());
-                mClient.put(
-                    null,
-                    pUrl,
-                    pHeaders,
-                    entity,
-                    "application/json",
-                    new FHJsonHttpResponseHandler(pCallback));
-            }
-        } else {
-            FHResponse res = new FHResponse(null, null, new Exception("offline"), "offline");
-            pCallback.fail(res);
-        }
+        execute(FHHttpTransport.METHOD_PUT, pUrl, pHeaders, toBody(pParams), pCallback, pUseSync);
     }
 
     public void get(
@@ -79,28 +123,7 @@ public class FHHttpClient {
         JSONObject pParams,
         FHActCallback pCallback,
         boolean pUseSync) {
-        if (FH.isOnline()) {
-            if (pUseSync) {
-                mSyncClient.setUserAgent(FH.getUserAgent());
-                mSyncClient.get(
-                    null,
-                    pUrl,
-                    pHeaders,
-                    convertToRequestParams(pParams),
-                    new FHJsonHttpResponseHandler(pCallback));
-            } else {
-                mClient.setUserAgent(FH.getUserAgent());
-                mClient.get(
-                    null,
-                    pUrl,
-                    pHeaders,
-                    convertToRequestParams(pParams),
-                    new FHJsonHttpResponseHandler(pCallback));
-            }
-        } else {
-            FHResponse res = new FHResponse(null, null, new Exception("offline"), "offline");
-            pCallback.fail(res);
-        }
+        execute(FHHttpTransport.METHOD_GET, toQueryUrl(pUrl, pParams), pHeaders, null, pCallback, pUseSync);
     }
 
     public void post(
@@ -109,35 +132,7 @@ public class FHHttpClient {
         JSONObject pParams,
         FHActCallback pCallback,
         boolean pUseSync) {
-        if (FH.isOnline()) {
-
-            StringEntity entity = new StringEntity(new JSONObject().toString(), Consts.UTF_8);
-            if (pParams != null) {
-                entity = new StringEntity(pParams.toString(), Consts.UTF_8);
-            }
-            if (pUseSync) {
-                mSyncClient.setUserAgent(FH.getUserAgent());
-                mSyncClient.post(
-                    null,
-                    pUrl,
-                    pHeaders,
-                    entity,
-                    "application/json",
-                    new FHJsonHttpResponseHandler(pCallback));
-            } else {
-                mClient.setUserAgent(FH.getUserAgent());
-                mClient.post(
-                    null,
-                    pUrl,
-                    pHeaders,
-                    entity,
-                    "application/json",
-                    new FHJsonHttpResponseHandler(pCallback));
-            }
-        } else {
-            FHResponse res = new FHResponse(null, null, new Exception("offline"), "offline");
-            pCallback.fail(res);
-        }
+        execute(FHHttpTransport.METHOD_POST, pUrl, pHeaders, toBody(pParams), pCallback, pUseSync);
     }
 
     public void delete(
@@ -146,124 +141,151 @@ public class FHHttpClient {
         JSONObject pParams,
         FHActCallback pCallback,
         boolean pUseSync) {
+        execute(FHHttpTransport.METHOD_DELETE, toQueryUrl(pUrl, pParams), pHeaders, null, pCallback, pUseSync);
+    }
+
+    private void execute(
+        String pMethod,
+        String pUrl,
+        Header[] pHeaders,
+        byte[] pBody,
+        FHActCallback pCallback,
+        boolean pUseSync) {
         if (FH.isOnline()) {
-            if (pUseSync) {
-                mSyncClient.setUserAgent(FH.getUserAgent());
-                mSyncClient.delete(
-                    null,
-                    pUrl,
-                    pHeaders,
-                    convertToRequestParams(pParams),
-                    new FHJsonHttpResponseHandler(pCallback));
-            } else {
-                mClient.setUserAgent(FH.getUserAgent());
-                mClient.delete(
-                    null,
-                    pUrl,
-                    pHeaders,
-                    convertToRequestParams(pParams),
-                    new FHJsonHttpResponseHandler(pCallback));
-            }
+            getTransport().setUserAgent(FH.getUserAgent());
+            send(pMethod, pUrl, pHeaders, pBody, new FHJsonHttpResponseHandler(pCallback, mBackgroundParseThreshold), pUseSync);
         } else {
             FHResponse res = new FHResponse(null, null, new Exception("offline"), "offline");
             pCallback.fail(res);
         }
     }
 
-    private RequestParams convertToRequestParams(JSONObject pIn) {
-        RequestParams rp = null;
-        if (pIn != null) {
-            rp = new RequestParams();
-            for (Iterator<String> it = pIn.keys(); it.hasNext(); ) {
-                String key = it.next();
-                rp.put(key, pIn.get(key));
+    /**
+     * Compresses the body if it is large enough and sends the request through the transport.
+     */
+    void send(
+        String pMethod,
+        String pUrl,
+        Header[] pHeaders,
+        byte[] pBody,
+        FHJsonHttpResponseHandler pResponseHandler,
+        boolean pUseSync) {
+        byte[] body = pBody;
+        Header[] headers = pHeaders;
+        int threshold = mGzipThreshold;
+        if (pBody != null && threshold >= 0 && pBody.length >= threshold) {
+            byte[] compressed = gzip(pBody);
+            if (compressed.length < pBody.length) {
+                body = compressed;
+                headers = addHeader(pHeaders, new BasicHeader("Content-Encoding", "gzip"));
             }
         }
-        return rp;
-    }
-
-    private static class FHJsonHttpResponseHandler extends JsonHttpResponseHandler {
-
-        private FHActCallback callback = null;
-
-        public FHJsonHttpResponseHandler(FHActCallback pCallback) {
-            super();
-            callback = pCallback;
+        FHHttpTransferListener listener = mTransferListener;
+        if (listener != null) {
+            int requestBytes = (pBody != null) ? pBody.length : 0;
+            int requestWireBytes = (body != null) ? body.length : 0;
+            pResponseHandler.setTransferListener(listener, pUrl, requestBytes, requestWireBytes);
         }
+        getTransport().execute(pMethod, pUrl, headers, body, CONTENT_TYPE_JSON, pResponseHandler, pUseSync);
+    }
 
-        @Override
-        public void onSuccess(int pStatusCode, Header[] pHeaders, org.json.JSONObject pRes) {
-            FHLog.v(LOG_TAG, "Got response : " + pRes.toString());
-            if (callback != null) {
-                FHResponse fhres = new FHResponse(new JSONObject(pRes.toString()), null, null, null);
-                callback.success(fhres);
-            }
+    private static byte[] gzip(byte[] pBody) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(pBody.length / 4 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(pBody);
+            gzip.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new IllegalStateException(e);
         }
+    }
 
-        @Override
-        public void onSuccess(int pStatusCode, Header[] pHeaders, org.json.JSONArray pRes) {
-            FHLog.v(LOG_TAG, "Got response : " + pRes.toString());
-            if (callback != null) {
-                FHResponse fhres = new FHResponse(null, new JSONArray(pRes.toString()), null, null);
-                callback.success(fhres);
-            }
+    private static Header[] addHeader(Header[] pHeaders, Header pHeader) {
+        if (pHeaders == null) {
+            return new Header[] {pHeader};
         }
+        Header[] headers = Arrays.copyOf(pHeaders, pHeaders.length + 1);
+        headers[pHeaders.length] = pHeader;
+        return headers;
+    }
 
-        @Override
-        public void onFailure(int pStatusCode, Header[] pHeaders, String pContent, Throwable pError) {
-            FHLog.e(LOG_TAG, pError.getMessage(), pError);
-            if (callback != null) {
-                FHResponse fhres = new FHResponse(null, null, pError, pContent);
-                callback.fail(fhres);
-            }
-        }
+    private static byte[] toBody(JSONObject pParams) {
+        JSONObject params = (pParams != null) ? pParams : new JSONObject();
+        return params.toString().getBytes(UTF_8);
+    }
 
-        @Override
-        public void onFailure(
-            int pStatusCode,
-            Header[] pHeaders,
-            Throwable pError,
-            org.json.JSONObject pErrorResponse) {
-            FHLog.e(LOG_TAG, pError.getMessage(), pError);
-            String errorResponse = (pErrorResponse != null) ? pErrorResponse.toString() : "{}";
-            if (callback != null) {
-                FHResponse fhres = new FHResponse(
-                    new JSONObject(errorResponse),
-                    null,
-                    pError,
-                    errorResponse);
-                callback.fail(fhres);
-            }
-        }
+    private String toQueryUrl(String pUrl, JSONObject pParams) {
+        return AsyncHttpClient.getUrlWithQueryString(true, pUrl, convertToRequestParams(pParams));
+    }
 
-        @Override
-        public void onFailure(int pStatusCode, Header[] pHeaders, Throwable pError, org.json.JSONArray pErrorResponse) {
-            FHLog.e(LOG_TAG, pError.getMessage(), pError);
-            if (callback != null) {
-                FHResponse fhres = new FHResponse(
-                    null,
-                    new JSONArray(pErrorResponse.toString()),
-                    pError,
-                    pErrorResponse.toString());
-                callback.fail(fhres);
+    private RequestParams convertToRequestParams(JSONObject pIn) {
+        RequestParams rp = null;
+        if (pIn != null) {
+            rp = new RequestParams();
+            for (Iterator<String> it = pIn.keys(); it.hasNext(); ) {
+                String key = it.next();
+                rp.put(key, pIn.get(key));
             }
         }
+        return rp;
     }
-    
+
     /**
      * Set both the connection and socket timeouts. By default, both are set to
-     * 10 seconds.
+     * 10 seconds. This changes the timeout of every client sharing the same transport.
      *
      * @param milliseconds the connect/socket timeout in milliseconds, at least 1 second
      */
     public void setTimeout(int milliseconds) {
-        mClient.setResponseTimeout(milliseconds);
-        mSyncClient.setResponseTimeout(milliseconds);
+        getTransport().setTimeout(milliseconds);
     }
     
+    /**
+     * Sets the size from which responses of asynchronous calls are parsed on a background thread
+     * instead of the thread the callback runs on. Defaults to 16KB.
+     *
+     * @param pBytes the size of the response body, in bytes
+     */
+    public void setBackgroundParseThreshold(int pBytes) {
+        mBackgroundParseThreshold = pBytes;
+    }
+
+    /**
+     * Enables gzip compression of request bodies. Only turn it on when the cloud app accepts
+     * compressed requests. Compression is off by default; responses are always accepted in
+     * gzip.
+     *
+     * @param pBytes the size from which request bodies are compressed, or a negative value to
+     * turn compression off
+     */
+    public void setGzipThreshold(int pBytes) {
+        mGzipThreshold = pBytes;
+    }
+
+    /**
+     * Sets a listener that is told the request and response sizes of every request, before and
+     * after compression.
+     *
+     * @param pListener the listener, or null to remove it
+     */
+    public void setTransferListener(FHHttpTransferListener pListener) {
+        mTransferListener = pListener;
+    }
+
+    /**
+     * Sets the number of connections the transport of this client uses, and keeps alive, at the
+     * same time. This changes the pool of every client sharing the same transport.
+     *
+     * @param pMaxConnections the size of the connection pool
+     */
+    public void setMaxConnections(int pMaxConnections) {
+        getTransport().setMaxConnections(pMaxConnections);
+    }
+
     public void setHttpProxy(HttpHost proxy) {
-        mClient.getHttpClient().getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,proxy);
-        mSyncClient.getHttpClient().getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,proxy);
+        getTransport().setHttpProxy(proxy);
     }
     
 }
@@ -0,0 +1,38 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk2;
+
+/**
+ * Is told how many bytes the requests of a {@link FHHttpClient} carried, before and after
+ * compression, so that the effect of gzip can be measured.
+ *
+ * The bytes saved by a request are pRequestBytes - pRequestWireBytes plus pResponseBytes -
+ * pResponseWireBytes, leaving out the sizes that are not known.
+ */
+public interface FHHttpTransferListener {
+
+    /**
+     * Called once the response of a request was received, before it is handed to the callback.
+     *
+     * @param pUrl the URL of the request
+     * @param pRequestBytes the size of the request body
+     * @param pRequestWireBytes the size of the request body as sent, smaller when it was compressed
+     * @param pResponseBytes the size of the response body
+     * @param pResponseWireBytes the size of the response body as received, or -1 if the response
+     * was compressed and its compressed size is not known
+     */
+    void onTransfer(String pUrl, int pRequestBytes, int pRequestWireBytes, int pResponseBytes, int pResponseWireBytes);
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk2;
+
+import com.loopj.android.http.ResponseHandlerInterface;
+import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.HttpHost;
+
+/**
+ * Sends the HTTP requests of a {@link FHHttpClient}.
+ *
+ * A transport is shared by every client that does not get one of its own, so implementations
+ * must be thread safe and should keep connections alive between requests.
+ */
+public interface FHHttpTransport {
+
+    String METHOD_GET = "GET";
+    String METHOD_PUT = "PUT";
+    String METHOD_POST = "POST";
+    String METHOD_DELETE = "DELETE";
+
+    /**
+     * Sends a request and reports the response to pResponseHandler.
+     *
+     * @param pMethod one of the METHOD_* constants
+     * @param pUrl the URL to send the request to, already encoded and including any query string
+     * @param pHeaders additional headers, may be null
+     * @param pBody the request body, or null if the request has none
+     * @param pContentType the content type of the body, ignored when there is no body
+     * @param pResponseHandler the handler to report the response to
+     * @param pUseSync whether to send the request on the calling thread
+     */
+    void execute(
+        String pMethod,
+        String pUrl,
+        Header[] pHeaders,
+        byte[] pBody,
+        String pContentType,
+        ResponseHandlerInterface pResponseHandler,
+        boolean pUseSync);
+
+    /**
+     * Sets the User-Agent header sent with the requests.
+     *
+     * @param pUserAgent the user agent
+     */
+    void setUserAgent(String pUserAgent);
+
+    /**
+     * Sets the time to wait for a response.
+     *
+     * @param pMilliseconds the timeout in milliseconds
+     */
+    void setTimeout(int pMilliseconds);
+
+    /**
+     * Sets the proxy the requests are sent through.
+     *
+     * @param pProxy the proxy, or null to connect directly
+     */
+    void setHttpProxy(HttpHost pProxy);
+
+    /**
+     * Sets the number of connections that are used, and kept alive, at the same time.
+     *
+     * @param pMaxConnections the size of the connection pool
+     */
+    void setMaxConnections(int pMaxConnections);
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk2;
+
+import com.feedhenry.sdk.FH;
+import com.feedhenry.sdk.FHActCallback;
+import com.feedhenry.sdk.FHResponse;
+import com.feedhenry.sdk.utils.FHLog;
+import com.loopj.android.http.AsyncHttpResponseHandler;
+import cz.msebera.android.httpclient.Header;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.json.fh.JSONArray;
+import org.json.fh.JSONException;
+import org.json.fh.JSONObject;
+import org.json.fh.JSONTokener;
+
+/**
+ * Hands the JSON responses of cloud calls to a {@link FHActCallback}.
+ *
+ * The raw response bytes are parsed once, straight into org.json.fh types, by streaming them
+ * through a {@link JSONTokener}. Responses of at least {@link #getBackgroundParseThreshold()} bytes
+ * are parsed on a background thread, and the callback is then invoked on the thread the handler
+ * would have used anyway.
+ */
+public class FHJsonHttpResponseHandler extends AsyncHttpResponseHandler {
+
+    /**
+     * The default size, in bytes, from which responses are parsed on a background thread.
+     */
+    public static final int DEFAULT_BACKGROUND_PARSE_THRESHOLD = 16 * 1024;
+
+    private static final String LOG_TAG = "com.feedhenry.sdk2.FHJsonHttpResponseHandler";
+
+    private static final byte[] UTF8_BOM_BYTES = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    private static final ExecutorService PARSER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable pRunnable) {
+            Thread thread = new Thread(pRunnable, "FHJsonResponseParser");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final FHActCallback mCallback;
+    private final int mBackgroundParseThreshold;
+    private FHHttpTransferListener mTransferListener;
+    private String mRequestUrl;
+    private int mRequestBytes;
+    private int mRequestWireBytes;
+
+    public FHJsonHttpResponseHandler(FHActCallback pCallback) {
+        this(pCallback, DEFAULT_BACKGROUND_PARSE_THRESHOLD);
+    }
+
+    /**
+     * @param pCallback the callback to hand the responses to, may be null
+     * @param pBackgroundParseThreshold the size, in bytes, from which responses are parsed on a
+     * background thread
+     */
+    public FHJsonHttpResponseHandler(FHActCallback pCallback, int pBackgroundParseThreshold) {
+        super();
+        mCallback = pCallback;
+        mBackgroundParseThreshold = pBackgroundParseThreshold;
+    }
+
+    public int getBackgroundParseThreshold() {
+        return mBackgroundParseThreshold;
+    }
+
+    /**
+     * Reports the sizes of the request, and of its response once it is received, to pListener.
+     */
+    void setTransferListener(FHHttpTransferListener pListener, String pUrl, int pRequestBytes, int pRequestWireBytes) {
+        mTransferListener = pListener;
+        mRequestUrl = pUrl;
+        mRequestBytes = pRequestBytes;
+        mRequestWireBytes = pRequestWireBytes;
+    }
+
+    @Override
+    public void onSuccess(final int pStatusCode, final Header[] pHeaders, final byte[] pResponseBody) {
+        reportTransfer(pHeaders, pResponseBody);
+        parse(pResponseBody, new Runnable() {
+            @Override
+            public void run() {
+                Object res = parseResponse(pResponseBody);
+                deliverSuccess(res, pResponseBody);
+            }
+        });
+    }
+
+    @Override
+    public void onFailure(
+        final int pStatusCode,
+        final Header[] pHeaders,
+        final byte[] pResponseBody,
+        final Throwable pError) {
+        reportTransfer(pHeaders, pResponseBody);
+        parse(pResponseBody, new Runnable() {
+            @Override
+            public void run() {
+                Object res = parseResponse(pResponseBody);
+                deliverFailure(res, pResponseBody, pError);
+            }
+        });
+    }
+
+    /**
+     * Runs pParser inline for small responses and for handlers that already run off the main
+     * thread, otherwise on the parser thread.
+     */
+    private void parse(byte[] pResponseBody, final Runnable pParser) {
+        boolean large = pResponseBody != null && pResponseBody.length >= mBackgroundParseThreshold;
+        if (!large || getUseSynchronousMode() || getUsePoolThread()) {
+            pParser.run();
+            return;
+        }
+        PARSER.execute(pParser);
+    }
+
+    /**
+     * Parses the response body. Called on the parser thread for large responses.
+     *
+     * @return a JSONObject or JSONArray, a String if the body is not a JSON object or array, a
+     * JSONException if it could not be parsed, or null if there is no body
+     */
+    private Object parseResponse(byte[] pResponseBody) {
+        if (pResponseBody == null) {
+            return null;
+        }
+        int start = skipBomAndWhitespace(pResponseBody);
+        if (start == pResponseBody.length) {
+            return null;
+        }
+        byte first = pResponseBody[start];
+        if (first != '{' && first != '[') {
+            return decode(pResponseBody, start).trim();
+        }
+        try {
+            InputStreamReader reader = new InputStreamReader(
+                new ByteArrayInputStream(pResponseBody, start, pResponseBody.length - start),
+                Charset.forName(getCharset()));
+            return new JSONTokener(reader).nextValue();
+        } catch (JSONException e) {
+            return e;
+        }
+    }
+
+    private void deliverSuccess(final Object pRes, final byte[] pResponseBody) {
+        if (!(pRes instanceof JSONObject)) {
+            Throwable error = (pRes instanceof JSONException)
+                ? (JSONException) pRes
+                : new JSONException("Response cannot be parsed as JSON data");
+            deliverFailure(pRes, pResponseBody, error);
+            return;
+        }
+        if (FHLog.isLoggable(FH.LOG_LEVEL_VERBOSE)) {
+            FHLog.v(LOG_TAG, "Got response : " + pRes.toString());
+        }
+        if (mCallback != null) {
+            postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    FHResponse fhres = (pRes instanceof JSONArray)
+                        ? new FHResponse(null, (JSONArray) pRes, null, null)
+                        : new FHResponse((JSONObject) pRes, null, null, null);
+                    mCallback.success(fhres);
+                }
+            });
+        }
+    }
+
+    private void deliverFailure(Object pRes, byte[] pResponseBody, Throwable pError) {
+        FHLog.e(LOG_TAG, pError.getMessage(), pError);
+        if (mCallback == null) {
+            return;
+        }
+        final FHResponse fhres;
+        if (pRes instanceof JSONArray) {
+            fhres = new FHResponse(null, (JSONArray) pRes, pError, pRes.toString());
+        } else if (pRes instanceof JSONObject) {
+            fhres = new FHResponse((JSONObject) pRes, null, pError, pRes.toString());
+        } else if (pRes instanceof String) {
+            fhres = new FHResponse(null, null, pError, (String) pRes);
+        } else {
+            fhres = new FHResponse(new JSONObject(), null, pError, "{}");
+        }
+        postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.fail(fhres);
+            }
+        });
+    }
+
+    private void reportTransfer(Header[] pHeaders, byte[] pResponseBody) {
+        if (mTransferListener == null) {
+            return;
+        }
+        int responseBytes = (pResponseBody != null) ? pResponseBody.length : 0;
+        try {
+            mTransferListener.onTransfer(
+                mRequestUrl,
+                mRequestBytes,
+                mRequestWireBytes,
+                responseBytes,
+                getResponseWireBytes(pHeaders, responseBytes));
+        } catch (RuntimeException e) {
+            FHLog.e(LOG_TAG, "Transfer listener failed", e);
+        }
+    }
+
+    /**
+     * Gets the size of a response as received. The headers are the ones sent by the server, so a
+     * decompressed response still carries its Content-Encoding and the Content-Length of the
+     * compressed body.
+     */
+    private static int getResponseWireBytes(Header[] pHeaders, int pResponseBytes) {
+        String encoding = getHeader(pHeaders, "Content-Encoding");
+        if (encoding == null || "identity".equalsIgnoreCase(encoding)) {
+            return pResponseBytes;
+        }
+        String length = getHeader(pHeaders, "Content-Length");
+        if (length == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String getHeader(Header[] pHeaders, String pName) {
+        if (pHeaders == null) {
+            return null;
+        }
+        for (Header header : pHeaders) {
+            if (pName.equalsIgnoreCase(header.getName())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static int skipBomAndWhitespace(byte[] pBytes) {
+        int start = 0;
+        if (pBytes.length >= UTF8_BOM_BYTES.length
+            && pBytes[0] == UTF8_BOM_BYTES[0]
+            && pBytes[1] == UTF8_BOM_BYTES[1]
+            && pBytes[2] == UTF8_BOM_BYTES[2]) {
+            start = UTF8_BOM_BYTES.length;
+        }
+        while (start < pBytes.length && pBytes[start] >= 0 && pBytes[start] <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private String decode(byte[] pBytes, int pStart) {
+        try {
+            return new String(pBytes, pStart, pBytes.length - pStart, getCharset());
+        } catch (UnsupportedEncodingException e) {
+            return new String(pBytes, pStart, pBytes.length - pStart, Charset.forName(DEFAULT_CHARSET));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk2;
+
+import com.loopj.android.http.AsyncHttpClient;
+import com.loopj.android.http.RequestParams;
+import com.loopj.android.http.ResponseHandlerInterface;
+import com.loopj.android.http.SyncHttpClient;
+import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.HttpHost;
+import cz.msebera.android.httpclient.conn.params.ConnRoutePNames;
+import cz.msebera.android.httpclient.entity.ByteArrayEntity;
+
+/**
+ * A {@link FHHttpTransport} built on the android-async-http clients, which the SDK used before it
+ * had transports. Each of the two clients keeps its own pool of keep-alive connections.
+ */
+public class FHLoopjHttpTransport implements FHHttpTransport {
+
+    private final AsyncHttpClient mClient = new AsyncHttpClient();
+    private final SyncHttpClient mSyncClient = new SyncHttpClient();
+
+    public FHLoopjHttpTransport() {
+        // FHHttpClient encodes the URLs, encoding them again would mangle the query strings
+        mClient.setURLEncodingEnabled(false);
+        mSyncClient.setURLEncodingEnabled(false);
+    }
+
+    @Override
+    public void execute(
+        String pMethod,
+        String pUrl,
+        Header[] pHeaders,
+        byte[] pBody,
+        String pContentType,
+        ResponseHandlerInterface pResponseHandler,
+        boolean pUseSync) {
+        AsyncHttpClient client = pUseSync ? mSyncClient : mClient;
+        ByteArrayEntity entity = (pBody != null) ? new ByteArrayEntity(pBody) : null;
+        if (METHOD_GET.equals(pMethod)) {
+            client.get(null, pUrl, pHeaders, null, pResponseHandler);
+        } else if (METHOD_PUT.equals(pMethod)) {
+            client.put(null, pUrl, pHeaders, entity, pContentType, pResponseHandler);
+        } else if (METHOD_POST.equals(pMethod)) {
+            client.post(null, pUrl, pHeaders, entity, pContentType, pResponseHandler);
+        } else if (METHOD_DELETE.equals(pMethod)) {
+            client.delete(null, pUrl, pHeaders, (RequestParams) null, pResponseHandler);
+        } else {
+            throw new IllegalArgumentException("Unsupported HTTP method " + pMethod);
+        }
+    }
+
+    @Override
+    public void setUserAgent(String pUserAgent) {
+        mClient.setUserAgent(pUserAgent);
+        mSyncClient.setUserAgent(pUserAgent);
+    }
+
+    @Override
+    public void setTimeout(int pMilliseconds) {
+        mClient.setResponseTimeout(pMilliseconds);
+        mSyncClient.setResponseTimeout(pMilliseconds);
+    }
+
+    @Override
+    public void setHttpProxy(HttpHost pProxy) {
+        mClient.getHttpClient().getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, pProxy);
+        mSyncClient.getHttpClient().getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, pProxy);
+    }
+
+    @Override
+    public void setMaxConnections(int pMaxConnections) {
+        mClient.setMaxConnections(pMaxConnections);
+        mSyncClient.setMaxConnections(pMaxConnections);
+    }
+}
@@ -35,7 +35,7 @@ public abstract class FHRemote implements FHAct {
 
     protected FHActCallback mCallback;
     protected Context mContext;
-    private final FHHttpClient mFHHttpClient = new FHHttpClient();
+    private final FHHttpClient mFHHttpClient = FHHttpClient.getInstance();
 
     public FHRemote(Context context) {
         mContext = context;
@@ -0,0 +1,284 @@
+/**
+ * Copyright Red Hat, Inc, and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.feedhenry.sdk2;
+
+import com.loopj.android.http.ResponseHandlerInterface;
+import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.HttpHost;
+import cz.msebera.android.httpclient.client.HttpResponseException;
+import cz.msebera.android.httpclient.message.BasicHeader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The default {@link FHHttpTransport}, built on {@link HttpURLConnection}, which keeps connections
+ * alive in the platform's connection pool. Responses are requested, and decompressed, in gzip.
+ *
+ * Asynchronous requests are sent from a pool of as many threads as there are connections, and no
+ * more requests than that, synchronous ones included, are sent at the same time. How many idle
+ * connections the platform keeps alive is up to the http.maxConnections system property, which
+ * the transport leaves alone as it applies to the whole process.
+ */
+public class FHUrlConnectionHttpTransport implements FHHttpTransport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 5;
+
+    private static final int DEFAULT_TIMEOUT = 10 * 1000;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ConnectionPermits mConnections = new ConnectionPermits();
+    private volatile String mUserAgent;
+    private volatile int mTimeout = DEFAULT_TIMEOUT;
+    private volatile Proxy mProxy = Proxy.NO_PROXY;
+
+    public FHUrlConnectionHttpTransport() {
+        this(DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param pMaxConnections the size of the connection pool
+     */
+    public FHUrlConnectionHttpTransport(int pMaxConnections) {
+        mExecutor = new ThreadPoolExecutor(
+            pMaxConnections,
+            pMaxConnections,
+            IDLE_THREAD_TIMEOUT_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable pRunnable) {
+                    Thread thread = new Thread(pRunnable, "FHHttpTransport-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        mExecutor.allowCoreThreadTimeOut(true);
+        setMaxConnections(pMaxConnections);
+    }
+
+    @Override
+    public void execute(
+        final String pMethod,
+        final String pUrl,
+        final Header[] pHeaders,
+        final byte[] pBody,
+        final String pContentType,
+        final ResponseHandlerInterface pResponseHandler,
+        boolean pUseSync) {
+        if (pUseSync) {
+            pResponseHandler.setUseSynchronousMode(true);
+            send(pMethod, pUrl, pHeaders, pBody, pContentType, pResponseHandler);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                send(pMethod, pUrl, pHeaders, pBody, pContentType, pResponseHandler);
+            }
+        });
+    }
+
+    private void send(
+        String pMethod,
+        String pUrl,
+        Header[] pHeaders,
+        byte[] pBody,
+        String pContentType,
+        ResponseHandlerInterface pResponseHandler) {
+        pResponseHandler.sendStartMessage();
+        HttpURLConnection connection = null;
+        boolean connected = false;
+        try {
+            mConnections.acquireUninterruptibly();
+            connected = true;
+            connection = (HttpURLConnection) new URL(pUrl).openConnection(mProxy);
+            connection.setRequestMethod(pMethod);
+            connection.setConnectTimeout(mTimeout);
+            connection.setReadTimeout(mTimeout);
+            if (mUserAgent != null) {
+                connection.setRequestProperty("User-Agent", mUserAgent);
+            }
+            // asking for gzip explicitly keeps the Content-Encoding and Content-Length of the
+            // compressed response, which the platform drops when it decompresses transparently
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (pHeaders != null) {
+                for (Header header : pHeaders) {
+                    connection.setRequestProperty(header.getName(), header.getValue());
+                }
+            }
+            if (pBody != null) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(pBody.length);
+                if (pContentType != null) {
+                    connection.setRequestProperty("Content-Type", pContentType);
+                }
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(pBody);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            InputStream in = (status >= HttpURLConnection.HTTP_BAD_REQUEST)
+                ? connection.getErrorStream()
+                : connection.getInputStream();
+            if (in != null
+                && connection.getContentLength() != 0
+                && "gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            // reading the body to the end lets the connection go back to the pool
+            byte[] body = readFully(in);
+            Header[] headers = getResponseHeaders(connection);
+            // the handler may send another request, which must not wait for this one
+            mConnections.release();
+            connected = false;
+            if (status >= HttpURLConnection.HTTP_MULT_CHOICE) {
+                pResponseHandler.sendFailureMessage(
+                    status,
+                    headers,
+                    body,
+                    new HttpResponseException(status, connection.getResponseMessage()));
+            } else {
+                pResponseHandler.sendSuccessMessage(status, headers, body);
+            }
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            if (connected) {
+                mConnections.release();
+                connected = false;
+            }
+            pResponseHandler.sendFailureMessage(0, null, null, e);
+        } finally {
+            if (connected) {
+                mConnections.release();
+            }
+            pResponseHandler.sendFinishMessage();
+        }
+    }
+
+    private static byte[] readFully(InputStream pIn) throws IOException {
+        if (pIn == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = pIn.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            pIn.close();
+        }
+    }
+
+    private static Header[] getResponseHeaders(HttpURLConnection pConnection) {
+        List<Header> headers = new ArrayList<>();
+        for (Map.Entry<String, List<String>> field : pConnection.getHeaderFields().entrySet()) {
+            // the status line is reported under a null name
+            if (field.getKey() == null) {
+                continue;
+            }
+            for (String value : field.getValue()) {
+                headers.add(new BasicHeader(field.getKey(), value));
+            }
+        }
+        return headers.toArray(new Header[headers.size()]);
+    }
+
+    @Override
+    public void setUserAgent(String pUserAgent) {
+        mUserAgent = pUserAgent;
+    }
+
+    @Override
+    public void setTimeout(int pMilliseconds) {
+        mTimeout = pMilliseconds;
+    }
+
+    @Override
+    public void setHttpProxy(HttpHost pProxy) {
+        if (pProxy == null) {
+            mProxy = Proxy.NO_PROXY;
+        } else {
+            mProxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(pProxy.getHostName(), pProxy.getPort()));
+        }
+    }
+
+    @Override
+    public synchronized void setMaxConnections(int pMaxConnections) {
+        if (pMaxConnections < 1) {
+            throw new IllegalArgumentException("At least one connection is needed");
+        }
+        if (pMaxConnections > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(pMaxConnections);
+            mExecutor.setCorePoolSize(pMaxConnections);
+        } else {
+            mExecutor.setCorePoolSize(pMaxConnections);
+            mExecutor.setMaximumPoolSize(pMaxConnections);
+        }
+        mConnections.resize(pMaxConnections);
+    }
+
+    /**
+     * The connections that can be used at the same time. Shrinking it lets the requests being sent
+     * complete, and makes the next ones wait until there are fewer than the new size.
+     */
+    private static final class ConnectionPermits extends Semaphore {
+        private int mSize;
+
+        ConnectionPermits() {
+            super(0, true);
+        }
+
+        synchronized void resize(int pSize) {
+            int change = pSize - mSize;
+            mSize = pSize;
+            if (change > 0) {
+                release(change);
+            } else if (change < 0) {
+                reducePermits(-change);
+            }
+        }
+    }
+}
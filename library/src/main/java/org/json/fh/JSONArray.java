@@ -25,6 +25,8 @@ package org.json.fh;
  */
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -74,6 +76,13 @@ public class JSONArray extends JSONObject {
         this.myArrayList = new ArrayList();
     }
 
+    /**
+     * Construct a JSONArray backed by the given list, without copying it.
+     */
+    private JSONArray(ArrayList list, boolean shared) {
+        this.myArrayList = list;
+    }
+
     /**
      * Construct a JSONArray from a JSONTokener.
      *
@@ -124,6 +133,29 @@ public class JSONArray extends JSONObject {
         this(new JSONTokener(string));
     }
 
+    /**
+     * Construct a JSONArray from a reader. The text is parsed as it is read,
+     * without first being collected into a string. The reader is not closed.
+     *
+     * @param reader A reader whose text begins with <code>[</code>&nbsp;<small>(left bracket)</small>.
+     * @throws JSONException If there is a syntax error or the reader fails.
+     */
+    public JSONArray(Reader reader) throws JSONException {
+        this(new JSONTokener(reader));
+    }
+
+    /**
+     * Construct a JSONArray from a UTF-8 encoded input stream. The text is parsed
+     * as it is read, without first being collected into a string. The stream
+     * is not closed.
+     *
+     * @param stream An input stream whose text begins with <code>[</code>&nbsp;<small>(left bracket)</small>.
+     * @throws JSONException If there is a syntax error or the stream fails.
+     */
+    public JSONArray(InputStream stream) throws JSONException {
+        this(new JSONTokener(stream));
+    }
+
     /**
      * Construct a JSONArray from a Collection.
      *
@@ -287,16 +319,19 @@ public class JSONArray extends JSONObject {
      * @throws JSONException this will be thrown if there is an error parsing the JSON If the array contains an invalid number.
      */
     public String join(String separator) throws JSONException {
-        int len = length();
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
+        join(separator, sb);
+        return sb.toString();
+    }
 
+    private void join(String separator, StringBuilder sb) throws JSONException {
+        int len = length();
         for (int i = 0; i < len; i += 1) {
             if (i > 0) {
                 sb.append(separator);
             }
-            sb.append(JSONObject.valueToString(this.myArrayList.get(i)));
+            JSONObject.appendValue(this.myArrayList.get(i), sb);
         }
-        return sb.toString();
     }
 
     /**
@@ -724,12 +759,21 @@ public class JSONArray extends JSONObject {
      */
     public String toString() {
         try {
-            return '[' + join(",") + ']';
+            StringBuilder sb = new StringBuilder();
+            append(sb);
+            return sb.toString();
         } catch (Exception e) {
             return null;
         }
     }
 
+    @Override
+    void append(StringBuilder sb) throws JSONException {
+        sb.append('[');
+        join(",", sb);
+        sb.append(']');
+    }
+
     /**
      * Make a prettyprinted JSON text of this JSONArray.
      * Warning: This method assumes that the data structure is acyclical.
@@ -763,7 +807,7 @@ public class JSONArray extends JSONObject {
             return "[]";
         }
         int i;
-        StringBuffer sb = new StringBuffer("[");
+        StringBuilder sb = new StringBuilder("[");
         if (len == 1) {
             sb.append(JSONObject.valueToString(this.myArrayList.get(0),
                     indentFactor, indent));
@@ -837,4 +881,44 @@ public class JSONArray extends JSONObject {
         }
         return vals;
     }
+
+    /**
+     * Get a read-only view of a JSONArray. The view shares the elements of
+     * the given array instead of copying them, so it reflects later changes
+     * made to that array. Any attempt to modify the view, or the objects and
+     * arrays reached through it, throws an UnsupportedOperationException.
+     *
+     * @param array A JSONArray.
+     * @return A read-only view of the array, or the array itself if it
+     *         already is one.
+     */
+    public static JSONArray readOnly(JSONArray array) {
+        if (array == null || array instanceof ReadOnlyJSONArray) {
+            return array;
+        }
+        return new ReadOnlyJSONArray(array);
+    }
+
+    private static final class ReadOnlyJSONArray extends JSONArray {
+
+        ReadOnlyJSONArray(JSONArray source) {
+            super(source.myArrayList, true);
+        }
+
+        public Object opt(int index) {
+            return JSONObject.readOnlyValue(super.opt(index));
+        }
+
+        public JSONArray put(Object value) {
+            throw new UnsupportedOperationException("This JSONArray is read-only");
+        }
+
+        public JSONArray put(int index, Object value) throws JSONException {
+            throw new UnsupportedOperationException("This JSONArray is read-only");
+        }
+
+        public JSONObject put(String key, Object value) throws JSONException {
+            throw new UnsupportedOperationException("This JSONArray is read-only");
+        }
+    }
 }
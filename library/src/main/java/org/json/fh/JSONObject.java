@@ -25,14 +25,16 @@ package org.json.fh;
  */
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.Serializable;
 import java.io.Writer;
 import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.TreeSet;
 
 /**
  * A JSONObject is an unordered collection of name/value pairs. Its
@@ -120,6 +122,12 @@ public class JSONObject implements Serializable {
      */
     private HashMap myHashMap;
 
+    /**
+     * The keys of myHashMap in sorted order, cached for serialization.
+     * Cleared whenever a key is added or removed.
+     */
+    private transient volatile String[] mySortedKeys;
+
     /**
      * It is sometimes more convenient and less ambiguous to have a <code>NULL</code> object than to use Java's <code>null</code> value. <code>JSONObject.NULL.equals(null)</code> returns
      * <code>true</code>. <code>JSONObject.NULL.toString()</code> returns <code>"null"</code>.
@@ -133,6 +141,13 @@ public class JSONObject implements Serializable {
         this.myHashMap = new HashMap();
     }
 
+    /**
+     * Construct a JSONObject backed by the given map, without copying it.
+     */
+    private JSONObject(HashMap map, boolean shared) {
+        this.myHashMap = map;
+    }
+
     /**
      * Construct a JSONObject from a subset of another JSONObject.
      * An array of strings is used to identify the keys that should be copied.
@@ -261,6 +276,29 @@ public class JSONObject implements Serializable {
         this(new JSONTokener(string));
     }
 
+    /**
+     * Construct a JSONObject from a reader. The text is parsed as it is read,
+     * without first being collected into a string. The reader is not closed.
+     *
+     * @param reader A reader whose text begins with <code>{</code>&nbsp;<small>(left brace)</small>.
+     * @throws JSONException If there is a syntax error or the reader fails.
+     */
+    public JSONObject(Reader reader) throws JSONException {
+        this(new JSONTokener(reader));
+    }
+
+    /**
+     * Construct a JSONObject from a UTF-8 encoded input stream. The text is parsed
+     * as it is read, without first being collected into a string. The stream
+     * is not closed.
+     *
+     * @param stream An input stream whose text begins with <code>{</code>&nbsp;<small>(left brace)</small>.
+     * @throws JSONException If there is a syntax error or the stream fails.
+     */
+    public JSONObject(InputStream stream) throws JSONException {
+        this(new JSONTokener(stream));
+    }
+
     /**
      * Accumulate values under a key. It is similar to the put method except
      * that if there is already an object stored under the key then a
@@ -506,13 +544,44 @@ public class JSONObject implements Serializable {
      * @return An iterator of the keys.
      */
     public Iterator keys() {
-        return this.myHashMap.keySet().iterator();
+        final Iterator keys = this.myHashMap.keySet().iterator();
+        return new Iterator() {
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            public Object next() {
+                return keys.next();
+            }
+
+            public void remove() {
+                keys.remove();
+                mySortedKeys = null;
+            }
+        };
     }
 
     // Patched from the latest version of JSONObject from json.org
     // See http://www.json.org/java/org/json/JSONObject.java
+    /**
+     * Get an iterator over the keys of the JSONObject in ascending order.
+     * The order is cached until the next put or remove, so repeated
+     * serialization does not sort the keys again.
+     *
+     * @return An iterator of the sorted keys. It does not support remove.
+     */
     public Iterator sortedKeys() {
-        return new TreeSet(this.myHashMap.keySet()).iterator();
+        return Arrays.asList(sortedKeyArray()).iterator();
+    }
+
+    String[] sortedKeyArray() {
+        String[] keys = this.mySortedKeys;
+        if (keys == null) {
+            keys = (String[]) this.myHashMap.keySet().toArray(new String[this.myHashMap.size()]);
+            Arrays.sort(keys);
+            this.mySortedKeys = keys;
+        }
+        return keys;
     }
 
     /**
@@ -851,7 +920,9 @@ public class JSONObject implements Serializable {
         }
         if (value != null) {
             testValidity(value);
-            this.myHashMap.put(key, value);
+            if (this.myHashMap.put(key, value) == null) {
+                this.mySortedKeys = null;
+            }
         } else {
             remove(key);
         }
@@ -889,12 +960,21 @@ public class JSONObject implements Serializable {
         if (string == null || string.length() == 0) {
             return "\"\"";
         }
+        StringBuilder sb = new StringBuilder(string.length() + 4);
+        quote(string, sb);
+        return sb.toString();
+    }
+
+    static void quote(String string, StringBuilder sb) {
+        if (string == null || string.length() == 0) {
+            sb.append("\"\"");
+            return;
+        }
 
         char b;
         char c = 0;
         int i;
         int len = string.length();
-        StringBuffer sb = new StringBuffer(len + 4);
         String t;
 
         sb.append('"');
@@ -931,14 +1011,13 @@ public class JSONObject implements Serializable {
             default:
                 if (c < ' ') {
                     t = "000" + Integer.toHexString(c);
-                    sb.append("\\u" + t.substring(t.length() - 4));
+                    sb.append("\\u").append(t.substring(t.length() - 4));
                 } else {
                     sb.append(c);
                 }
             }
         }
         sb.append('"');
-        return sb.toString();
     }
 
     /**
@@ -949,7 +1028,11 @@ public class JSONObject implements Serializable {
      *         or null if there was no value.
      */
     public Object remove(String key) {
-        return this.myHashMap.remove(key);
+        Object removed = this.myHashMap.remove(key);
+        if (removed != null) {
+            this.mySortedKeys = null;
+        }
+        return removed;
     }
 
     /**
@@ -1008,25 +1091,50 @@ public class JSONObject implements Serializable {
      */
     public String toString() {
         try {
-            Iterator keys = sortedKeys();
-            StringBuffer sb = new StringBuffer("{");
-
-            while (keys.hasNext()) {
-                if (sb.length() > 1) {
-                    sb.append(',');
-                }
-                Object o = keys.next();
-                sb.append(quote(o.toString()));
-                sb.append(':');
-                sb.append(valueToString(this.myHashMap.get(o)));
-            }
-            sb.append('}');
+            StringBuilder sb = new StringBuilder();
+            append(sb);
             return sb.toString();
         } catch (Exception e) {
             return null;
         }
     }
 
+    /**
+     * Append the JSON text of this JSONObject to a StringBuilder. Nested
+     * objects and arrays are appended to the same builder rather than being
+     * turned into strings of their own.
+     *
+     * @param sb The builder to append to.
+     * @throws JSONException If the object contains an invalid number.
+     */
+    void append(StringBuilder sb) throws JSONException {
+        String[] keys = sortedKeyArray();
+        sb.append('{');
+        for (int i = 0; i < keys.length; i += 1) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            quote(keys[i], sb);
+            sb.append(':');
+            appendValue(this.myHashMap.get(keys[i]), sb);
+        }
+        sb.append('}');
+    }
+
+    /**
+     * Append the JSON text of a value, as produced by valueToString, to a
+     * StringBuilder.
+     */
+    static void appendValue(Object value, StringBuilder sb) throws JSONException {
+        if (value instanceof JSONObject && !(value instanceof JSONString)) {
+            ((JSONObject) value).append(sb);
+        } else if (value instanceof String) {
+            quote((String) value, sb);
+        } else {
+            sb.append(valueToString(value));
+        }
+    }
+
     /**
      * Make a prettyprinted JSON text of this JSONObject.
      * <p>
@@ -1065,7 +1173,7 @@ public class JSONObject implements Serializable {
             return "{}";
         }
         Iterator keys = sortedKeys();
-        StringBuffer sb = new StringBuffer("{");
+        StringBuilder sb = new StringBuilder("{");
         int newindent = indent + indentFactor;
         Object o;
         if (n == 1) {
@@ -1239,4 +1347,76 @@ public class JSONObject implements Serializable {
         }
         return retVal;
     }
+
+    /**
+     * Get a read-only view of a JSONObject. The view shares the properties
+     * of the given object instead of copying them, so it reflects later
+     * changes made to that object. Any attempt to modify the view, or the
+     * objects and arrays reached through it, throws an
+     * UnsupportedOperationException.
+     *
+     * @param object A JSONObject, or a JSONArray.
+     * @return A read-only view of the object, or the object itself if it
+     *         already is one.
+     */
+    public static JSONObject readOnly(JSONObject object) {
+        if (object instanceof JSONArray) {
+            return JSONArray.readOnly((JSONArray) object);
+        }
+        if (object == null || object instanceof ReadOnlyJSONObject) {
+            return object;
+        }
+        return new ReadOnlyJSONObject(object);
+    }
+
+    /**
+     * Wrap a value read from a read-only view so that nested objects and
+     * arrays are read-only as well.
+     */
+    static Object readOnlyValue(Object value) {
+        return value instanceof JSONObject ? readOnly((JSONObject) value) : value;
+    }
+
+    private static final class ReadOnlyJSONObject extends JSONObject {
+
+        private final JSONObject source;
+
+        ReadOnlyJSONObject(JSONObject source) {
+            super(source.myHashMap, true);
+            this.source = source;
+        }
+
+        public Object opt(String key) {
+            return readOnlyValue(super.opt(key));
+        }
+
+        public Iterator keys() {
+            final Iterator keys = super.keys();
+            return new Iterator() {
+                public boolean hasNext() {
+                    return keys.hasNext();
+                }
+
+                public Object next() {
+                    return keys.next();
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException("This JSONObject is read-only");
+                }
+            };
+        }
+
+        String[] sortedKeyArray() {
+            return this.source.sortedKeyArray();
+        }
+
+        public JSONObject put(String key, Object value) throws JSONException {
+            throw new UnsupportedOperationException("This JSONObject is read-only");
+        }
+
+        public Object remove(String key) {
+            throw new UnsupportedOperationException("This JSONObject is read-only");
+        }
+    }
 }
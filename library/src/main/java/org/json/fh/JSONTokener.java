@@ -24,16 +24,32 @@ package org.json.fh;
  SOFTWARE.
  */
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
 /**
- * A JSONTokener takes a source string and extracts characters and tokens from
- * it. It is used by the JSONObject and JSONArray constructors to parse
- * JSON source strings.
+ * A JSONTokener takes a source string or a Reader and extracts characters and
+ * tokens from it. It is used by the JSONObject and JSONArray constructors to
+ * parse JSON source strings. When constructed from a Reader or an
+ * InputStream the source is consumed incrementally through a fixed-size char
+ * buffer, so the text never has to be held in memory as a whole.
  *
  * @author JSON.org
  * @version 2
  */
 public class JSONTokener {
 
+    /**
+     * The size of the char buffer allocated when reading from a reader and
+     * no buffer is supplied.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     /**
      * The index of the next character.
      */
@@ -44,6 +60,52 @@ public class JSONTokener {
      */
     private String mySource;
 
+    /**
+     * The source reader, or null if the source is a string.
+     */
+    private Reader myReader;
+
+    /**
+     * The buffer the reader is read into. Once filled it is reused for the
+     * rest of the source, the first slot keeping the last character of the
+     * previous fill so that back() also works across refills.
+     */
+    private char[] myBuffer;
+
+    /**
+     * The position of the next character in myBuffer.
+     */
+    private int myBufferPosition;
+
+    /**
+     * The number of valid characters in myBuffer.
+     */
+    private int myBufferLength;
+
+    /**
+     * True once next() has returned 0 because the reader is exhausted.
+     */
+    private boolean myAtEnd;
+
+    /**
+     * Holds the characters of the unquoted value being scanned by
+     * nextValue(). Reused for every value, and grown as needed.
+     */
+    private char[] myToken = new char[32];
+
+    /**
+     * Powers of ten that can be represented exactly as doubles.
+     */
+    private static final double[] EXACT_POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * The largest mantissa that a double holds exactly (2^53).
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
     /**
      * Construct a JSONTokener from a string.
      *
@@ -54,12 +116,58 @@ public class JSONTokener {
         this.mySource = s;
     }
 
+    /**
+     * Construct a JSONTokener from a reader. The reader is read as the tokens
+     * are requested and is not closed by the tokener.
+     *
+     * @param reader A reader.
+     */
+    public JSONTokener(Reader reader) {
+        this(reader, new char[DEFAULT_BUFFER_SIZE]);
+    }
+
+    /**
+     * Construct a JSONTokener from a reader, reading through the given
+     * buffer. This allows a caller parsing many documents to reuse one buffer,
+     * as long as it is not shared by two tokeners at the same time.
+     *
+     * @param reader A reader.
+     * @param buffer The buffer to read into, at least 2 characters long.
+     */
+    public JSONTokener(Reader reader, char[] buffer) {
+        if (buffer.length < 2) {
+            throw new IllegalArgumentException("The buffer must hold at least 2 characters");
+        }
+        this.myIndex = 0;
+        this.myReader = reader;
+        this.myBuffer = buffer;
+    }
+
+    /**
+     * Construct a JSONTokener from a UTF-8 encoded input stream. The stream is
+     * read as the tokens are requested and is not closed by the tokener.
+     *
+     * @param stream An input stream.
+     */
+    public JSONTokener(InputStream stream) {
+        this(new InputStreamReader(stream, UTF_8));
+    }
+
     /**
      * Back up one character. This provides a sort of lookahead capability,
      * so that you can test for a digit or letter before attempting to parse
      * the next number or identifier.
      */
     public void back() {
+        if (this.myReader != null) {
+            if (this.myAtEnd) {
+                this.myAtEnd = false;
+            } else if (this.myBufferPosition > 0) {
+                this.myBufferPosition -= 1;
+                this.myIndex -= 1;
+            }
+            return;
+        }
         if (this.myIndex > 0) {
             this.myIndex -= 1;
         }
@@ -92,6 +200,13 @@ public class JSONTokener {
      * @return true if not yet at the end of the source.
      */
     public boolean more() {
+        if (this.myReader != null) {
+            if (next() == 0) {
+                return false;
+            }
+            back();
+            return true;
+        }
         return this.myIndex < this.mySource.length();
     }
 
@@ -101,6 +216,9 @@ public class JSONTokener {
      * @return The next character, or 0 if past the end of the source string.
      */
     public char next() {
+        if (this.myReader != null) {
+            return nextFromReader();
+        }
         if (more()) {
             char c = this.mySource.charAt(this.myIndex);
             this.myIndex += 1;
@@ -109,6 +227,43 @@ public class JSONTokener {
         return 0;
     }
 
+    private char nextFromReader() {
+        if (this.myBufferPosition >= this.myBufferLength && !fill()) {
+            this.myAtEnd = true;
+            return 0;
+        }
+        char c = this.myBuffer[this.myBufferPosition];
+        if (c == 0) {
+            this.myAtEnd = true;
+            return 0;
+        }
+        this.myBufferPosition += 1;
+        this.myIndex += 1;
+        return c;
+    }
+
+    private boolean fill() {
+        int keep = 0;
+        if (this.myBufferLength > 0) {
+            this.myBuffer[0] = this.myBuffer[this.myBufferLength - 1];
+            keep = 1;
+        }
+        int read;
+        try {
+            do {
+                read = this.myReader.read(this.myBuffer, keep, this.myBuffer.length - keep);
+            } while (read == 0);
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+        if (read < 0) {
+            return false;
+        }
+        this.myBufferPosition = keep;
+        this.myBufferLength = keep + read;
+        return true;
+    }
+
     /**
      * Consume the next character, and check that it matches a specified
      * character.
@@ -136,6 +291,16 @@ public class JSONTokener {
      *             n characters remaining in the source string.
      */
     public String next(int n) throws JSONException {
+        if (this.myReader != null) {
+            char[] chars = new char[n];
+            for (int i = 0; i < n; i++) {
+                chars[i] = next();
+                if (chars[i] == 0) {
+                    throw syntaxError("Substring bounds error");
+                }
+            }
+            return new String(chars);
+        }
         int i = this.myIndex;
         int j = i + n;
         if (j >= this.mySource.length()) {
@@ -301,7 +466,6 @@ public class JSONTokener {
      */
     public Object nextValue() throws JSONException {
         char c = nextClean();
-        String s;
 
         switch (c) {
         case '"':
@@ -324,22 +488,173 @@ public class JSONTokener {
          * formatting character.
          */
 
-        StringBuffer sb = new StringBuffer();
-        char b = c;
+        int length = 0;
         while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
-            sb.append(c);
+            if (length == this.myToken.length) {
+                char[] grown = new char[length * 2];
+                System.arraycopy(this.myToken, 0, grown, 0, length);
+                this.myToken = grown;
+            }
+            this.myToken[length++] = c;
             c = next();
         }
         back();
 
-        /*
-         * If it is true, false, or null, return the proper value.
-         */
-
-        s = sb.toString().trim();
-        if (s.equals("")) {
+        // nextClean() skipped the leading white space, trim the trailing
+        while (length > 0 && this.myToken[length - 1] <= ' ') {
+            length -= 1;
+        }
+        if (length == 0) {
             throw syntaxError("Missing value.");
         }
+        Object value = scanLiteral(this.myToken, length);
+        if (value == null) {
+            value = stringToValue(new String(this.myToken, 0, length));
+        }
+        return value;
+    }
+
+    /**
+     * Classifies and converts the plain JSON literals and numbers in one pass
+     * over the token, without exceptions or intermediate strings. Returns the
+     * same values stringToValue() would.
+     *
+     * @return the value, or null if the token has to go through stringToValue()
+     */
+    private static Object scanLiteral(char[] token, int length) {
+        char b = token[0];
+        if (length == 4 && matches(token, "true")) {
+            return Boolean.TRUE;
+        }
+        if (length == 5 && matches(token, "false")) {
+            return Boolean.FALSE;
+        }
+        if (length == 4 && matches(token, "null")) {
+            return JSONObject.NULL;
+        }
+        if (!((b >= '0' && b <= '9') || b == '.' || b == '-')) {
+            // a leading '+' is left to the platform's number parsing
+            return b == '+' ? null : new String(token, 0, length);
+        }
+        int i = 0;
+        boolean negative = b == '-';
+        if (negative) {
+            i = 1;
+        }
+        if (b == '0' && length > 1) {
+            char second = token[1];
+            if (second != '.' && second != 'e' && second != 'E') {
+                // octal and hex
+                return null;
+            }
+        }
+
+        // [-] digits [. digits] [(e|E) [+|-] digits]
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        int digits = 0;
+        for (; i < length && token[i] >= '0' && token[i] <= '9'; i++) {
+            digits += 1;
+            if (significantDigits > 0 || token[i] != '0') {
+                significantDigits += 1;
+                if (significantDigits <= 18) {
+                    mantissa = mantissa * 10 + (token[i] - '0');
+                } else {
+                    exponent += 1;
+                }
+            }
+        }
+        if (i == length) {
+            if (digits == 0) {
+                return null;
+            }
+            if (significantDigits <= 18) {
+                long integer = negative ? -mantissa : mantissa;
+                if (integer >= Integer.MIN_VALUE && integer <= Integer.MAX_VALUE) {
+                    return Integer.valueOf((int) integer);
+                }
+                return Long.valueOf(integer);
+            }
+            // too long for an int, maybe for a long
+            return null;
+        }
+        if (token[i] == '.') {
+            for (i += 1; i < length && token[i] >= '0' && token[i] <= '9'; i++) {
+                digits += 1;
+                if (significantDigits > 0 || token[i] != '0') {
+                    significantDigits += 1;
+                    if (significantDigits <= 18) {
+                        mantissa = mantissa * 10 + (token[i] - '0');
+                        exponent -= 1;
+                    }
+                } else {
+                    exponent -= 1;
+                }
+            }
+        }
+        if (digits == 0) {
+            return null;
+        }
+        if (i < length && (token[i] == 'e' || token[i] == 'E')) {
+            i += 1;
+            boolean negativeExponent = false;
+            if (i < length && (token[i] == '+' || token[i] == '-')) {
+                negativeExponent = token[i] == '-';
+                i += 1;
+            }
+            int exponentDigits = 0;
+            int explicitExponent = 0;
+            for (; i < length && token[i] >= '0' && token[i] <= '9'; i++) {
+                exponentDigits += 1;
+                if (explicitExponent < 10000) {
+                    explicitExponent = explicitExponent * 10 + (token[i] - '0');
+                }
+            }
+            if (exponentDigits == 0) {
+                return null;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (i < length) {
+            // anything else (suffixes, NaN, inner spaces ...) is left to stringToValue()
+            return null;
+        }
+        if (significantDigits > 18 || mantissa > MAX_EXACT_MANTISSA
+                || exponent < -22 || exponent > 22) {
+            return Double.valueOf(new String(token, 0, length));
+        }
+        // both operands are exact, so this is the correctly rounded value, as Double.valueOf() gives
+        double value = mantissa;
+        if (exponent < 0) {
+            value /= EXACT_POWERS_OF_TEN[-exponent];
+        } else {
+            value *= EXACT_POWERS_OF_TEN[exponent];
+        }
+        return Double.valueOf(negative ? -value : value);
+    }
+
+    /**
+     * Compares like String.equalsIgnoreCase() does.
+     */
+    private static boolean matches(char[] token, String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            char c = token[i];
+            char l = literal.charAt(i);
+            if (c != l && Character.toUpperCase(c) != Character.toUpperCase(l)
+                    && Character.toLowerCase(c) != Character.toLowerCase(l)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts an unquoted token the original way: the literals true, false
+     * and null, then a number, and otherwise the string itself.
+     */
+    static Object stringToValue(String s) {
+        char b = s.charAt(0);
         if (s.equalsIgnoreCase("true")) {
             return Boolean.TRUE;
         }
@@ -395,7 +710,8 @@ public class JSONTokener {
 
     /**
      * Skip characters until the next character is the requested character.
-     * If the requested character is not found, no characters are skipped.
+     * If the requested character is not found, no characters are skipped,
+     * except when reading from a reader, which is then left at its end.
      *
      * @param to A character to skip to.
      * @return The requested character, or zero if the requested character
@@ -403,6 +719,9 @@ public class JSONTokener {
      */
     public char skipTo(char to) {
         char c;
+        if (this.myReader != null) {
+            return skipToInReader(to);
+        }
         int index = this.myIndex;
         do {
             c = next();
@@ -415,6 +734,18 @@ public class JSONTokener {
         return c;
     }
 
+    private char skipToInReader(char to) {
+        char c;
+        do {
+            c = next();
+            if (c == 0) {
+                return c;
+            }
+        } while (c != to);
+        back();
+        return c;
+    }
+
     /**
      * Skip characters until past the requested string.
      * If it is not found, we are left at the end of the source.
@@ -422,6 +753,20 @@ public class JSONTokener {
      * @param to A string to skip past.
      */
     public void skipPast(String to) {
+        if (this.myReader != null) {
+            StringBuilder window = new StringBuilder(to.length() + 1);
+            while (!to.contentEquals(window)) {
+                char c = next();
+                if (c == 0) {
+                    return;
+                }
+                window.append(c);
+                if (window.length() > to.length()) {
+                    window.deleteCharAt(0);
+                }
+            }
+            return;
+        }
         this.myIndex = this.mySource.indexOf(to, this.myIndex);
         if (this.myIndex < 0) {
             this.myIndex = this.mySource.length();
@@ -443,9 +788,13 @@ public class JSONTokener {
     /**
      * Make a printable string of this JSONTokener.
      *
-     * @return " at character [this.myIndex] of [this.mySource]"
+     * @return " at character [this.myIndex] of [this.mySource]", or only the
+     *         position when reading from a reader
      */
     public String toString() {
+        if (this.myReader != null) {
+            return " at character " + this.myIndex;
+        }
         return " at character " + this.myIndex + " of " + this.mySource;
     }
 }
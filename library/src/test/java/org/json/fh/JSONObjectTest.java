@@ -0,0 +1,109 @@
+package org.json.fh;
+
+import java.util.Iterator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JSONObjectTest {
+
+    @Test
+    public void testToStringSortsKeys() throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("b", 1);
+        json.put("a", "x");
+        json.put("c", new JSONArray("[1, {\"z\": true, \"y\": null}]"));
+        assertEquals("{\"a\":\"x\",\"b\":1,\"c\":[1,{\"y\":null,\"z\":true}]}", json.toString());
+    }
+
+    @Test
+    public void testSortedKeysFollowPutAndRemove() throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("b", 1);
+        assertEquals("{\"b\":1}", json.toString());
+
+        json.put("a", 2);
+        assertEquals("{\"a\":2,\"b\":1}", json.toString());
+
+        json.put("a", 3);
+        assertEquals("{\"a\":3,\"b\":1}", json.toString());
+
+        json.remove("b");
+        assertEquals("{\"a\":3}", json.toString());
+
+        json.put("a", (Object) null);
+        assertEquals("{}", json.toString());
+        assertFalse(json.sortedKeys().hasNext());
+    }
+
+    @Test
+    public void testKeysIteratorRemoveUpdatesSortedKeys() throws Exception {
+        JSONObject json = new JSONObject("{\"a\": 1, \"b\": 2}");
+        assertEquals("{\"a\":1,\"b\":2}", json.toString());
+        for (Iterator it = json.keys(); it.hasNext(); ) {
+            if ("a".equals(it.next())) {
+                it.remove();
+            }
+        }
+        assertEquals("{\"b\":2}", json.toString());
+    }
+
+    @Test
+    public void testQuote() throws Exception {
+        assertEquals("\"\"", JSONObject.quote(""));
+        assertEquals("\"a\\\"b\\\\c<\\/d\\n\\u0001\"", JSONObject.quote("a\"b\\c</d\n\u0001"));
+        assertEquals("{\"k<\\/\":\"<\\/v\"}", new JSONObject().put("k</", "</v").toString());
+    }
+
+    @Test
+    public void testReadOnlyViewSharesData() throws Exception {
+        JSONObject source = new JSONObject("{\"name\": \"a\", \"tags\": [\"x\", {\"k\": 1}], \"nested\": {\"n\": 2}}");
+        JSONObject view = JSONObject.readOnly(source);
+        assertEquals(source.toString(), view.toString());
+        assertEquals(view, JSONObject.readOnly(view));
+
+        source.put("added", true);
+        assertTrue(view.getBoolean("added"));
+        assertEquals(source.toString(), view.toString());
+    }
+
+    @Test
+    public void testReadOnlyViewRejectsChanges() throws Exception {
+        JSONObject view = JSONObject.readOnly(new JSONObject("{\"tags\": [\"x\", {\"k\": 1}], \"nested\": {\"n\": 2}}"));
+        assertUnsupported(view, "put");
+        assertUnsupported(view.getJSONObject("nested"), "put");
+        assertUnsupported(view.getJSONArray("tags").getJSONObject(1), "put");
+        try {
+            view.getJSONArray("tags").put("y");
+            fail("Expected the nested array to be read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            view.remove("nested");
+            fail("Expected remove to be rejected");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            Iterator keys = view.keys();
+            keys.next();
+            keys.remove();
+            fail("Expected remove through keys() to be rejected");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    private static void assertUnsupported(JSONObject pObject, String pKey) {
+        try {
+            pObject.put(pKey, 1);
+            fail("Expected " + pObject + " to be read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.json.fh;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JSONTokenerTest {
+
+    private static final String OBJECT_TEXT = "{\"name\": \"fh\", \"nested\": {\"list\": [1, 2.5, -3, true, null, \"a\\\"b\"]},"
+        + " /* comment */ \"big\": 12345678901, \"hex\": 0x1F, \"unicode\": \"caf\\u00e9 \u00fc\", \"empty\": [], \"obj\": {}}";
+
+    private static final String ARRAY_TEXT = "[{\"uid\": \"1\"}, [[]], \"x\", 0, , 1]";
+
+    @Test
+    public void testReaderMatchesString() throws Exception {
+        assertEquals(new JSONObject(OBJECT_TEXT).toString(), new JSONObject(new StringReader(OBJECT_TEXT)).toString());
+        assertEquals(new JSONArray(ARRAY_TEXT).toString(), new JSONArray(new StringReader(ARRAY_TEXT)).toString());
+    }
+
+    @Test
+    public void testSmallBufferAcrossRefills() throws Exception {
+        char[] buffer = new char[2];
+        JSONObject fromReader = new JSONObject(new JSONTokener(new TrickleReader(OBJECT_TEXT), buffer));
+        assertEquals(new JSONObject(OBJECT_TEXT).toString(), fromReader.toString());
+
+        // the same buffer can be reused by the next tokener
+        JSONArray array = new JSONArray(new JSONTokener(new StringReader(ARRAY_TEXT), buffer));
+        assertEquals(new JSONArray(ARRAY_TEXT).toString(), array.toString());
+    }
+
+    @Test
+    public void testInputStreamIsUtf8() throws Exception {
+        String text = "{\"value\": \"\u00e9\u4e2d\ud83d\ude00\"}";
+        JSONObject json = new JSONObject(new ByteArrayInputStream(text.getBytes("UTF-8")));
+        assertEquals("\u00e9\u4e2d\ud83d\ude00", json.getString("value"));
+    }
+
+    @Test
+    public void testMoreAndBackAtEnd() throws Exception {
+        JSONTokener tokener = new JSONTokener(new StringReader("ab"));
+        assertTrue(tokener.more());
+        assertEquals('a', tokener.next());
+        assertEquals('b', tokener.next());
+        assertFalse(tokener.more());
+        assertEquals(0, tokener.next());
+        tokener.back();
+        assertEquals(0, tokener.next());
+    }
+
+    @Test
+    public void testSkipPast() throws Exception {
+        JSONTokener tokener = new JSONTokener(new StringReader("<!-- -- comment -->rest"));
+        tokener.skipPast("-->");
+        assertEquals("rest", tokener.nextTo('\n'));
+    }
+
+    @Test
+    public void testSyntaxErrorReportsPositionOnly() throws Exception {
+        try {
+            new JSONObject(new StringReader("{\"key\": \"value\" \"other\": 1}"));
+            fail("Expected a syntax error");
+        } catch (JSONException e) {
+            assertEquals("Expected a ',' or '}' at character 17", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testNextValueMatchesStringToValue() throws Exception {
+        String[] tokens = {
+            "true", "FALSE", "Null", "nul", "0", "-0", "00", "010", "09", "0x1F", "0X-1", "0x", "0xZ",
+            "7", "-7", "+7", "2147483647", "2147483648", "-2147483648", "-2147483649",
+            "9223372036854775807", "9223372036854775808", "-9223372036854775808", "123456789012345678901234",
+            "1.5", "-1.5", "0.1", "0.000123", "-0.0", "0.0", "1.", ".5", "-.5", ".", "-", "+", "1e5", "1E+2",
+            "1e-7", "2.5e-10", "1e", "1e+", "1e400", "1e-400", "4.9e-324", "1.7976931348623157e308",
+            "9007199254740993", "9007199254740993.0", "123456789.123456789", "1.5f", "2d", "NaN", "-Infinity",
+            "1 2", "abc", "a b ", "\u0661", "1\u0661", "fal\u017fe", "--1", "1-", "1.2.3", "1e5e5"
+        };
+        for (String token : tokens) {
+            assertSameValue(token);
+        }
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < 10000; i++) {
+            assertSameValue(Double.toString(random.nextDouble() * Math.pow(10, random.nextInt(40) - 20)));
+            assertSameValue(Long.toString(random.nextLong() >> random.nextInt(64)));
+            assertSameValue(String.format(java.util.Locale.US, "%." + random.nextInt(12) + "f", random.nextGaussian() * 1000));
+        }
+    }
+
+    private static void assertSameValue(String pToken) {
+        Object expected = JSONTokener.stringToValue(pToken.trim());
+        Object actual = new JSONTokener(pToken + ",").nextValue();
+        assertEquals(pToken, expected.getClass(), actual.getClass());
+        assertEquals(pToken, expected, actual);
+    }
+
+    /**
+     * Hands out at most one character per read call.
+     */
+    private static class TrickleReader extends Reader {
+        private final String mText;
+        private int mPosition;
+
+        TrickleReader(String pText) {
+            mText = pText;
+        }
+
+        @Override
+        public int read(char[] pBuffer, int pOffset, int pLength) throws IOException {
+            if (mPosition >= mText.length()) {
+                return -1;
+            }
+            pBuffer[pOffset] = mText.charAt(mPosition++);
+            return 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}